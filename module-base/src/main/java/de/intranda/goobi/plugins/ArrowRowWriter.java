@@ -0,0 +1,484 @@
+package de.intranda.goobi.plugins;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes the rows into an Arrow IPC file, also known as Feather version 2. The columnar file can be read by pyarrow, pandas, polars, DuckDB or R
+ * without parsing text. All columns are nullable UTF-8 strings. The rows are written in record batches while they are created, only the current
+ * batch is kept in memory.
+ * <p>
+ * The file is written without the Arrow libraries, which would bring their own off-heap allocator into the application. The metadata of the
+ * file is encoded as flatbuffers by the small builder below.
+ */
+public class ArrowRowWriter implements RowWriter {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final byte[] MAGIC = "ARROW1".getBytes(StandardCharsets.US_ASCII);
+    // marks the start of each message
+    private static final int CONTINUATION = 0xFFFFFFFF;
+    // MetadataVersion.V5
+    private static final short METADATA_VERSION = 4;
+    // types of the MessageHeader union
+    private static final byte HEADER_SCHEMA = 1;
+    private static final byte HEADER_RECORD_BATCH = 3;
+    // Utf8 in the Type union
+    private static final byte TYPE_UTF8 = 5;
+    // size of the Block struct in the footer
+    private static final int BLOCK_SIZE = 24;
+    // size of the FieldNode and Buffer structs
+    private static final int STRUCT_SIZE = 16;
+
+    static final int DEFAULT_BATCH_ROWS = 64 * 1024;
+    // a batch is written earlier if its values get larger, the offsets of a column are limited to 2 GB
+    private static final int MAX_BATCH_BYTES = 64 * 1024 * 1024;
+
+    private final OutputStream out;
+    private final int batchRows;
+    private final byte[] scratch = new byte[8];
+    private List<String> headers;
+    private Column[] columns;
+    private int rows = 0;
+    private long batchBytes = 0;
+    // number of bytes written into the file
+    private long position = 0;
+    // offset, metadata length and body length of each record batch
+    private final List<long[]> blocks = new ArrayList<>();
+
+    /**
+     *
+     * @param file the file to create
+     * @throws IOException if the file cannot be created
+     */
+    public ArrowRowWriter(Path file) throws IOException {
+        this(file, DEFAULT_BATCH_ROWS);
+    }
+
+    ArrowRowWriter(Path file, int batchRows) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        this.out = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE);
+        this.batchRows = Math.max(1, batchRows);
+    }
+
+    @Override
+    public void writeHeader(List<String> headers) throws IOException {
+        this.headers = new ArrayList<>(headers);
+        columns = new Column[headers.size()];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = new Column();
+        }
+        write(MAGIC, MAGIC.length);
+        writePadding(MAGIC.length);
+        FlatBufferBuilder builder = new FlatBufferBuilder();
+        int schema = createSchema(builder);
+        writeMessage(createMessage(builder, HEADER_SCHEMA, schema, 0));
+    }
+
+    @Override
+    public void writeRow(String[] values) throws IOException {
+        for (int i = 0; i < columns.length; i++) {
+            batchBytes += columns[i].add(i < values.length ? values[i] : null, rows);
+        }
+        rows++;
+        if (rows >= batchRows || batchBytes >= MAX_BATCH_BYTES) {
+            writeBatch();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (columns != null) {
+                if (rows > 0) {
+                    writeBatch();
+                }
+                // end of the stream for readers which do not use the footer
+                writeInt(CONTINUATION);
+                writeInt(0);
+                writeFooter();
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Write the rows of the current batch. The body contains the validity bitmap, the offsets and the values of each column, each buffer padded
+     * to 8 bytes.
+     */
+    private void writeBatch() throws IOException {
+        long[] buffers = new long[columns.length * 6];
+        long bodyLength = 0;
+        for (int i = 0; i < columns.length; i++) {
+            Column column = columns[i];
+            long[] lengths = { column.getValidityLength(rows), (rows + 1) * 4L, column.dataLength };
+            for (int j = 0; j < lengths.length; j++) {
+                buffers[i * 6 + j * 2] = bodyLength;
+                buffers[i * 6 + j * 2 + 1] = lengths[j];
+                bodyLength += align8(lengths[j]);
+            }
+        }
+
+        FlatBufferBuilder builder = new FlatBufferBuilder();
+        // vectors of structs are written from the last element to the first, each struct from its last field to its first
+        builder.startVector(STRUCT_SIZE, columns.length, 8);
+        for (int i = columns.length - 1; i >= 0; i--) {
+            builder.prep(8, STRUCT_SIZE);
+            builder.putLong(columns[i].nullCount);
+            builder.putLong(rows);
+        }
+        int nodes = builder.endVector(columns.length);
+        builder.startVector(STRUCT_SIZE, buffers.length / 2, 8);
+        for (int i = buffers.length / 2 - 1; i >= 0; i--) {
+            builder.prep(8, STRUCT_SIZE);
+            builder.putLong(buffers[i * 2 + 1]);
+            builder.putLong(buffers[i * 2]);
+        }
+        int bufferVector = builder.endVector(buffers.length / 2);
+        builder.startTable(3);
+        builder.addLong(0, rows);
+        builder.addOffset(1, nodes);
+        builder.addOffset(2, bufferVector);
+        int recordBatch = builder.endTable();
+
+        long offset = position;
+        int metadataLength = writeMessage(createMessage(builder, HEADER_RECORD_BATCH, recordBatch, bodyLength));
+        for (Column column : columns) {
+            int validityLength = column.getValidityLength(rows);
+            write(column.validity, validityLength);
+            writePadding(validityLength);
+            for (int row = 0; row <= rows; row++) {
+                writeInt(column.offsets[row]);
+            }
+            writePadding((rows + 1) * 4);
+            write(column.data, column.dataLength);
+            writePadding(column.dataLength);
+            column.reset(rows);
+        }
+        blocks.add(new long[] { offset, metadataLength, bodyLength });
+        rows = 0;
+        batchBytes = 0;
+    }
+
+    private void writeFooter() throws IOException {
+        FlatBufferBuilder builder = new FlatBufferBuilder();
+        int schema = createSchema(builder);
+        builder.startVector(BLOCK_SIZE, 0, 8);
+        int dictionaries = builder.endVector(0);
+        builder.startVector(BLOCK_SIZE, blocks.size(), 8);
+        for (int i = blocks.size() - 1; i >= 0; i--) {
+            long[] block = blocks.get(i);
+            builder.prep(8, BLOCK_SIZE);
+            builder.putLong(block[2]);
+            builder.pad(4);
+            builder.putInt((int) block[1]);
+            builder.putLong(block[0]);
+        }
+        int recordBatches = builder.endVector(blocks.size());
+        builder.startTable(4);
+        builder.addShort(0, METADATA_VERSION);
+        builder.addOffset(1, schema);
+        builder.addOffset(2, dictionaries);
+        builder.addOffset(3, recordBatches);
+        byte[] footer = builder.finish(builder.endTable());
+        write(footer, footer.length);
+        writeInt(footer.length);
+        write(MAGIC, MAGIC.length);
+    }
+
+    private int createSchema(FlatBufferBuilder builder) {
+        int[] fields = new int[headers.size()];
+        for (int i = 0; i < fields.length; i++) {
+            int name = builder.createString(headers.get(i));
+            builder.startTable(0);
+            int type = builder.endTable();
+            builder.startVector(4, 0, 4);
+            int children = builder.endVector(0);
+            builder.startTable(6);
+            builder.addOffset(0, name);
+            builder.addByte(1, (byte) 1);
+            builder.addByte(2, TYPE_UTF8);
+            builder.addOffset(3, type);
+            builder.addOffset(5, children);
+            fields[i] = builder.endTable();
+        }
+        int fieldVector = builder.createOffsetVector(fields);
+        builder.startTable(2);
+        // little endian
+        builder.addShort(0, (short) 0);
+        builder.addOffset(1, fieldVector);
+        return builder.endTable();
+    }
+
+    private static byte[] createMessage(FlatBufferBuilder builder, byte headerType, int header, long bodyLength) {
+        builder.startTable(4);
+        builder.addShort(0, METADATA_VERSION);
+        builder.addByte(1, headerType);
+        builder.addOffset(2, header);
+        builder.addLong(3, bodyLength);
+        return builder.finish(builder.endTable());
+    }
+
+    /**
+     * Write the metadata of a message, the body follows directly
+     *
+     * @return the length of the metadata including its prefix and padding
+     */
+    private int writeMessage(byte[] metadata) throws IOException {
+        int paddedLength = (int) align8(metadata.length);
+        writeInt(CONTINUATION);
+        writeInt(paddedLength);
+        write(metadata, metadata.length);
+        writePadding(metadata.length);
+        return 8 + paddedLength;
+    }
+
+    private void write(byte[] bytes, int length) throws IOException {
+        out.write(bytes, 0, length);
+        position += length;
+    }
+
+    private void writeInt(int value) throws IOException {
+        for (int i = 0; i < 4; i++) {
+            scratch[i] = (byte) (value >>> (i * 8));
+        }
+        write(scratch, 4);
+    }
+
+    private void writePadding(long length) throws IOException {
+        int padding = (int) (align8(length) - length);
+        Arrays.fill(scratch, (byte) 0);
+        write(scratch, padding);
+    }
+
+    private static long align8(long length) {
+        return (length + 7) & ~7L;
+    }
+
+    /**
+     * The values of a column in the current batch
+     */
+    private static class Column {
+
+        private int[] offsets = new int[1024];
+        private byte[] data = new byte[16 * 1024];
+        private int dataLength = 0;
+        // bit set for each row with a value
+        private byte[] validity = new byte[128];
+        private int nullCount = 0;
+
+        /**
+         * @return the number of bytes of the value
+         */
+        private int add(String value, int row) {
+            if (row + 2 > offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            }
+            if ((row >> 3) >= validity.length) {
+                validity = Arrays.copyOf(validity, validity.length * 2);
+            }
+            int length = 0;
+            if (value == null) {
+                nullCount++;
+            } else {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                length = bytes.length;
+                if (dataLength + length > data.length) {
+                    data = Arrays.copyOf(data, Math.max(data.length * 2, dataLength + length));
+                }
+                System.arraycopy(bytes, 0, data, dataLength, length);
+                dataLength += length;
+                validity[row >> 3] |= (byte) (1 << (row & 7));
+            }
+            offsets[row + 1] = dataLength;
+            return length;
+        }
+
+        /**
+         * The bitmap can be left out, if all rows have a value
+         */
+        private int getValidityLength(int rows) {
+            return nullCount == 0 ? 0 : (rows + 7) / 8;
+        }
+
+        private void reset(int rows) {
+            Arrays.fill(validity, 0, (rows + 7) / 8, (byte) 0);
+            dataLength = 0;
+            nullCount = 0;
+        }
+    }
+
+    /**
+     * Builds a flatbuffer from the end to the start, like the builder of the flatbuffers library. Objects are created before the objects
+     * referring to them, so that all offsets point forward.
+     */
+    static class FlatBufferBuilder {
+
+        private byte[] buffer = new byte[1024];
+        // first used byte of the buffer
+        private int space = buffer.length;
+        private int minAlign = 1;
+        private int[] vtable;
+        private int objectStart;
+
+        private int offset() {
+            return buffer.length - space;
+        }
+
+        private void grow() {
+            byte[] grown = new byte[buffer.length * 2];
+            System.arraycopy(buffer, 0, grown, buffer.length, buffer.length);
+            space += buffer.length;
+            buffer = grown;
+        }
+
+        /**
+         * Add padding, so that the next value of the given size is aligned after the additional bytes are written
+         */
+        void prep(int size, int additionalBytes) {
+            minAlign = Math.max(minAlign, size);
+            int alignSize = (~(offset() + additionalBytes) + 1) & (size - 1);
+            while (space < alignSize + size + additionalBytes) {
+                grow();
+            }
+            pad(alignSize);
+        }
+
+        void pad(int bytes) {
+            for (int i = 0; i < bytes; i++) {
+                buffer[--space] = 0;
+            }
+        }
+
+        void putByte(byte value) {
+            buffer[--space] = value;
+        }
+
+        void putShort(short value) {
+            space -= 2;
+            buffer[space] = (byte) value;
+            buffer[space + 1] = (byte) (value >> 8);
+        }
+
+        void putInt(int value) {
+            space -= 4;
+            for (int i = 0; i < 4; i++) {
+                buffer[space + i] = (byte) (value >>> (i * 8));
+            }
+        }
+
+        void putLong(long value) {
+            space -= 8;
+            for (int i = 0; i < 8; i++) {
+                buffer[space + i] = (byte) (value >>> (i * 8));
+            }
+        }
+
+        private void putOffset(int target) {
+            prep(4, 0);
+            putInt(offset() - target + 4);
+        }
+
+        int createString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            prep(4, bytes.length + 1);
+            putByte((byte) 0);
+            space -= bytes.length;
+            System.arraycopy(bytes, 0, buffer, space, bytes.length);
+            putInt(bytes.length);
+            return offset();
+        }
+
+        void startVector(int elementSize, int count, int alignment) {
+            prep(4, elementSize * count);
+            prep(alignment, elementSize * count);
+        }
+
+        int endVector(int count) {
+            putInt(count);
+            return offset();
+        }
+
+        int createOffsetVector(int[] targets) {
+            startVector(4, targets.length, 4);
+            for (int i = targets.length - 1; i >= 0; i--) {
+                putOffset(targets[i]);
+            }
+            return endVector(targets.length);
+        }
+
+        void startTable(int fields) {
+            vtable = new int[fields];
+            objectStart = offset();
+        }
+
+        void addByte(int field, byte value) {
+            prep(1, 0);
+            putByte(value);
+            vtable[field] = offset();
+        }
+
+        void addShort(int field, short value) {
+            prep(2, 0);
+            putShort(value);
+            vtable[field] = offset();
+        }
+
+        void addLong(int field, long value) {
+            prep(8, 0);
+            putLong(value);
+            vtable[field] = offset();
+        }
+
+        void addOffset(int field, int target) {
+            putOffset(target);
+            vtable[field] = offset();
+        }
+
+        /**
+         * Finish the table with its vtable, which is written directly in front of it
+         *
+         * @return the offset of the table
+         */
+        int endTable() {
+            // placeholder for the offset of the vtable
+            prep(4, 0);
+            putInt(0);
+            int tableOffset = offset();
+            for (int i = vtable.length - 1; i >= 0; i--) {
+                prep(2, 0);
+                putShort((short) (vtable[i] == 0 ? 0 : tableOffset - vtable[i]));
+            }
+            putShort((short) (tableOffset - objectStart));
+            putShort((short) ((vtable.length + 2) * 2));
+            int vtableOffset = offset();
+            int tablePosition = buffer.length - tableOffset;
+            int relative = vtableOffset - tableOffset;
+            for (int i = 0; i < 4; i++) {
+                buffer[tablePosition + i] = (byte) (relative >>> (i * 8));
+            }
+            vtable = null;
+            return tableOffset;
+        }
+
+        /**
+         * Write the offset of the root table
+         *
+         * @return the finished flatbuffer
+         */
+        byte[] finish(int root) {
+            prep(minAlign, 4);
+            putOffset(root);
+            return Arrays.copyOfRange(buffer, space, buffer.length);
+        }
+    }
+}
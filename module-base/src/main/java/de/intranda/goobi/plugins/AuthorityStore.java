@@ -0,0 +1,174 @@
+package de.intranda.goobi.plugins;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+
+import de.intranda.goobi.plugins.PublisherResolver.PublisherNames;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Persistent store for names resolved from VIAF, so that the next export of a project does not need to request them again. The entries are kept
+ * in a tab separated file and expire after the configured time.
+ */
+@Log4j2
+public class AuthorityStore {
+
+    private final Path file;
+    private final long timeToLive;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private boolean modified = false;
+
+    /**
+     *
+     * @param file the file to read from and write into
+     * @param timeToLive time in milliseconds after which an entry gets requested again
+     */
+    public AuthorityStore(Path file, long timeToLive) {
+        this.file = file;
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * Open the store and read all entries which are not expired yet
+     *
+     * @param file the file to read, gets created on {@link #save()} if it does not exist
+     * @param timeToLiveDays number of days after which an entry gets requested again
+     * @return the store
+     */
+    public static AuthorityStore open(Path file, int timeToLiveDays) {
+        AuthorityStore store = new AuthorityStore(file, TimeUnit.DAYS.toMillis(timeToLiveDays));
+        store.load();
+        return store;
+    }
+
+    /**
+     * Get the stored names for a url
+     *
+     * @param url the VIAF url
+     * @return the names or null, if the url is unknown or the entry is expired
+     */
+    public PublisherNames get(String url) {
+        Entry entry = entries.get(url);
+        if (entry == null || isExpired(entry)) {
+            return null;
+        }
+        return entry.getNames();
+    }
+
+    /**
+     * Store the names resolved for a url
+     *
+     * @param url the VIAF url
+     * @param names the resolved names
+     */
+    public synchronized void put(String url, PublisherNames names) {
+        entries.put(url, new Entry(System.currentTimeMillis(), names));
+        modified = true;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private boolean isExpired(Entry entry) {
+        return System.currentTimeMillis() - entry.getCreated() > timeToLive;
+    }
+
+    private void load() {
+        entries.putAll(read());
+        log.debug("Read {} entries from authority store {}", entries.size(), file);
+    }
+
+    /**
+     * Read all entries of the file which are not expired yet
+     */
+    private Map<String, Entry> read() {
+        Map<String, Entry> stored = new HashMap<>();
+        if (!Files.exists(file)) {
+            return stored;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length != 4) {
+                    continue;
+                }
+                Entry entry = new Entry(Long.parseLong(fields[1]), new PublisherNames(unescape(fields[2]), unescape(fields[3])));
+                if (!isExpired(entry)) {
+                    stored.put(unescape(fields[0]), entry);
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            log.error("Cannot read authority store {}", file, e);
+        }
+        return stored;
+    }
+
+    /**
+     * Write all entries into the file, if new entries were added. Entries saved by another export in the meantime are kept.
+     */
+    public synchronized void save() {
+        if (!modified) {
+            return;
+        }
+        // exports running at the same time save one after the other, each one adds the entries of the others
+        synchronized (AuthorityStore.class) {
+            try {
+                Files.createDirectories(file.getParent());
+                for (Map.Entry<String, Entry> stored : read().entrySet()) {
+                    entries.merge(stored.getKey(), stored.getValue(), (own, other) -> own.getCreated() >= other.getCreated() ? own : other);
+                }
+                Path tempFile = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+                try {
+                    try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+                        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                            if (isExpired(e.getValue())) {
+                                continue;
+                            }
+                            PublisherNames names = e.getValue().getNames();
+                            writer.write(escape(e.getKey()) + "\t" + e.getValue().getCreated() + "\t" + escape(names.getNormalizedName()) + "\t"
+                                    + escape(names.getOtherNames()));
+                            writer.newLine();
+                        }
+                    }
+                    Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } finally {
+                    Files.deleteIfExists(tempFile);
+                }
+                modified = false;
+            } catch (IOException e) {
+                log.error("Cannot write authority store {}", file, e);
+            }
+        }
+    }
+
+    // the store keeps null values as empty fields
+    private static String escape(String value) {
+        return TabSeparatedValues.escape(StringUtils.defaultString(value));
+    }
+
+    private static String unescape(String value) {
+        return StringUtils.defaultIfEmpty(TabSeparatedValues.unescape(value), null);
+    }
+
+    @Getter
+    @AllArgsConstructor
+    private static class Entry {
+        private long created;
+        private PublisherNames names;
+    }
+}
@@ -0,0 +1,107 @@
+package de.intranda.goobi.plugins;
+
+import java.io.InterruptedIOException;
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the number of bytes per second read or written by several threads together. The limit can be restricted to a time window of the day,
+ * e.g. to the working hours, outside of it the data is transferred at full speed.
+ */
+public class BandwidthLimiter {
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final long bytesPerSecond;
+    // start and end of the limited time window, null to limit the bandwidth all day
+    private final LocalTime from;
+    private final LocalTime to;
+    // time when the bytes reserved so far are transferred
+    private long nextFree = 0;
+
+    /**
+     *
+     * @param bytesPerSecond the maximum number of bytes per second
+     * @param from start of the limited time window or null, to limit the bandwidth all day
+     * @param to end of the limited time window, can be before the start to span midnight
+     */
+    public BandwidthLimiter(long bytesPerSecond, LocalTime from, LocalTime to) {
+        this.bytesPerSecond = Math.max(1, bytesPerSecond);
+        this.from = to == null ? null : from;
+        this.to = from == null ? null : to;
+    }
+
+    /**
+     * Parse a time window like 07:00-19:00
+     *
+     * @param bytesPerSecond the maximum number of bytes per second
+     * @param hours the time window or an empty string, to limit the bandwidth all day
+     * @return the limiter
+     * @throws IllegalArgumentException if the time window cannot be parsed
+     */
+    public static BandwidthLimiter create(long bytesPerSecond, String hours) {
+        if (hours == null || hours.isBlank()) {
+            return new BandwidthLimiter(bytesPerSecond, null, null);
+        }
+        String[] parts = hours.split("-");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Invalid time window " + hours);
+        }
+        try {
+            return new BandwidthLimiter(bytesPerSecond, LocalTime.parse(parts[0].trim()), LocalTime.parse(parts[1].trim()));
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid time window " + hours, e);
+        }
+    }
+
+    /**
+     * Wait until the given number of bytes can be transferred
+     *
+     * @param bytes the number of bytes to transfer
+     * @throws InterruptedIOException if the thread was interrupted while waiting
+     */
+    public void acquire(long bytes) throws InterruptedIOException {
+        if (!isActive(LocalTime.now())) {
+            return;
+        }
+        long wait = reserve(bytes, System.nanoTime());
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+            }
+        }
+    }
+
+    /**
+     * Reserve the time to transfer the bytes
+     *
+     * @return the nanoseconds to wait before the bytes can be transferred
+     */
+    synchronized long reserve(long bytes, long now) {
+        if (nextFree < now) {
+            // unused bandwidth of the past is not saved up
+            nextFree = now;
+        }
+        long wait = nextFree - now;
+        nextFree += bytes * NANOS_PER_SECOND / bytesPerSecond;
+        return wait;
+    }
+
+    /**
+     * Check if the bandwidth is limited at the given time
+     */
+    boolean isActive(LocalTime now) {
+        if (from == null) {
+            return true;
+        }
+        if (!from.isAfter(to)) {
+            return !now.isBefore(from) && now.isBefore(to);
+        }
+        // the window spans midnight
+        return !now.isBefore(from) || now.isBefore(to);
+    }
+}
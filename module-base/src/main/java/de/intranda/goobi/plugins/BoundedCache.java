@@ -0,0 +1,86 @@
+package de.intranda.goobi.plugins;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import lombok.Getter;
+
+/**
+ * Thread safe cache with a maximum number of entries. If the cache is full, the least recently used entry gets removed.
+ *
+ * @param <K> type of the keys
+ * @param <V> type of the values
+ */
+public class BoundedCache<K, V> {
+
+    private final Map<K, V> entries;
+
+    @Getter
+    private final AtomicLong hits = new AtomicLong();
+    @Getter
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     *
+     * @param maxSize maximum number of entries to keep
+     */
+    public BoundedCache(final int maxSize) {
+        entries = new LinkedHashMap<K, V>(16, 0.75f, true) {
+            private static final long serialVersionUID = -2286208495834622410L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Get the cached value for the key and count the access as hit or miss
+     *
+     * @param key the key to search for
+     * @return the cached value or null, if the key is unknown
+     */
+    public synchronized V get(K key) {
+        V value = entries.get(key);
+        if (value == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return value;
+    }
+
+    /**
+     * Add a value to the cache
+     *
+     * @param key the key
+     * @param value the value, must not be null
+     */
+    public synchronized void put(K key, V value) {
+        entries.put(key, value);
+    }
+
+    /**
+     * Get the cached value for the key or create and add it, if the key is unknown. Other threads wait while the value gets created, so the
+     * function should not block.
+     *
+     * @param key the key to search for
+     * @param function creates the value for the key, must not return null
+     * @return the cached or created value
+     */
+    public synchronized V computeIfAbsent(K key, Function<K, V> function) {
+        V value = get(key);
+        if (value == null) {
+            value = function.apply(key);
+            entries.put(key, value);
+        }
+        return value;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,83 @@
+package de.intranda.goobi.plugins;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Writes the rows into a CSV or TSV file while they are created. CSV values are quoted if necessary, tabs and line breaks in TSV values are
+ * replaced by spaces.
+ */
+public class DelimitedRowWriter implements RowWriter {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final char separator;
+    private final Writer writer;
+
+    /**
+     *
+     * @param file the file to create
+     * @param separator ',' for CSV or '\t' for TSV
+     * @throws IOException if the file cannot be created
+     */
+    public DelimitedRowWriter(Path file, char separator) throws IOException {
+        this.separator = separator;
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        this.writer = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), BUFFER_SIZE), BUFFER_SIZE);
+    }
+
+    /**
+     * Create a writer for the format
+     *
+     * @param file the file to create
+     * @param format CSV or TSV
+     * @return the writer
+     * @throws IOException if the file cannot be created
+     */
+    public static DelimitedRowWriter create(Path file, OutputFormat format) throws IOException {
+        return new DelimitedRowWriter(file, format == OutputFormat.TSV ? '\t' : ',');
+    }
+
+    @Override
+    public void writeHeader(List<String> headers) throws IOException {
+        writeRow(headers.toArray(new String[headers.size()]));
+    }
+
+    @Override
+    public void writeRow(String[] values) throws IOException {
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                writer.write(separator);
+            }
+            if (values[i] != null) {
+                writeValue(values[i]);
+            }
+        }
+        // CSV rows end with CRLF as defined in RFC 4180
+        writer.write(separator == '\t' ? "\n" : "\r\n");
+    }
+
+    private void writeValue(String value) throws IOException {
+        if (separator == '\t') {
+            writer.write(value.replace('\t', ' ').replace('\r', ' ').replace('\n', ' '));
+        } else if (value.indexOf(separator) >= 0 || value.indexOf('"') >= 0 || value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0) {
+            writer.write('"');
+            writer.write(value.replace("\"", "\"\""));
+            writer.write('"');
+        } else {
+            writer.write(value);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
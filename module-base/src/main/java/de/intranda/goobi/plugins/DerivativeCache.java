@@ -0,0 +1,382 @@
+package de.intranda.goobi.plugins;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Keeps the derivatives of earlier exports, so that unchanged images do not need to be converted again. A derivative is identified by the path,
+ * size and modification date of the original image and the parameters of the conversion. The least recently used derivatives are removed, when
+ * the cache gets larger than the configured size. The order of the last use is kept in an index file in the cache folder, the modification dates
+ * of the cached files are not changed, because they are shared with the linked copies in the export folders.
+ *
+ * Exports running at the same time share the list of cached files of a folder, so that a derivative is not removed while another export still
+ * links or reads it.
+ *
+ * The maximum size only counts the files in the cache folder. A derivative which is linked into an export folder still uses the disk space after
+ * it is removed from the cache, until the linked copy gets deleted as well.
+ */
+@Log4j2
+public class DerivativeCache implements Closeable {
+
+    private static final String SUFFIX = ".jpg";
+    private static final String TEMP_SUFFIX = ".tmp";
+    // names of the cached files, the least recently used first
+    private static final String INDEX_FILE = "derivatives.index";
+    // temporary files older than this are left over from an interrupted export
+    private static final long STALE_TEMP_FILE_AGE = TimeUnit.HOURS.toMillis(1);
+
+    // the cached files of all open caches by their folder
+    private static final Map<Path, SharedFolder> openFolders = new HashMap<>();
+
+    private final SharedFolder shared;
+    private final String parameters;
+    private boolean closed = false;
+    // add the derivatives to the export folder as hard links instead of copies
+    @Getter
+    @Setter
+    private boolean linkFiles = false;
+
+    @Getter
+    private final AtomicLong hits = new AtomicLong();
+    @Getter
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     *
+     * @param folder the folder to keep the derivatives in
+     * @param maxSize maximum size of all derivatives in bytes
+     * @param parameters the parameters of the conversion, a change of them invalidates the cached derivatives
+     * @throws IOException if the folder cannot be read
+     */
+    DerivativeCache(Path folder, long maxSize, String parameters) throws IOException {
+        this.shared = getSharedFolder(folder, maxSize);
+        this.parameters = parameters;
+    }
+
+    /**
+     * Open the cache and read the list of the cached derivatives. If another export already uses the folder, its list is used.
+     *
+     * @param folder the folder to keep the derivatives in, gets created if it does not exist
+     * @param maxSize maximum size of all derivatives in bytes
+     * @param parameters the parameters of the conversion
+     * @return the cache
+     * @throws IOException if the folder cannot be read
+     */
+    public static DerivativeCache open(Path folder, long maxSize, String parameters) throws IOException {
+        return new DerivativeCache(folder, maxSize, parameters);
+    }
+
+    private static SharedFolder getSharedFolder(Path folder, long maxSize) throws IOException {
+        Path key = folder.toAbsolutePath().normalize();
+        synchronized (openFolders) {
+            SharedFolder shared = openFolders.get(key);
+            if (shared == null) {
+                shared = new SharedFolder(key);
+                shared.load();
+                openFolders.put(key, shared);
+            }
+            synchronized (shared) {
+                shared.users++;
+                shared.maxSize = maxSize;
+                shared.evict();
+            }
+            return shared;
+        }
+    }
+
+    /**
+     * Release the cache. The list of cached files is read again by the next export, when no other export uses the folder anymore.
+     */
+    @Override
+    public void close() {
+        synchronized (openFolders) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            synchronized (shared) {
+                shared.users--;
+                if (shared.users == 0) {
+                    openFolders.remove(shared.folder);
+                    shared.saveIndex();
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the cached derivative of an image or create it. The derivative is not removed from the cache until it is released again.
+     *
+     * @return the name of the cached file
+     */
+    private String acquire(Path source, long size, long lastModified, Callable<byte[]> converter) throws IOException {
+        String name = getKey(source, size, lastModified) + SUFFIX;
+        Path file = shared.folder.resolve(name);
+        synchronized (shared) {
+            if (shared.entries.get(name) != null && Files.exists(file)) {
+                hits.incrementAndGet();
+                shared.pin(name);
+                return name;
+            }
+        }
+        misses.incrementAndGet();
+        byte[] derivative;
+        try {
+            derivative = converter.call();
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+        // write into a temporary file with a unique name first, so that an interrupted export does not leave an incomplete derivative and
+        // exports converting the same image at the same time do not overwrite each other
+        Path tempFile = Files.createTempFile(shared.folder, name, TEMP_SUFFIX);
+        try {
+            Files.write(tempFile, derivative);
+            synchronized (shared) {
+                Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                Long previous = shared.entries.put(name, (long) derivative.length);
+                shared.size += derivative.length - (previous == null ? 0 : previous);
+                shared.pin(name);
+                shared.evict();
+            }
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+        return name;
+    }
+
+    /**
+     * Get the content of the cached derivative of an image or create it
+     *
+     * @param source the original image
+     * @param size the size of the original image in bytes
+     * @param lastModified the modification date of the original image in milliseconds
+     * @param converter creates the derivative, if it is not cached
+     * @return the derivative
+     * @throws IOException if the derivative cannot be created or read
+     */
+    public byte[] getContent(Path source, long size, long lastModified, Callable<byte[]> converter) throws IOException {
+        String name = acquire(source, size, lastModified, converter);
+        try {
+            return Files.readAllBytes(shared.folder.resolve(name));
+        } finally {
+            shared.release(name);
+        }
+    }
+
+    /**
+     * Put the cached derivative of an image into the target file. A hard link is used if it is enabled and possible, otherwise the derivative gets
+     * copied.
+     *
+     * @param source the original image
+     * @param size the size of the original image in bytes
+     * @param lastModified the modification date of the original image in milliseconds
+     * @param converter creates the derivative, if it is not cached
+     * @param target the file to create
+     * @throws IOException if the derivative cannot be created or linked
+     */
+    public void export(Path source, long size, long lastModified, Callable<byte[]> converter, Path target) throws IOException {
+        String name = acquire(source, size, lastModified, converter);
+        try {
+            Path file = shared.folder.resolve(name);
+            Files.deleteIfExists(target);
+            if (linkFiles) {
+                try {
+                    Files.createLink(target, file);
+                    return;
+                } catch (FileSystemException | UnsupportedOperationException e) {
+                    // different file system or links are not supported
+                }
+            }
+            Files.copy(file, target, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            shared.release(name);
+        }
+    }
+
+    public long getSize() {
+        synchronized (shared) {
+            return shared.size;
+        }
+    }
+
+    public int getCount() {
+        synchronized (shared) {
+            return shared.entries.size();
+        }
+    }
+
+    /**
+     * Create the name of the derivative from the original image and the conversion parameters. The size and modification date are taken from the
+     * listing of the image folder, so that the cache does not request them again for each image.
+     */
+    String getKey(Path source, long size, long lastModified) {
+        StringBuilder key = new StringBuilder();
+        key.append(source.toAbsolutePath().normalize())
+                .append('\t')
+                .append(size)
+                .append('\t')
+                .append(lastModified)
+                .append('\t')
+                .append(parameters);
+        return Checksums.sha256(key.toString());
+    }
+
+    private static FileTime getLastModifiedTime(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    /**
+     * The cached files of a folder, shared by all exports using the folder
+     */
+    private static class SharedFolder {
+
+        private final Path folder;
+        private long maxSize;
+        // number of open caches using the folder
+        private int users = 0;
+        // cached files with their size, in the order of their last use
+        private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+        // cached files which are linked or read at the moment, with the number of exports using them
+        private final Map<String, Integer> pinned = new HashMap<>();
+        private long size = 0;
+
+        private SharedFolder(Path folder) {
+            this.folder = folder;
+        }
+
+        private void load() throws IOException {
+            Files.createDirectories(folder);
+            Map<String, Path> files = new HashMap<>();
+            long staleBefore = System.currentTimeMillis() - STALE_TEMP_FILE_AGE;
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder)) {
+                for (Path file : stream) {
+                    String name = file.getFileName().toString();
+                    if (name.endsWith(SUFFIX)) {
+                        files.put(name, file);
+                    } else if (!INDEX_FILE.equals(name) && getLastModifiedTime(file).toMillis() < staleBefore) {
+                        // incomplete file of an interrupted export, newer files may still be written by another installation
+                        Files.deleteIfExists(file);
+                    }
+                }
+            }
+            List<String> order = readIndex();
+            Set<String> indexed = new HashSet<>(order);
+            // files missing in the index were not used since it was written, they are the first to be removed
+            List<Path> unknownFiles = new ArrayList<>();
+            for (Map.Entry<String, Path> file : files.entrySet()) {
+                if (!indexed.contains(file.getKey())) {
+                    unknownFiles.add(file.getValue());
+                }
+            }
+            unknownFiles.sort(Comparator.comparing(DerivativeCache::getLastModifiedTime));
+            synchronized (this) {
+                for (Path file : unknownFiles) {
+                    add(file);
+                }
+                for (String name : order) {
+                    Path file = files.get(name);
+                    if (file != null) {
+                        add(file);
+                    }
+                }
+            }
+            log.debug("Derivative cache {} contains {} files with {} bytes", folder, entries.size(), size);
+        }
+
+        private void add(Path file) throws IOException {
+            long fileSize = Files.size(file);
+            entries.put(file.getFileName().toString(), fileSize);
+            size += fileSize;
+        }
+
+        private List<String> readIndex() {
+            Path index = folder.resolve(INDEX_FILE);
+            if (!Files.exists(index)) {
+                return new ArrayList<>();
+            }
+            try {
+                return Files.readAllLines(index, StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                log.warn("Cannot read the index of the derivative cache {}", folder, e);
+                return new ArrayList<>();
+            }
+        }
+
+        /**
+         * Write the order of the last use into the index file, so that the next export can restore it
+         */
+        private void saveIndex() {
+            try {
+                Path tempFile = Files.createTempFile(folder, INDEX_FILE, TEMP_SUFFIX);
+                try {
+                    Files.write(tempFile, entries.keySet(), StandardCharsets.UTF_8);
+                    Files.move(tempFile, folder.resolve(INDEX_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } finally {
+                    Files.deleteIfExists(tempFile);
+                }
+            } catch (IOException e) {
+                log.warn("Cannot write the index of the derivative cache {}", folder, e);
+            }
+        }
+
+        private void pin(String name) {
+            pinned.merge(name, 1, Integer::sum);
+        }
+
+        private synchronized void release(String name) {
+            pinned.computeIfPresent(name, (key, count) -> count == 1 ? null : count - 1);
+            // remove the derivatives which were skipped while they were in use
+            evict();
+        }
+
+        /**
+         * Remove the least recently used derivatives until the cache fits into the maximum size. Derivatives in use are skipped, they get
+         * removed when they are released.
+         */
+        private void evict() {
+            Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+            while (size > maxSize && iterator.hasNext()) {
+                Map.Entry<String, Long> entry = iterator.next();
+                if (pinned.containsKey(entry.getKey())) {
+                    continue;
+                }
+                try {
+                    Files.deleteIfExists(folder.resolve(entry.getKey()));
+                } catch (IOException e) {
+                    log.warn("Cannot delete cached derivative {}", entry.getKey());
+                }
+                size -= entry.getValue();
+                iterator.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * An export of a project running in the background. The job reports its current phase with the number of items done and the size of the zip
+ * file, so that the user interface can poll the progress. A running job can be cancelled, the task checks {@link #isCancelled()} between its steps and gets interrupted.
+ */
+@Log4j2
+public class ExportJob implements Runnable {
+
+    public enum Phase {
+        QUEUED,
+        // collect the metadata, write the rows and copy the images of the processes
+        COLLECT,
+        // finish the metadata files
+        WRITE,
+        CLOSE_STEPS,
+        ZIP,
+        FINISHED,
+        FAILED,
+        CANCELLED;
+
+        public boolean isDone() {
+            return this == FINISHED || this == FAILED || this == CANCELLED;
+        }
+    }
+
+    /**
+     * The work of an export job
+     */
+    @FunctionalInterface
+    public interface Task {
+        void run(ExportJob job) throws IOException, InterruptedException;
+    }
+
+    @Getter
+    private final String projectName;
+    // the zip file created by the job
+    @Getter
+    private final Path zipFile;
+    private final Task task;
+
+    @Getter
+    private volatile Phase phase = Phase.QUEUED;
+    // number of items of the current phase, 0 if it is not known
+    @Getter
+    private volatile long total = 0;
+    // number of items of the current phase which are done
+    private final AtomicLong done = new AtomicLong();
+    // number of bytes written into the zip file, it grows during several phases and is not reset with the phase
+    private final AtomicLong zipBytes = new AtomicLong();
+    @Getter
+    private final long createdAt = System.currentTimeMillis();
+    // 0 while the job is running
+    @Getter
+    private volatile long finishedAt = 0;
+    // message of the first error or null
+    @Getter
+    private volatile String errorMessage;
+    private volatile boolean cancelled = false;
+    // the thread running the job, to interrupt it on cancellation
+    private Thread thread;
+
+    /**
+     *
+     * @param projectName the project to export
+     * @param zipFile the zip file created by the job
+     * @param task the work of the job
+     */
+    public ExportJob(String projectName, Path zipFile, Task task) {
+        this.projectName = projectName;
+        this.zipFile = zipFile;
+        this.task = task;
+    }
+
+    @Override
+    public void run() {
+        synchronized (this) {
+            if (cancelled) {
+                finish(Phase.CANCELLED);
+                return;
+            }
+            thread = Thread.currentThread();
+        }
+        try {
+            task.run(this);
+        } catch (InterruptedException e) {
+            if (!cancelled) {
+                fail("The export was interrupted");
+            }
+        } catch (IOException | RuntimeException e) {
+            // a cancelled job fails in the interrupted operation
+            if (!cancelled) {
+                log.error("Export of project {} failed", projectName, e);
+                fail(e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage());
+            }
+        } finally {
+            synchronized (this) {
+                thread = null;
+                // clear an interrupt from a late cancellation, the thread gets reused
+                Thread.interrupted();
+            }
+        }
+        if (cancelled) {
+            finish(Phase.CANCELLED);
+        } else {
+            finish(errorMessage == null ? Phase.FINISHED : Phase.FAILED);
+        }
+    }
+
+    private void finish(Phase result) {
+        finishedAt = System.currentTimeMillis();
+        phase = result;
+        log.info("Export of project {} ended with status {}", projectName, result);
+    }
+
+    /**
+     * Cancel the job. A job waiting in the queue does not start, a running job gets interrupted.
+     */
+    public synchronized void cancel() {
+        if (phase.isDone()) {
+            return;
+        }
+        cancelled = true;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public boolean isRunning() {
+        return !phase.isDone();
+    }
+
+    /**
+     * Start the next phase of the job and reset the progress
+     *
+     * @param next the phase
+     * @param items number of items of the phase or 0, if it is not known
+     */
+    public void startPhase(Phase next, long items) {
+        done.set(0);
+        total = items;
+        phase = next;
+        log.debug("Export of project {}: {} with {} items", projectName, next, items);
+    }
+
+    /**
+     * Report progress in the current phase
+     *
+     * @param items number of items done
+     */
+    public void addProgress(long items) {
+        done.addAndGet(items);
+    }
+
+    /**
+     * Report data written into the zip file. The images are added while the metadata is collected, so the size is independent of the phase.
+     *
+     * @param bytes number of bytes written
+     */
+    public void addZipBytes(long bytes) {
+        zipBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Record an error. The job continues, but it ends with the status {@link Phase#FAILED}.
+     *
+     * @param message a description of the error, only the first message is kept
+     */
+    public void fail(String message) {
+        if (errorMessage == null) {
+            errorMessage = message;
+        }
+    }
+
+    public long getDone() {
+        return done.get();
+    }
+
+    public long getZipBytes() {
+        return zipBytes.get();
+    }
+
+    /**
+     * Get the progress of the current phase in percent
+     *
+     * @return the percentage or -1, if the number of items is not known
+     */
+    public int getPercent() {
+        long items = total;
+        if (items <= 0) {
+            return -1;
+        }
+        return (int) Math.min(100, getDone() * 100 / items);
+    }
+
+    /**
+     * Check if the zip file of the job can be downloaded
+     *
+     * @return true if the job finished without errors and created the zip file
+     */
+    public boolean isZipAvailable() {
+        return phase == Phase.FINISHED && Files.isRegularFile(zipFile);
+    }
+}
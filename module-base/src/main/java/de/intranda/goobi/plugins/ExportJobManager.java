@@ -0,0 +1,108 @@
+package de.intranda.goobi.plugins;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Runs the export jobs in background threads, independent of the request and the session which started them. The last job of each project is kept,
+ * so that its progress can be polled and its zip file downloaded later. Only one job per project runs at a time, and the number of jobs running in
+ * parallel is limited. Further jobs wait in the queue.
+ */
+@Log4j2
+public class ExportJobManager {
+
+    public static final int DEFAULT_MAX_JOBS = 2;
+
+    private static final ExportJobManager INSTANCE = new ExportJobManager();
+
+    private final ThreadPoolExecutor executor;
+    // last job of each project
+    private final Map<String, ExportJob> jobs = new ConcurrentHashMap<>();
+
+    ExportJobManager() {
+        AtomicInteger counter = new AtomicInteger();
+        executor = new ThreadPoolExecutor(DEFAULT_MAX_JOBS, DEFAULT_MAX_JOBS, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "projectexport-job-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public static ExportJobManager getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Set the number of jobs running in parallel
+     *
+     * @param maxJobs the maximum number of running jobs
+     */
+    public synchronized void setMaxJobs(int maxJobs) {
+        int size = Math.max(1, maxJobs);
+        if (size == executor.getMaximumPoolSize()) {
+            return;
+        }
+        // the core size must never be larger than the maximum size
+        if (size > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(size);
+            executor.setCorePoolSize(size);
+        } else {
+            executor.setCorePoolSize(size);
+            executor.setMaximumPoolSize(size);
+        }
+    }
+
+    /**
+     * Start an export job in the background. If a job of the same project is still queued or running, the new job is not started and the running
+     * job is returned instead.
+     *
+     * @param job the job to start
+     * @return the started job or the job of the project which is already running
+     */
+    public synchronized ExportJob submit(ExportJob job) {
+        ExportJob running = jobs.get(job.getProjectName());
+        if (running != null && running.isRunning()) {
+            log.info("Export of project {} is already running", job.getProjectName());
+            return running;
+        }
+        jobs.put(job.getProjectName(), job);
+        log.info("Start export of project {}", job.getProjectName());
+        executor.execute(job);
+        return job;
+    }
+
+    /**
+     * Get the last job of a project
+     *
+     * @param projectName the project
+     * @return the running or finished job or null, if the project was not exported since the application started
+     */
+    public ExportJob getJob(String projectName) {
+        if (projectName == null) {
+            return null;
+        }
+        return jobs.get(projectName);
+    }
+
+    /**
+     * Cancel the running job of a project
+     *
+     * @param projectName the project
+     * @return true if a running job was cancelled
+     */
+    public boolean cancel(String projectName) {
+        ExportJob job = getJob(projectName);
+        if (job == null || !job.isRunning()) {
+            return false;
+        }
+        job.cancel();
+        return true;
+    }
+}
@@ -0,0 +1,204 @@
+package de.intranda.goobi.plugins;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Describes the result of the last export of a project. For each exported process the fingerprint of its metadata file, properties and images is
+ * kept together with the collected metadata, so that the next export can skip the processes that did not change.
+ * <p>
+ * The manifest is a text file. After a header line and the settings, each line contains the tab separated fields of one process: id, title,
+ * fingerprint, representative, the publisher and its authority value from the metadata file, the number of images followed by their names and the
+ * number of values followed by the values.
+ */
+@Log4j2
+public class ExportManifest {
+
+    // first line of the file, changes when the format changes
+    private static final String HEADER = "projectexport manifest 1";
+
+    // settings of the export, the manifest is only used if they did not change
+    @Getter
+    private final String settings;
+    private final Map<Integer, ProcessMetadata> entries = new ConcurrentHashMap<>();
+
+    /**
+     *
+     * @param settings the settings of the export which influence the exported files
+     */
+    public ExportManifest(String settings) {
+        this.settings = settings;
+    }
+
+    /**
+     * Read the manifest of the last export
+     *
+     * @param file the manifest file
+     * @param settings the settings of the current export
+     * @return the manifest or null, if there is no usable manifest
+     */
+    public static ExportManifest load(Path file, String settings) {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            if (!HEADER.equals(reader.readLine())) {
+                log.info("Unknown format of export manifest {}, all processes get exported again", file);
+                return null;
+            }
+            String line = reader.readLine();
+            if (line == null || !settings.equals(TabSeparatedValues.unescape(line))) {
+                log.info("Export settings changed, all processes get exported again");
+                return null;
+            }
+            ExportManifest manifest = new ExportManifest(settings);
+            while ((line = reader.readLine()) != null) {
+                manifest.put(readEntry(line));
+            }
+            return manifest;
+        } catch (IOException | IllegalArgumentException e) {
+            log.warn("Cannot read export manifest {}, all processes get exported again", file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Write the manifest
+     *
+     * @param file the manifest file
+     * @throws IOException
+     */
+    public void save(Path file) throws IOException {
+        // write into a temporary file first, so that an interrupted export does not leave a broken manifest
+        Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            writer.newLine();
+            writer.write(TabSeparatedValues.escape(settings));
+            writer.newLine();
+            for (ProcessMetadata data : getProcesses()) {
+                writer.write(writeEntry(data));
+                writer.newLine();
+            }
+        }
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String writeEntry(ProcessMetadata data) {
+        List<String> fields = new ArrayList<>();
+        fields.add(String.valueOf(data.getProcessId()));
+        fields.add(data.getProcessTitle());
+        fields.add(data.getFingerprint());
+        fields.add(data.getRepresentative());
+        fields.add(data.getPublisherMetadata());
+        fields.add(data.getPublisherAuthority());
+        List<String> filenames = data.getFilenames() == null ? new ArrayList<>() : data.getFilenames();
+        fields.add(String.valueOf(filenames.size()));
+        fields.addAll(filenames);
+        // the values are missing, if the process has no images
+        String[] values = data.getValues();
+        fields.add(String.valueOf(values == null ? -1 : values.length));
+        if (values != null) {
+            for (String value : values) {
+                fields.add(value);
+            }
+        }
+        StringBuilder line = new StringBuilder();
+        for (String field : fields) {
+            if (line.length() > 0) {
+                line.append('\t');
+            }
+            line.append(TabSeparatedValues.escape(field));
+        }
+        return line.toString();
+    }
+
+    private static ProcessMetadata readEntry(String line) {
+        String[] fields = line.split("\t", -1);
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = TabSeparatedValues.unescape(fields[i]);
+        }
+        if (fields.length < 8) {
+            throw new IllegalArgumentException("Incomplete entry in export manifest");
+        }
+        ProcessMetadata data = new ProcessMetadata();
+        data.setProcessId(Integer.parseInt(fields[0]));
+        data.setProcessTitle(fields[1]);
+        data.setFingerprint(fields[2]);
+        data.setRepresentative(fields[3]);
+        data.setPublisherMetadata(fields[4]);
+        data.setPublisherAuthority(fields[5]);
+        int index = 6;
+        int numberOfImages = Integer.parseInt(fields[index++]);
+        if (numberOfImages < 0 || index + numberOfImages >= fields.length) {
+            throw new IllegalArgumentException("Incomplete entry in export manifest");
+        }
+        List<String> filenames = new ArrayList<>(numberOfImages);
+        for (int i = 0; i < numberOfImages; i++) {
+            filenames.add(fields[index++]);
+        }
+        data.setFilenames(filenames);
+        int numberOfValues = Integer.parseInt(fields[index++]);
+        if (index + Math.max(numberOfValues, 0) != fields.length) {
+            throw new IllegalArgumentException("Incomplete entry in export manifest");
+        }
+        if (numberOfValues >= 0) {
+            String[] values = new String[numberOfValues];
+            System.arraycopy(fields, index, values, 0, numberOfValues);
+            data.setValues(values);
+        }
+        return data;
+    }
+
+    /**
+     * Get the metadata collected by the last export, if the process did not change since then
+     *
+     * @param processId id of the process
+     * @param fingerprint the current fingerprint of the process
+     * @return the metadata or null, if the process was not exported or changed
+     */
+    public ProcessMetadata getUnchanged(int processId, String fingerprint) {
+        ProcessMetadata data = entries.get(processId);
+        if (data == null || !fingerprint.equals(data.getFingerprint())) {
+            return null;
+        }
+        return data;
+    }
+
+    /**
+     * Add an exported process
+     *
+     * @param data the collected metadata, containing the fingerprint of the process
+     */
+    public void put(ProcessMetadata data) {
+        entries.put(data.getProcessId(), data);
+    }
+
+    /**
+     * Get the metadata of all exported processes
+     *
+     * @return the metadata, sorted by the process title
+     */
+    public List<ProcessMetadata> getProcesses() {
+        List<ProcessMetadata> processes = new ArrayList<>(entries.values());
+        processes.sort(Comparator.comparing(ProcessMetadata::getProcessTitle, Comparator.nullsFirst(Comparator.naturalOrder())));
+        return processes;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,98 @@
+package de.intranda.goobi.plugins;
+
+import java.util.List;
+
+import org.goobi.beans.GoobiProperty;
+import org.goobi.beans.Process;
+import org.goobi.beans.Step;
+
+import de.sub.goobi.helper.enums.StepStatus;
+import lombok.Data;
+
+/**
+ * The data of a process needed to select and export it, without the steps and properties of the full process object
+ */
+@Data
+public class ExportProcess {
+
+    private int id;
+    private String title;
+    // true if the step to check is deactivated, the process is not exported then
+    private boolean finishStepDeactivated;
+    // id of the step to close after the export or null, if it is already closed or deactivated
+    private Integer closeStepId;
+    // names of the exported properties
+    private final List<String> propertyNames;
+    // values of the exported properties, indexed like the property names
+    private final String[] propertyValues;
+
+    // project fields
+    private String rightsOwner;
+    private String rightsOwnerSite;
+    private String rightsSponsor;
+
+    /**
+     *
+     * @param propertyNames names of the properties used in the spreadsheet
+     */
+    public ExportProcess(List<String> propertyNames) {
+        this.propertyNames = propertyNames;
+        this.propertyValues = new String[propertyNames.size()];
+    }
+
+    /**
+     * Create the export data from a full process object
+     *
+     * @param process the process
+     * @param finishStepName name of the step to check
+     * @param closeStepName name of the step to close after the export
+     * @param propertyNames names of the properties used in the spreadsheet
+     * @return the export data
+     */
+    public static ExportProcess of(Process process, String finishStepName, String closeStepName, List<String> propertyNames) {
+        ExportProcess exportProcess = new ExportProcess(propertyNames);
+        exportProcess.setId(process.getId());
+        exportProcess.setTitle(process.getTitel());
+        for (Step step : process.getSchritte()) {
+            if (finishStepName.equals(step.getTitel()) && step.getBearbeitungsstatusEnum() == StepStatus.DEACTIVATED) {
+                exportProcess.setFinishStepDeactivated(true);
+            }
+            if (exportProcess.getCloseStepId() == null && closeStepName != null && closeStepName.equals(step.getTitel())
+                    && step.getBearbeitungsstatusEnum() != StepStatus.DEACTIVATED && step.getBearbeitungsstatusEnum() != StepStatus.DONE) {
+                exportProcess.setCloseStepId(step.getId());
+            }
+        }
+        for (GoobiProperty prop : process.getProperties()) {
+            exportProcess.setProperty(prop.getPropertyName(), prop.getPropertyValue());
+        }
+        if (process.getProjekt() != null) {
+            exportProcess.setRightsOwner(process.getProjekt().getMetsRightsOwner());
+            exportProcess.setRightsOwnerSite(process.getProjekt().getMetsRightsOwnerSite());
+            exportProcess.setRightsSponsor(process.getProjekt().getMetsRightsSponsor());
+        }
+        return exportProcess;
+    }
+
+    /**
+     * Get the value of an exported property
+     *
+     * @param index the index of the property name
+     * @return the value or null, if the process does not have the property
+     */
+    public String getProperty(int index) {
+        return propertyValues[index];
+    }
+
+    /**
+     * Set the value of a property, if it is exported
+     *
+     * @param name the name of the property
+     * @param value the value
+     */
+    public void setProperty(String name, String value) {
+        int index = propertyNames.indexOf(name);
+        if (index >= 0) {
+            propertyValues[index] = value;
+        }
+    }
+}
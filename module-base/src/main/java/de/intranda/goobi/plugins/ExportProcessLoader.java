@@ -0,0 +1,170 @@
+package de.intranda.goobi.plugins;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.dbutils.QueryRunner;
+import org.apache.commons.dbutils.ResultSetHandler;
+
+import de.sub.goobi.helper.enums.StepStatus;
+import de.sub.goobi.persistence.managers.MySQLHelper;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Loads the data of all processes to export with three queries, instead of loading the full process objects with their steps and properties. The
+ * steps and properties are selected with a subquery for the processes of the project, it replaced the batches of 1000 process ids sent in the
+ * IN clauses before.
+ */
+@Log4j2
+public class ExportProcessLoader {
+
+    // ids of all processes of the project, the steps and properties are loaded for the whole project instead of sending long lists of ids
+    private static final String PROJECT_PROCESSES =
+            "SELECT ProzesseID FROM prozesse WHERE istTemplate = false AND ProjekteID = (SELECT ProjekteID FROM projekte WHERE Titel = ?)";
+
+    private final String projectName;
+    private final String finishStepName;
+    private final String closeStepName;
+    private final boolean includeAllFinishedProcesses;
+    private final List<String> propertyNames;
+
+    /**
+     *
+     * @param settings the settings of the export: the project, the step which must be done, the step to close and the properties used in the
+     *            spreadsheet
+     */
+    public ExportProcessLoader(ExportSettings settings) {
+        this.projectName = settings.getProjectName();
+        this.finishStepName = settings.getFinishStepName();
+        this.closeStepName = settings.getCloseStepName();
+        this.includeAllFinishedProcesses = settings.isIncludeAllFinishedProcesses();
+        this.propertyNames = settings.getLayout().getPropertyNames();
+    }
+
+    /**
+     * Load all processes to export, sorted by title
+     *
+     * @return the processes
+     */
+    public List<ExportProcess> load() {
+        Connection connection = null;
+        try {
+            connection = MySQLHelper.getInstance().getConnection();
+            Map<Integer, ExportProcess> processes = loadProcesses(connection);
+            if (!processes.isEmpty()) {
+                loadCloseSteps(connection, processes);
+                if (!propertyNames.isEmpty()) {
+                    loadProperties(connection, processes);
+                }
+            }
+            return new ArrayList<>(processes.values());
+        } catch (SQLException e) {
+            log.error(e);
+        } finally {
+            if (connection != null) {
+                try {
+                    MySQLHelper.closeConnection(connection);
+                } catch (SQLException e) {
+                    log.error(e);
+                }
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    private Map<Integer, ExportProcess> loadProcesses(Connection connection) throws SQLException {
+        StringBuilder query = new StringBuilder();
+        query.append("SELECT p.ProzesseID, p.Titel, pr.metsRightsOwner, pr.metsRightsOwnerSite, pr.metsRightsSponsor, ");
+        query.append("EXISTS (SELECT 1 FROM schritte s WHERE s.ProzesseID = p.ProzesseID AND s.Titel = ? AND s.Bearbeitungsstatus = ?) ");
+        query.append("FROM prozesse p JOIN projekte pr ON p.ProjekteID = pr.ProjekteID ");
+        query.append("WHERE p.istTemplate = false AND pr.Titel = ? ");
+        query.append("AND p.ProzesseID IN (SELECT ProzesseID FROM schritte WHERE Titel = ? AND Bearbeitungsstatus = ?) ");
+        List<Object> parameter = new ArrayList<>();
+        parameter.add(finishStepName);
+        parameter.add(StepStatus.DEACTIVATED.getValue());
+        parameter.add(projectName);
+        parameter.add(finishStepName);
+        parameter.add(StepStatus.DONE.getValue());
+        if (!includeAllFinishedProcesses) {
+            query.append("AND p.ProzesseID NOT IN (SELECT ProzesseID FROM schritte WHERE Titel = ? ");
+            query.append("AND (Bearbeitungsstatus = ? OR Bearbeitungsstatus = ?)) ");
+            parameter.add(closeStepName);
+            parameter.add(StepStatus.DONE.getValue());
+            parameter.add(StepStatus.DEACTIVATED.getValue());
+        }
+        query.append("ORDER BY p.Titel");
+
+        ResultSetHandler<Map<Integer, ExportProcess>> handler = rs -> {
+            Map<Integer, ExportProcess> processes = new LinkedHashMap<>();
+            while (rs.next()) {
+                ExportProcess process = new ExportProcess(propertyNames);
+                process.setId(rs.getInt(1));
+                process.setTitle(rs.getString(2));
+                process.setRightsOwner(rs.getString(3));
+                process.setRightsOwnerSite(rs.getString(4));
+                process.setRightsSponsor(rs.getString(5));
+                process.setFinishStepDeactivated(rs.getBoolean(6));
+                processes.put(process.getId(), process);
+            }
+            return processes;
+        };
+        return new QueryRunner().query(connection, query.toString(), handler, parameter.toArray());
+    }
+
+    /**
+     * Load the open steps to close of all processes of the project
+     */
+    private void loadCloseSteps(Connection connection, Map<Integer, ExportProcess> processes) throws SQLException {
+        StringBuilder query = new StringBuilder();
+        query.append("SELECT ProzesseID, SchritteID FROM schritte WHERE Titel = ? AND Bearbeitungsstatus <> ? AND Bearbeitungsstatus <> ? ");
+        query.append("AND ProzesseID IN (").append(PROJECT_PROCESSES).append(") ");
+        query.append("ORDER BY ProzesseID, Reihenfolge");
+        List<Object> parameter = new ArrayList<>();
+        parameter.add(closeStepName);
+        parameter.add(StepStatus.DONE.getValue());
+        parameter.add(StepStatus.DEACTIVATED.getValue());
+        parameter.add(projectName);
+
+        ResultSetHandler<Void> handler = rs -> {
+            while (rs.next()) {
+                ExportProcess process = processes.get(rs.getInt(1));
+                // close the first matching step only
+                if (process != null && process.getCloseStepId() == null) {
+                    process.setCloseStepId(rs.getInt(2));
+                }
+            }
+            return null;
+        };
+        new QueryRunner().query(connection, query.toString(), handler, parameter.toArray());
+    }
+
+    /**
+     * Load the exported properties of all processes of the project in a single query
+     */
+    private void loadProperties(Connection connection, Map<Integer, ExportProcess> processes) throws SQLException {
+        StringBuilder query = new StringBuilder();
+        query.append("SELECT object_id, property_name, property_value FROM properties WHERE object_type = 'process' ");
+        String placeholders = String.join(",", Collections.nCopies(propertyNames.size(), "?"));
+        query.append("AND property_name IN (").append(placeholders).append(") ");
+        query.append("AND object_id IN (").append(PROJECT_PROCESSES).append(") ");
+        query.append("ORDER BY id");
+        List<Object> parameter = new ArrayList<>(propertyNames);
+        parameter.add(projectName);
+
+        ResultSetHandler<Void> handler = rs -> {
+            while (rs.next()) {
+                ExportProcess process = processes.get(rs.getInt(1));
+                if (process != null) {
+                    process.setProperty(rs.getString(2), rs.getString(3));
+                }
+            }
+            return null;
+        };
+        new QueryRunner().query(connection, query.toString(), handler, parameter.toArray());
+    }
+}
@@ -0,0 +1,171 @@
+package de.intranda.goobi.plugins;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.apache.commons.configuration.tree.xpath.XPathExpressionEngine;
+import org.apache.commons.lang3.StringUtils;
+
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * The settings of the export of a project. A running export keeps its own settings, they do not change if another project is selected in the
+ * meantime.
+ */
+@Log4j2
+@Getter
+public class ExportSettings {
+
+    private final String projectName;
+    private final boolean includeAllFinishedProcesses;
+    private final String exportFolder;
+    private final String finishStepName;
+    private final String closeStepName;
+    private final String imageFolder;
+    private final boolean allowZipDownload;
+    // create the zip file directly from the image folders of the processes without copying the images into the export folder
+    private final boolean streamImagesIntoZip;
+    // file extensions to add to the zip file without compression
+    private final ZipCompressionPolicy compressionPolicy;
+    // number of files to compress in parallel when creating the zip file
+    private final int zipThreads;
+    // number of processes to collect the metadata for in parallel
+    private final int collectorThreads;
+    // maximum number of publishers to keep in the cache during an export
+    private final int publisherCacheSize;
+    // number of days to keep names resolved from VIAF in the persistent store, 0 disables the store
+    private final int authorityStoreDays;
+    // number of VIAF records to request at the same time
+    private final int viafThreads;
+    // seconds to wait for a VIAF record before the publisher is exported without it
+    private final int viafTimeout;
+    // export JPEG derivatives instead of the original images
+    private final boolean convertImages;
+    private final int conversionDpi;
+    private final long conversionMaxFileSize;
+    private final float conversionMinQuality;
+    private final float conversionMaxQuality;
+    private final int conversionMaxPasses;
+    private final int conversionThreads;
+    // maximum size of the derivative cache in megabytes, 0 disables the cache
+    private final long conversionCacheSize;
+    // only export the processes which changed since the last export
+    private final boolean incrementalExport;
+    // read the metadata directly from the METS file instead of parsing it with the ruleset
+    private final boolean fastMetsReader;
+    // the columns of the spreadsheet
+    private final SpreadsheetLayout layout;
+    // formats of the metadata file
+    private final List<OutputFormat> outputFormats;
+    // maximum number of image rows per sheet of the Excel file
+    private final int maxRowsPerSheet;
+    // continue in a new Excel file instead of a new sheet, if a sheet is full
+    private final boolean splitIntoFiles;
+    // write the cell values into the shared strings table of the workbook instead of inline, the table is held in memory
+    private final boolean sharedStrings;
+    // number of rows of the Excel file kept in memory before they are flushed into a temporary file
+    private final int rowAccessWindow;
+    // compress the temporary files of the Excel file
+    private final boolean compressTempFiles;
+    // folder for the temporary files of the Excel file and the zip file, empty to use the default temporary folder
+    private final String tempFolder;
+    // number of images to copy in parallel
+    private final int copyThreads;
+    // maximum number of megabytes per second to copy, 0 for no limit
+    private final long copyBandwidth;
+    // time window like 07:00-19:00 where the bandwidth is limited, empty to limit it all day
+    private final String copyLimitedHours;
+    // create hard links instead of copies, if the export folder is on the same file system as the images. A linked file shares its content with
+    // the original, a change in the export folder changes the image of the process as well
+    private final boolean linkImages;
+    // number of projects exported at the same time, further exports wait
+    private final int maxConcurrentExports;
+
+    /**
+     * Read the settings of a project
+     *
+     * @param config the configuration block of the project or null, to use the default values
+     * @param projectName the project to export
+     * @param includeAllFinishedProcesses true to export processes where the step to close is already closed as well
+     * @param exportFolder the folder to write the export into, if it is blank the configured folder is used
+     */
+    public ExportSettings(HierarchicalConfiguration config, String projectName, boolean includeAllFinishedProcesses, String exportFolder) {
+        if (config == null) {
+            config = new HierarchicalConfiguration();
+            config.setExpressionEngine(new XPathExpressionEngine());
+        }
+        this.projectName = projectName;
+        this.includeAllFinishedProcesses = includeAllFinishedProcesses;
+        this.exportFolder = StringUtils.isBlank(exportFolder) ? config.getString("/exportDirectory") : exportFolder;
+        finishStepName = config.getString("/finishedStepName");
+        closeStepName = config.getString("/closeStepName");
+        imageFolder = config.getString("/imageFolder", "media");
+        allowZipDownload = config.getBoolean("/allowZipDownload", true);
+        streamImagesIntoZip = config.getBoolean("/streamImagesIntoZip", false);
+        zipThreads = Math.max(1, config.getInt("/zipThreads", Runtime.getRuntime().availableProcessors()));
+        List<Object> storedExtensions = config.getList("/storedExtension");
+        if (storedExtensions.isEmpty()) {
+            compressionPolicy = ZipCompressionPolicy.defaultPolicy();
+        } else {
+            compressionPolicy = new ZipCompressionPolicy(storedExtensions.stream().map(String::valueOf).collect(Collectors.toList()));
+        }
+        collectorThreads = Math.max(1, config.getInt("/collectorThreads", Runtime.getRuntime().availableProcessors()));
+        publisherCacheSize = Math.max(1, config.getInt("/publisherCacheSize", 1000));
+        authorityStoreDays = config.getInt("/authorityStoreDays", 30);
+        viafThreads = Math.max(1, config.getInt("/viafThreads", 4));
+        viafTimeout = Math.max(1, config.getInt("/viafTimeout", 30));
+        convertImages = config.getBoolean("/imageConversion/@enabled", false);
+        conversionDpi = Math.max(1, config.getInt("/imageConversion/dpi", 150));
+        conversionMaxFileSize = Math.max(1, config.getLong("/imageConversion/maxFileSize", 1024 * 1024));
+        conversionMinQuality = config.getFloat("/imageConversion/minQuality", 0.3f);
+        conversionMaxQuality = config.getFloat("/imageConversion/maxQuality", 0.9f);
+        conversionMaxPasses = Math.max(2, config.getInt("/imageConversion/maxPasses", 6));
+        conversionThreads = Math.max(1, config.getInt("/imageConversion/threads", Runtime.getRuntime().availableProcessors()));
+        conversionCacheSize = config.getLong("/imageConversion/cacheSize", 10240);
+        incrementalExport = config.getBoolean("/incrementalExport", true);
+        fastMetsReader = config.getBoolean("/fastMetsReader", true);
+        layout = SpreadsheetLayout.fromConfig(config);
+        sharedStrings = config.getBoolean("/sharedStrings", false);
+        maxRowsPerSheet = config.getInt("/maxRowsPerSheet", XlsxRowWriter.MAX_ROWS);
+        splitIntoFiles = !"sheet".equalsIgnoreCase(config.getString("/splitInto", "file"));
+        rowAccessWindow = Math.max(1, config.getInt("/rowAccessWindow", 20));
+        compressTempFiles = config.getBoolean("/compressTempFiles", true);
+        tempFolder = config.getString("/tempFolder", "");
+        copyThreads = Math.max(1, config.getInt("/imageCopy/threads", 4));
+        copyBandwidth = Math.max(0, config.getLong("/imageCopy/bandwidth", 0));
+        copyLimitedHours = config.getString("/imageCopy/limitedHours", "");
+        linkImages = config.getBoolean("/imageCopy/hardLinks", false);
+        maxConcurrentExports = Math.max(1, config.getInt("/maxConcurrentExports", ExportJobManager.DEFAULT_MAX_JOBS));
+        List<OutputFormat> formats = new ArrayList<>();
+        for (Object name : config.getList("/outputFormat")) {
+            OutputFormat format = OutputFormat.getByName(String.valueOf(name));
+            if (format == null) {
+                log.error("Unknown output format {}", name);
+            } else if (!formats.contains(format)) {
+                formats.add(format);
+            }
+        }
+        if (formats.isEmpty()) {
+            formats.add(OutputFormat.XLSX);
+        }
+        outputFormats = Collections.unmodifiableList(formats);
+    }
+
+    /**
+     * Get the settings which influence the exported files. If they change, the manifest of the last export cannot be used.
+     * <p>
+     * Data outside of the configuration is not part of the signature. The publisher vocabulary is read again for unchanged processes, other
+     * changes like a new ruleset need a full export, which is forced by deleting the manifest file.
+     *
+     * @param imageConverter the converter of the export or null, if the original images are exported
+     * @return the settings as a single string
+     */
+    public String getSignature(ImageConverter imageConverter) {
+        return finishStepName + "|" + imageFolder + "|" + !streamImagesIntoZip + "|"
+                + (imageConverter == null ? "original" : imageConverter.getParameters()) + "|" + layout.getSignature();
+    }
+}
@@ -0,0 +1,235 @@
+package de.intranda.goobi.plugins;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.LongConsumer;
+
+import de.intranda.goobi.plugins.ImageListing.FolderListing;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Creates the zip file of an exported project while the export is running. The images of each process are added by a separate thread as soon as the
+ * process is collected and its images are copied, the metadata files are added at the end. The zip file is written under a temporary name and
+ * renamed when it is complete, so that an incomplete file is never offered for download.
+ */
+@Log4j2
+public class ExportZip implements Closeable {
+
+    // marks the end of the processes in the queue
+    private static final ProcessMetadata END = new ProcessMetadata();
+
+    private final Path zipFile;
+    private final Path partFile;
+    private final Path projectFolder;
+    private final boolean streamImages;
+    private final ImageListing imageListing;
+    private final ImageConverter imageConverter;
+    private final ParallelZipWriter out;
+    // processes waiting to be added, blocks the export if the zip file is written slower than the images are copied
+    private final BlockingQueue<ProcessMetadata> queue;
+    private final Thread thread;
+    // first error while adding the images, the following processes are skipped
+    private volatile IOException error;
+    private boolean complete = false;
+
+    /**
+     * Start writing the zip file
+     *
+     * @param zipFile the zip file to create, an existing file gets replaced when the new one is complete
+     * @param projectFolder the export folder of the project, containing the metadata files
+     * @param streamImages true to read the images from the image folders of the processes, false if they are copied into the project folder
+     * @param imageListing the files of the image folders of the processes
+     * @param compressionPolicy decides which files are stored without compression
+     * @param zipThreads number of files to compress in parallel
+     * @param imageConverter creates the derivatives of the images read from the process folders, or null to add the original images
+     * @param entryListener gets the number of bytes of each entry written into the zip file, can be null
+     * @param queueSize number of processes which can wait to be added
+     * @param tempFolder folder for the temporary files of large compressed entries, null to use the default temporary folder
+     * @throws IOException if the zip file cannot be created
+     */
+    public ExportZip(Path zipFile, Path projectFolder, boolean streamImages, ImageListing imageListing, ZipCompressionPolicy compressionPolicy,
+            int zipThreads, ImageConverter imageConverter, LongConsumer entryListener, int queueSize, Path tempFolder) throws IOException {
+        log.info("Create zip file {}", zipFile);
+        this.zipFile = zipFile;
+        this.partFile = zipFile.resolveSibling(zipFile.getFileName() + ".part");
+        this.projectFolder = projectFolder;
+        this.streamImages = streamImages;
+        this.imageListing = imageListing;
+        this.imageConverter = imageConverter;
+        this.out = new ParallelZipWriter(partFile, compressionPolicy, zipThreads);
+        out.setEntryListener(entryListener);
+        out.setTempFolder(tempFolder);
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+        this.thread = new Thread(this::addProcesses, "projectexport-zip");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Add the images of a process. Waits, if too many processes are already waiting.
+     *
+     * @param process the collected metadata of the process, its images must be copied already if they are not streamed
+     * @throws InterruptedException
+     */
+    public void add(ProcessMetadata process) throws InterruptedException {
+        queue.put(process);
+    }
+
+    /**
+     * Wait until the images of all processes are added, then add the metadata files and complete the zip file
+     *
+     * @throws IOException if the zip file cannot be written
+     * @throws InterruptedException
+     */
+    public void finish() throws IOException, InterruptedException {
+        queue.put(END);
+        thread.join();
+        if (error != null) {
+            throw error;
+        }
+        // the process folders were added already
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(projectFolder)) {
+            for (Path entry : stream) {
+                if (!Files.isDirectory(entry)) {
+                    out.addFile(entry.getFileName().toString(), entry);
+                }
+            }
+        }
+        out.close();
+        Files.move(partFile, zipFile, StandardCopyOption.REPLACE_EXISTING);
+        complete = true;
+    }
+
+    /**
+     * Stop writing and remove the incomplete zip file, if {@link #finish()} was not called or failed
+     */
+    @Override
+    public void close() throws IOException {
+        if (complete) {
+            return;
+        }
+        thread.interrupt();
+        // the writer is not thread safe, it is only aborted after the zip thread stopped, even if this thread gets interrupted
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        // the pending entries and the central directory are not written into a file that gets deleted
+        out.abort();
+        try {
+            Files.deleteIfExists(partFile);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void addProcesses() {
+        try {
+            while (true) {
+                ProcessMetadata process = queue.take();
+                if (process == END) {
+                    return;
+                }
+                // after an error the queue is still emptied, so that the export is not blocked
+                try {
+                    if (error == null) {
+                        addProcess(process);
+                    }
+                } catch (IOException e) {
+                    log.error("Cannot add the images of process {} to zip file {}", process.getProcessTitle(), zipFile, e);
+                    error = e;
+                } finally {
+                    // the listing is not needed anymore, even if the images were not added
+                    if (streamImages && process.getImageFolderPath() != null) {
+                        imageListing.remove(Paths.get(process.getImageFolderPath()));
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // the export was cancelled
+        }
+    }
+
+    private void addProcess(ProcessMetadata process) throws IOException {
+        if (process.getFilenames() == null || process.getFilenames().isEmpty()) {
+            return;
+        }
+        String zipBasePath = process.getProcessTitle() + "/";
+        if (!streamImages) {
+            Path folder = projectFolder.resolve(process.getProcessTitle());
+            if (Files.isDirectory(folder)) {
+                zipFolder(zipBasePath, folder, out);
+            }
+            return;
+        }
+        if (process.getImageFolderPath() == null) {
+            return;
+        }
+        Path imageFolder = Paths.get(process.getImageFolderPath());
+        FolderListing listing = imageListing.get(imageFolder);
+        List<Path> files = listing.getFiles();
+        log.debug("Add {} files of process {} to zip file.", files.size(), process.getProcessTitle());
+        if (imageConverter != null) {
+            zipConvertedImages(zipBasePath, listing, out, imageConverter);
+        } else {
+            for (Path file : files) {
+                out.addFile(zipBasePath + file.getFileName(), file);
+            }
+        }
+    }
+
+    /**
+     * Add the derivatives of the images to the zip file. The images are converted by the worker threads of the zip writer, files which cannot be
+     * converted are added unchanged.
+     */
+    private static void zipConvertedImages(String zipBasePath, FolderListing listing, ParallelZipWriter out, ImageConverter imageConverter)
+            throws IOException {
+        List<Path> files = listing.getFiles();
+        List<String> targetNames = imageConverter.getTargetNames(listing.getFileNames());
+        for (int i = 0; i < files.size(); i++) {
+            Path entry = files.get(i);
+            String filename = entry.getFileName().toString();
+            int index = i;
+            if (imageConverter.canConvert(filename)) {
+                out.addContent(zipBasePath + targetNames.get(i), () -> imageConverter.getDerivative(listing, index));
+            } else {
+                out.addFile(zipBasePath + filename, entry);
+            }
+        }
+    }
+
+    /**
+     * zip a given folder and go into subfolders recursively
+     * 
+     * @param zipBasePath the basepath inside of the zip file
+     * @param path the folder to be run through
+     * @param out the zip writer
+     * @throws IOException
+     */
+    public static void zipFolder(String zipBasePath, Path path, ParallelZipWriter out) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+            for (Path entry : stream) {
+                if (Files.isDirectory(entry)) {
+                    String p = zipBasePath + entry.getFileName() + "/";
+                    zipFolder(p, entry, out);
+                } else {
+                    out.addFile(zipBasePath + entry.getFileName().toString(), entry);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Sends a file to the client with support for range requests, so that an interrupted download can be resumed. A single byte range is supported,
+ * requests for several ranges get the whole file. The data is transferred by the servlet container with sendfile if it supports it, or with
+ * {@link FileChannel#transferTo(long, long, WritableByteChannel)} otherwise, so the file is never buffered as a whole.
+ */
+@Log4j2
+public final class FileDownload {
+
+    // request attributes of the sendfile support of Tomcat
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    // marks a range which lies outside of the file
+    static final long[] UNSATISFIABLE = new long[0];
+
+    private FileDownload() {
+    }
+
+    /**
+     * Send a file as attachment
+     *
+     * @param file the file to send
+     * @param contentType the content type of the file
+     * @param request the request, may contain a Range and an If-Range header
+     * @param response the response to write the file into
+     * @throws IOException
+     */
+    public static void send(Path file, String contentType, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        long length = Files.size(file);
+        long lastModified = Files.getLastModifiedTime(file).toMillis();
+        String etag = getETag(length, lastModified);
+        response.setHeader("Accept-Ranges", "bytes");
+        response.setHeader("ETag", etag);
+        response.setDateHeader("Last-Modified", lastModified);
+        response.setContentType(contentType);
+        response.setHeader("Content-Disposition", "attachment; filename=\"" + file.getFileName() + "\"");
+
+        long start = 0;
+        long end = length - 1;
+        String rangeHeader = request.getHeader("Range");
+        if (rangeHeader != null && isRangeValid(request.getHeader("If-Range"), etag, lastModified)) {
+            long[] range = parseRange(rangeHeader, length);
+            if (range == UNSATISFIABLE) {
+                response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                response.setHeader("Content-Range", "bytes */" + length);
+                return;
+            }
+            if (range != null) {
+                start = range[0];
+                end = range[1];
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+            }
+        }
+        long count = end - start + 1;
+        response.setContentLengthLong(count);
+        if ("HEAD".equalsIgnoreCase(request.getMethod()) || count == 0) {
+            return;
+        }
+        log.debug("Send bytes {} to {} of {}", start, end, file);
+
+        if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+            // the container sends the file after the request was processed
+            request.setAttribute(SENDFILE_FILENAME, file.toAbsolutePath().toString());
+            request.setAttribute(SENDFILE_START, start);
+            request.setAttribute(SENDFILE_END, end + 1);
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            WritableByteChannel target = Channels.newChannel(response.getOutputStream());
+            long position = start;
+            while (position <= end) {
+                long transferred = channel.transferTo(position, end + 1 - position, target);
+                if (transferred <= 0) {
+                    throw new IOException("Cannot read " + file + " at position " + position);
+                }
+                position += transferred;
+            }
+        }
+    }
+
+    /**
+     * Create the entity tag of a file. It changes when the file gets replaced by a new export.
+     */
+    static String getETag(long length, long lastModified) {
+        return "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+    }
+
+    /**
+     * Check if the range can be sent. The range is ignored, if the If-Range header does not match the current file.
+     *
+     * @param ifRange the If-Range header or null
+     * @param etag the entity tag of the file
+     * @param lastModified the modification time of the file in milliseconds
+     * @return true if the range can be used
+     */
+    static boolean isRangeValid(String ifRange, String etag, long lastModified) {
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            // weak tags never match
+            return ifRange.equals(etag);
+        }
+        try {
+            long date = ZonedDateTime.parse(ifRange, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+            // the header has a resolution of seconds
+            return date / 1000 == lastModified / 1000;
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Parse the Range header of a request
+     *
+     * @param header the header value
+     * @param length the size of the file
+     * @return the first and last byte to send, null if the whole file is sent, or {@link #UNSATISFIABLE} if the range lies outside of the file
+     */
+    static long[] parseRange(String header, long length) {
+        if (!header.startsWith("bytes=")) {
+            return null;
+        }
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0 || spec.indexOf(',') >= 0) {
+            return null;
+        }
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            if (first.isEmpty()) {
+                // the last bytes of the file
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0 || length == 0) {
+                    return UNSATISFIABLE;
+                }
+                return new long[] { Math.max(0, length - suffix), length - 1 };
+            }
+            long start = Long.parseLong(first);
+            long end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+            if (start < 0 || end < start) {
+                return null;
+            }
+            if (start >= length) {
+                return UNSATISFIABLE;
+            }
+            return new long[] { start, Math.min(end, length - 1) };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,392 @@
+package de.intranda.goobi.plugins;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.apache.commons.lang3.StringUtils;
+
+import de.intranda.goobi.plugins.ImageListing.FolderListing;
+import de.sub.goobi.helper.StorageProvider;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Creates compressed JPEG derivatives of the images during the export. The images are scaled down to the configured resolution and encoded with
+ * the highest quality that keeps the file below the maximum size. The quality is found by a bisection with a limited number of encoding passes.
+ */
+@Log4j2
+public class ImageConverter implements Closeable {
+
+    private static final String JPEG_METADATA_FORMAT = "javax_imageio_jpeg_image_1.0";
+    // accept results with at least this share of the maximum size instead of searching further
+    private static final double GOOD_ENOUGH = 0.9;
+    // number of times the image gets scaled down, if even the lowest quality is too large
+    private static final int MAX_DOWNSCALE_STEPS = 3;
+
+    @Getter
+    private final int dpi;
+    @Getter
+    private final long maxFileSize;
+    private final float minQuality;
+    private final float maxQuality;
+    private final int maxPasses;
+    private final ExecutorService executor;
+    private final Set<String> readableSuffixes = new HashSet<>();
+    // derivatives of earlier exports, or null to convert all images
+    @Getter
+    @Setter
+    private DerivativeCache cache;
+
+    /**
+     *
+     * @param dpi target resolution, larger images are scaled down
+     * @param maxFileSize maximum size of a derivative in bytes
+     * @param minQuality lowest JPEG quality to use, between 0 and 1
+     * @param maxQuality highest JPEG quality to use, between 0 and 1
+     * @param maxPasses maximum number of encoding passes to find the quality
+     * @param threads number of images to convert in parallel when the images of a process are exported
+     */
+    public ImageConverter(int dpi, long maxFileSize, float minQuality, float maxQuality, int maxPasses, int threads) {
+        this.dpi = dpi;
+        this.maxFileSize = maxFileSize;
+        this.minQuality = Math.min(minQuality, maxQuality);
+        this.maxQuality = Math.max(minQuality, maxQuality);
+        this.maxPasses = Math.max(1, maxPasses);
+        this.executor = Executors.newFixedThreadPool(threads);
+        for (String suffix : ImageIO.getReaderFileSuffixes()) {
+            readableSuffixes.add(suffix.toLowerCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * Check if an image can be converted
+     *
+     * @param filename the name of the image
+     * @return true if the format can be read
+     */
+    public boolean canConvert(String filename) {
+        String extension = StringUtils.substringAfterLast(filename, ".").toLowerCase(Locale.ROOT);
+        return readableSuffixes.contains(extension);
+    }
+
+    /**
+     * Get the name of the derivative of an image
+     *
+     * @param filename name of the original image
+     * @return the name with the extension jpg
+     */
+    public static String getTargetName(String filename) {
+        int index = filename.lastIndexOf('.');
+        return (index > 0 ? filename.substring(0, index) : filename) + ".jpg";
+    }
+
+    /**
+     * Get the names of the files of a folder in the export. Images which can be converted get the extension jpg. If several files of the folder
+     * would get the same name this way, like 0001.tif and 0001.jpg, the converted images keep their original extension, like 0001.tif.jpg.
+     *
+     * @param filenames the names of all files of the folder
+     * @return the names in the export, in the same order
+     */
+    public List<String> getTargetNames(List<String> filenames) {
+        List<String> targetNames = new ArrayList<>(filenames.size());
+        Map<String, Integer> counts = new HashMap<>();
+        for (String filename : filenames) {
+            String targetName = canConvert(filename) ? getTargetName(filename) : filename;
+            targetNames.add(targetName);
+            counts.merge(targetName, 1, Integer::sum);
+        }
+        for (int i = 0; i < targetNames.size(); i++) {
+            String targetName = targetNames.get(i);
+            if (counts.get(targetName) > 1 && !targetName.equals(filenames.get(i))) {
+                targetNames.set(i, filenames.get(i) + ".jpg");
+            }
+        }
+        return targetNames;
+    }
+
+    /**
+     * Get the parameters of the conversion, derivatives created with different parameters are not reused
+     *
+     * @return the parameters as text
+     */
+    public String getParameters() {
+        return "dpi=" + dpi + ";maxFileSize=" + maxFileSize + ";quality=" + minQuality + "-" + maxQuality + ";passes=" + maxPasses;
+    }
+
+    /**
+     * Get the derivative of an image from the cache or convert it
+     *
+     * @param source the listing of the image folder
+     * @param index the index of the image to convert in the listing
+     * @return the JPEG encoded derivative
+     * @throws IOException if the image cannot be read
+     */
+    public byte[] getDerivative(FolderListing source, int index) throws IOException {
+        Path file = source.getFiles().get(index);
+        if (cache == null) {
+            return convert(file);
+        }
+        return cache.getContent(file, source.getSize(index), source.getLastModified(index), () -> convert(file));
+    }
+
+    /**
+     * Convert all images of a folder in parallel and write the derivatives into the target folder. Files which cannot be converted are copied.
+     *
+     * @param source the listing of the image folder
+     * @param target the destination folder, must exist
+     * @throws IOException
+     */
+    public void convertFiles(FolderListing source, Path target) throws IOException {
+        List<Integer> indexes = new ArrayList<>(source.getFiles().size());
+        for (int i = 0; i < source.getFiles().size(); i++) {
+            indexes.add(i);
+        }
+        convertFiles(source, indexes, target);
+    }
+
+    /**
+     * Convert the given images in parallel and write the derivatives into the target folder. Files which cannot be converted are copied.
+     *
+     * @param source the listing of the image folder
+     * @param indexes the indexes of the images to convert in the listing
+     * @param target the destination folder, must exist
+     * @throws IOException
+     */
+    public void convertFiles(FolderListing source, Collection<Integer> indexes, Path target) throws IOException {
+        // the names depend on all files of the folder, not only on the converted ones
+        List<String> targetNames = getTargetNames(source.getFileNames());
+        List<Future<Void>> futures = new ArrayList<>();
+        for (int index : indexes) {
+            Path file = source.getFiles().get(index);
+            String filename = file.getFileName().toString();
+            Path targetFile = target.resolve(targetNames.get(index));
+            futures.add(executor.submit(() -> {
+                if (canConvert(filename) && cache != null) {
+                    cache.export(file, source.getSize(index), source.getLastModified(index), () -> convert(file), targetFile);
+                } else if (canConvert(filename)) {
+                    byte[] derivative = convert(file);
+                    Files.write(targetFile, derivative);
+                } else {
+                    StorageProvider.getInstance().copyFile(file, targetFile);
+                }
+                return null;
+            }));
+        }
+        IOException error = null;
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                log.error("Error converting image into folder {}", target, e.getCause());
+                if (error == null) {
+                    error = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Create the derivative of an image
+     *
+     * @param file the image to convert
+     * @return the JPEG encoded derivative
+     * @throws IOException if the image cannot be read
+     */
+    public byte[] convert(Path file) throws IOException {
+        BufferedImage image = readScaled(file);
+        byte[] result = null;
+        for (int step = 0; step <= MAX_DOWNSCALE_STEPS; step++) {
+            result = encodeWithMaxSize(image);
+            if (result.length <= maxFileSize) {
+                return result;
+            }
+            // even the lowest quality is too large, reduce the size proportionally to the missing compression
+            double factor = Math.sqrt((double) maxFileSize / result.length) * 0.95;
+            image = scale(image, (int) (image.getWidth() * factor), (int) (image.getHeight() * factor));
+        }
+        log.warn("Derivative of {} is larger than {} bytes", file, maxFileSize);
+        return result;
+    }
+
+    /**
+     * Find the highest quality below the maximum size. Returns the encoding with the lowest quality, if no quality fits.
+     */
+    private byte[] encodeWithMaxSize(BufferedImage image) throws IOException {
+        byte[] best = encode(image, maxQuality);
+        if (best.length <= maxFileSize) {
+            return best;
+        }
+        byte[] smallest = encode(image, minQuality);
+        if (smallest.length > maxFileSize) {
+            return smallest;
+        }
+        best = smallest;
+        float low = minQuality;
+        float high = maxQuality;
+        // two passes are already used for the bounds
+        for (int pass = 2; pass < maxPasses && best.length < maxFileSize * GOOD_ENOUGH; pass++) {
+            float quality = (low + high) / 2;
+            byte[] encoded = encode(image, quality);
+            if (encoded.length <= maxFileSize) {
+                best = encoded;
+                low = quality;
+            } else {
+                high = quality;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Read the image and scale it down to the target resolution. Large reductions are done by subsampling while reading, to avoid decoding the
+     * full image into memory.
+     */
+    private BufferedImage readScaled(Path file) throws IOException {
+        try (InputStream in = StorageProvider.getInstance().newInputStream(file); ImageInputStream iis = ImageIO.createImageInputStream(in)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                throw new IOException("No image reader found for " + file);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, false);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                double sourceDpi = getResolution(reader.getImageMetadata(0));
+                double factor = sourceDpi > dpi ? dpi / sourceDpi : 1;
+                int targetWidth = Math.max(1, (int) Math.round(width * factor));
+                int targetHeight = Math.max(1, (int) Math.round(height * factor));
+
+                ImageReadParam param = reader.getDefaultReadParam();
+                int subsampling = (int) Math.floor(1 / factor);
+                if (subsampling > 1) {
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                }
+                BufferedImage image = reader.read(0, param);
+                if (image.getWidth() == targetWidth && image.getHeight() == targetHeight && isJpegCompatible(image)) {
+                    return image;
+                }
+                return scale(image, targetWidth, targetHeight);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Get the resolution from the standard image metadata
+     *
+     * @return the resolution in dpi or 0, if it is unknown
+     */
+    private static double getResolution(IIOMetadata metadata) {
+        if (metadata == null || !metadata.isStandardMetadataFormatSupported()) {
+            return 0;
+        }
+        IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree("javax_imageio_1.0");
+        IIOMetadataNode pixelSize = (IIOMetadataNode) root.getElementsByTagName("HorizontalPixelSize").item(0);
+        if (pixelSize == null) {
+            return 0;
+        }
+        try {
+            // size of a pixel in millimeters
+            double value = Double.parseDouble(pixelSize.getAttribute("value"));
+            return value > 0 ? 25.4 / value : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static boolean isJpegCompatible(BufferedImage image) {
+        return image.getType() == BufferedImage.TYPE_INT_RGB || image.getType() == BufferedImage.TYPE_3BYTE_BGR
+                || image.getType() == BufferedImage.TYPE_BYTE_GRAY;
+    }
+
+    private static BufferedImage scale(BufferedImage image, int width, int height) {
+        int type = image.getType() == BufferedImage.TYPE_BYTE_GRAY ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_INT_RGB;
+        BufferedImage scaled = new BufferedImage(Math.max(1, width), Math.max(1, height), type);
+        Graphics2D g = scaled.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(image, 0, 0, scaled.getWidth(), scaled.getHeight(), null);
+        } finally {
+            g.dispose();
+        }
+        return scaled;
+    }
+
+    private byte[] encode(BufferedImage image, float quality) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (OutputStream out = buffer; ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            IIOMetadata metadata = writer.getDefaultImageMetadata(new ImageTypeSpecifier(image), param);
+            IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(JPEG_METADATA_FORMAT);
+            IIOMetadataNode jfif = (IIOMetadataNode) root.getElementsByTagName("app0JFIF").item(0);
+            if (jfif != null) {
+                // resolution in dots per inch
+                jfif.setAttribute("resUnits", "1");
+                jfif.setAttribute("Xdensity", String.valueOf(dpi));
+                jfif.setAttribute("Ydensity", String.valueOf(dpi));
+                metadata.setFromTree(JPEG_METADATA_FORMAT, root);
+            }
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(image, null, metadata), param);
+        } finally {
+            writer.dispose();
+        }
+        return buffer.toByteArray();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        if (cache != null) {
+            log.info("Derivative cache: {} hits, {} misses, {} files with {} bytes", cache.getHits(), cache.getMisses(), cache.getCount(),
+                    cache.getSize());
+            cache.close();
+        }
+    }
+}
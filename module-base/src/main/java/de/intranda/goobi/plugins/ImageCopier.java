@@ -0,0 +1,120 @@
+package de.intranda.goobi.plugins;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import de.sub.goobi.helper.StorageProvider;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Copies the images of the processes into the export folder. The files are copied by a fixed number of threads shared by all processes, so the
+ * load on the storage does not depend on the number of processes collected in parallel. If possible, hard links are created instead of copies. The
+ * copied data can be limited to a number of bytes per second.
+ */
+@Log4j2
+public class ImageCopier implements Closeable {
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final ExecutorService executor;
+    // limits the copied bytes per second or null
+    private final BandwidthLimiter limiter;
+    // disabled after the first file which cannot be linked
+    private volatile boolean linkFiles;
+
+    /**
+     *
+     * @param threads number of files to copy in parallel
+     * @param limiter limits the copied bytes per second, null to copy at full speed
+     * @param linkFiles true to create hard links instead of copies, if the export folder is on the same file system as the images
+     */
+    public ImageCopier(int threads, BandwidthLimiter limiter, boolean linkFiles) {
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        this.limiter = limiter;
+        this.linkFiles = linkFiles;
+    }
+
+    /**
+     * Copy files into a folder and wait until all of them are copied
+     *
+     * @param files the files to copy
+     * @param target the existing folder to copy the files into
+     * @throws IOException if a file cannot be copied
+     */
+    public void copyFiles(List<Path> files, Path target) throws IOException {
+        List<Future<?>> futures = new ArrayList<>();
+        for (Path file : files) {
+            Path targetFile = target.resolve(file.getFileName().toString());
+            futures.add(executor.submit(() -> {
+                copyFile(file, targetFile);
+                return null;
+            }));
+        }
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while copying into " + target);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            // stop the remaining files of the folder, if one of them failed
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    void copyFile(Path source, Path target) throws IOException {
+        if (linkFiles) {
+            try {
+                Files.createLink(target, source);
+                return;
+            } catch (FileAlreadyExistsException e) {
+                // gets replaced by a copy
+            } catch (UnsupportedOperationException | IOException e) {
+                // the export folder is on another file system or the storage does not support links
+                log.info("Cannot create a hard link to {}, the images get copied: {}", source, e.getMessage());
+                linkFiles = false;
+            }
+        }
+        if (limiter == null) {
+            StorageProvider.getInstance().copyFile(source, target);
+            return;
+        }
+        try (InputStream in = StorageProvider.getInstance().newInputStream(source); OutputStream out = Files.newOutputStream(target)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                limiter.acquire(count);
+                out.write(buffer, 0, count);
+            }
+        }
+    }
+
+    public boolean isLinkFiles() {
+        return linkFiles;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,179 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import de.sub.goobi.config.ConfigurationHelper;
+import de.sub.goobi.helper.StorageProvider;
+import lombok.Getter;
+
+/**
+ * The files of the image folders of an export. Each folder is listed only once per export, the same listing is used for the fingerprint, the rows of
+ * the spreadsheet, the copy of the images and the zip file. On S3 each listing is a paginated remote call.
+ * <p>
+ * A local folder is listed together with the sizes and modification dates of its files. The listing of the StorageProvider on S3 only contains
+ * the paths, the attributes are requested for each file when they are needed.
+ */
+public class ImageListing {
+
+    private final Map<Path, FolderListing> folders = new ConcurrentHashMap<>();
+
+    /**
+     * Get the files of a folder. The folder is listed on the first call.
+     *
+     * @param folder the folder
+     * @return the files of the folder, sorted by name, empty if the folder does not exist
+     * @throws IOException
+     */
+    public FolderListing get(Path folder) throws IOException {
+        FolderListing listing = folders.get(folder);
+        if (listing == null) {
+            listing = FolderListing.read(folder);
+            FolderListing existing = folders.putIfAbsent(folder, listing);
+            if (existing != null) {
+                listing = existing;
+            }
+        }
+        return listing;
+    }
+
+    /**
+     * Forget the files of a folder, when they are not needed anymore during the export
+     *
+     * @param folder the folder
+     */
+    public void remove(Path folder) {
+        folders.remove(folder);
+    }
+
+    /**
+     * The files of a single folder. If the sizes and modification dates are not part of the listing, they are only requested when they are needed.
+     */
+    public static class FolderListing {
+
+        @Getter
+        private final List<Path> files;
+        private long[] sizes;
+        private long[] lastModified;
+
+        FolderListing(List<Path> files) {
+            this.files = Collections.unmodifiableList(files);
+        }
+
+        FolderListing(List<Path> files, long[] sizes, long[] lastModified) {
+            this(files);
+            this.sizes = sizes;
+            this.lastModified = lastModified;
+        }
+
+        static FolderListing read(Path folder) throws IOException {
+            if (!ConfigurationHelper.getInstance().useS3()) {
+                return readLocal(folder);
+            }
+            StorageProvider storage = StorageProvider.getInstance();
+            if (!storage.isFileExists(folder)) {
+                return new FolderListing(new ArrayList<>());
+            }
+            return new FolderListing(new ArrayList<>(storage.listFiles(folder.toString())));
+        }
+
+        /**
+         * List a local folder with the attributes of its files in a single pass. Like the StorageProvider, sub folders and hidden files are not
+         * listed and the files are sorted by name.
+         */
+        private static FolderListing readLocal(Path folder) throws IOException {
+            if (!Files.isDirectory(folder)) {
+                return new FolderListing(new ArrayList<>());
+            }
+            SortedMap<Path, BasicFileAttributes> entries = new TreeMap<>();
+            Files.walkFileTree(folder, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<Path>() {
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    if (!attributes.isDirectory() && !file.getFileName().toString().startsWith(".")) {
+                        entries.put(file, attributes);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            List<Path> files = new ArrayList<>(entries.size());
+            long[] fileSizes = new long[entries.size()];
+            long[] fileDates = new long[entries.size()];
+            for (Map.Entry<Path, BasicFileAttributes> entry : entries.entrySet()) {
+                fileSizes[files.size()] = entry.getValue().size();
+                fileDates[files.size()] = entry.getValue().lastModifiedTime().toMillis();
+                files.add(entry.getKey());
+            }
+            return new FolderListing(files, fileSizes, fileDates);
+        }
+
+        /**
+         * Get the names of the files
+         *
+         * @return a new list of the file names
+         */
+        public List<String> getFileNames() {
+            List<String> names = new ArrayList<>(files.size());
+            for (Path file : files) {
+                names.add(file.getFileName().toString());
+            }
+            return names;
+        }
+
+        public boolean isEmpty() {
+            return files.isEmpty();
+        }
+
+        /**
+         * Get the size of a file
+         *
+         * @param index the index of the file in {@link #getFiles()}
+         * @return the size in bytes
+         * @throws IOException
+         */
+        public long getSize(int index) throws IOException {
+            loadAttributes();
+            return sizes[index];
+        }
+
+        /**
+         * Get the modification date of a file
+         *
+         * @param index the index of the file in {@link #getFiles()}
+         * @return the modification date in milliseconds
+         * @throws IOException
+         */
+        public long getLastModified(int index) throws IOException {
+            loadAttributes();
+            return lastModified[index];
+        }
+
+        private synchronized void loadAttributes() throws IOException {
+            if (sizes != null) {
+                return;
+            }
+            StorageProvider storage = StorageProvider.getInstance();
+            long[] fileSizes = new long[files.size()];
+            long[] fileDates = new long[files.size()];
+            for (int i = 0; i < files.size(); i++) {
+                fileSizes[i] = storage.getFileSize(files.get(i));
+                fileDates[i] = storage.getLastModifiedDate(files.get(i));
+            }
+            lastModified = fileDates;
+            sizes = fileSizes;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package de.intranda.goobi.plugins;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Exports the images of the collected processes. The images are copied in the background while the rows of the next processes are written, each
+ * process is passed on to the zip file as soon as its images are copied. The number of processes waiting for their images is limited.
+ */
+@Log4j2
+public class ImageStage implements Closeable {
+
+    private final MetadataCollector collector;
+    // gets the processes after their images are exported, null if no zip file is created
+    private final ExportZip zip;
+    // null if the images are not copied but streamed into the zip file
+    private final ExecutorService executor;
+    private final Semaphore window;
+    @Getter
+    private volatile boolean error = false;
+
+    /**
+     *
+     * @param collector copies the images of a process
+     * @param copyImages true to copy the images into the export folder, false to pass the processes on to the zip file directly
+     * @param zip the zip file to add the processes to or null
+     * @param threads number of processes to copy in parallel
+     * @param windowSize number of processes which can wait for their images to be copied
+     */
+    public ImageStage(MetadataCollector collector, boolean copyImages, ExportZip zip, int threads, int windowSize) {
+        this.collector = collector;
+        this.zip = zip;
+        this.executor = copyImages ? Executors.newFixedThreadPool(Math.max(1, threads)) : null;
+        this.window = new Semaphore(Math.max(1, windowSize));
+    }
+
+    /**
+     * Export the images of a collected process. Waits, if too many processes are already waiting.
+     *
+     * @param data the collected metadata of the process
+     * @throws InterruptedException
+     */
+    public void add(ProcessMetadata data) throws InterruptedException {
+        if (executor == null) {
+            if (zip != null) {
+                zip.add(data);
+            }
+            return;
+        }
+        window.acquire();
+        executor.execute(() -> {
+            try {
+                collector.exportImages(data);
+                if (zip != null) {
+                    zip.add(data);
+                }
+            } catch (IOException e) {
+                log.error("Cannot export the images of process {}", data.getProcessTitle(), e);
+                error = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                window.release();
+            }
+        });
+    }
+
+    /**
+     * Wait until the images of all processes are exported
+     *
+     * @throws InterruptedException
+     */
+    public void finish() throws InterruptedException {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+            log.debug("Waiting for the images to be copied");
+        }
+    }
+
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.goobi.beans.Process;
+
+import de.intranda.goobi.plugins.ImageListing.FolderListing;
+import de.intranda.goobi.plugins.MetsFieldReader.MetsField;
+import de.intranda.goobi.plugins.MetsFieldReader.MetsFields;
+import de.intranda.goobi.plugins.SpreadsheetLayout.ColumnSource;
+import de.intranda.goobi.plugins.SpreadsheetLayout.SourceType;
+import de.sub.goobi.helper.StorageProvider;
+import de.sub.goobi.helper.exceptions.DAOException;
+import de.sub.goobi.helper.exceptions.SwapException;
+import de.sub.goobi.persistence.managers.ProcessManager;
+import lombok.extern.log4j.Log4j2;
+import ugh.dl.DigitalDocument;
+import ugh.dl.DocStruct;
+import ugh.dl.Fileformat;
+import ugh.dl.Metadata;
+import ugh.exceptions.PreferencesException;
+import ugh.exceptions.ReadException;
+
+/**
+ * Collects the metadata of a single process for the spreadsheet. Instances are stateless and can be used by several threads at the same time.
+ */
+@Log4j2
+public class MetadataCollector {
+
+    // metadata of the physical element used in the spreadsheet
+    private static final List<String> PHYSICAL_METADATA = Collections.singletonList("_representative");
+
+    private final String finishStepName;
+    private final String exportFolder;
+    private final String projectName;
+    private final String imageFolder;
+    private final boolean copyImages;
+    private final PublisherResolver publisherResolver;
+    private final ImageConverter imageConverter;
+    private final ImageCopier imageCopier;
+    // the files of the image folders, listed once per export
+    private final ImageListing imageListing;
+    private final ExportManifest previousExport;
+    private final SpreadsheetLayout layout;
+    // reads the metadata without the ruleset, null to always use the ruleset
+    private final MetsFieldReader metsReader;
+
+    /**
+     *
+     * @param finishStepName processes where this step is deactivated are skipped
+     * @param exportFolder the export destination
+     * @param projectName name of the exported project
+     * @param imageFolder the image folder to copy
+     * @param copyImages true if the images shall be copied into the export folder by {@link #exportImages(ProcessMetadata)}
+     * @param publisherResolver resolver for the other writing forms of the publishers, shared by all processes of the export
+     * @param imageConverter creates the derivatives of the copied images, or null to copy the original images
+     * @param imageCopier copies the original images, if they are not converted
+     * @param imageListing the files of the image folders, shared with the zip file
+     * @param previousExport the manifest of the last export, or null to collect all processes
+     * @param layout the columns of the spreadsheet, defines which metadata and properties are collected
+     * @param fastMetsReader true to read the metadata directly from the METS file instead of parsing it with the ruleset
+     */
+    public MetadataCollector(String finishStepName, String exportFolder, String projectName, String imageFolder, boolean copyImages,
+            PublisherResolver publisherResolver, ImageConverter imageConverter, ImageCopier imageCopier, ImageListing imageListing,
+            ExportManifest previousExport,
+            SpreadsheetLayout layout, boolean fastMetsReader) {
+        this.finishStepName = finishStepName;
+        this.exportFolder = exportFolder;
+        this.projectName = projectName;
+        this.imageFolder = imageFolder;
+        this.copyImages = copyImages;
+        this.publisherResolver = publisherResolver;
+        this.imageConverter = imageConverter;
+        this.imageCopier = imageCopier;
+        this.imageListing = imageListing;
+        this.previousExport = previousExport;
+        this.layout = layout;
+        this.metsReader = fastMetsReader ? new MetsFieldReader(layout.getMetadataTypes(), PHYSICAL_METADATA) : null;
+    }
+
+    /**
+     * Read the metadata of a process. If the process did not change since the last export, the metadata of the last export is returned. The images
+     * are copied separately by {@link #exportImages(ProcessMetadata)}, so that the rows can be written in the meantime.
+     *
+     * @param exportProcess the process to collect
+     * @return the collected metadata or null, if the process is not part of the export
+     * @throws ReadException
+     * @throws PreferencesException
+     * @throws IOException
+     * @throws SwapException
+     * @throws DAOException
+     */
+    public ProcessMetadata collect(ExportProcess exportProcess)
+            throws ReadException, PreferencesException, IOException, SwapException, DAOException {
+        // just use this process if the step to check is in valid status
+        if (exportProcess.isFinishStepDeactivated()) {
+            return null;
+        }
+        // the full process is only needed for the paths of the metadata file and the images
+        //do this so the metadata is not kept in memory for every process in the list
+        Process process = ProcessManager.getProcessById(exportProcess.getId());
+        Path tifFolder = Paths.get(process.getImagesTifDirectory(false));
+        Path imageFolderPath = Paths.get(process.getConfiguredImageFolder(imageFolder));
+        boolean collected = false;
+        try {
+            ProcessMetadata data = collect(exportProcess, process, imageListing.get(tifFolder), imageListing.get(imageFolderPath));
+            collected = true;
+            return data;
+        } finally {
+            // the listing of the image folder is kept for the copy or the zip file, unless the process could not be collected
+            if (!tifFolder.equals(imageFolderPath)) {
+                imageListing.remove(tifFolder);
+            }
+            if (!collected) {
+                imageListing.remove(imageFolderPath);
+            }
+        }
+    }
+
+    /**
+     * Copy or convert the images of a collected process into the export folder, if configured. The images of a process which did not change since
+     * the last export are not copied again.
+     *
+     * @param data the collected metadata of the process
+     * @throws IOException if an image cannot be copied
+     */
+    public void exportImages(ProcessMetadata data) throws IOException {
+        if (!copyImages) {
+            return;
+        }
+        Path imageFolderPath = Paths.get(data.getImageFolderPath());
+        try {
+            if (data.getFilenames() == null || data.getFilenames().isEmpty()) {
+                return;
+            }
+            Path target = Paths.get(exportFolder, projectName, data.getProcessTitle());
+            if (!Files.exists(target)) {
+                Files.createDirectories(target);
+                FolderListing listing = imageListing.get(imageFolderPath);
+                if (imageConverter != null) {
+                    imageConverter.convertFiles(listing, target);
+                } else {
+                    imageCopier.copyFiles(listing.getFiles(), target);
+                }
+            } else if (previousExport == null || previousExport.getUnchanged(data.getProcessId(), data.getFingerprint()) != data) {
+                updateImages(imageListing.get(imageFolderPath), target);
+            }
+        } finally {
+            imageListing.remove(imageFolderPath);
+        }
+    }
+
+    private ProcessMetadata collect(ExportProcess exportProcess, Process process, FolderListing tifFiles, FolderListing imageFiles)
+            throws ReadException, PreferencesException, IOException, SwapException, DAOException {
+        String fingerprint = createFingerprint(process, exportProcess, tifFiles, imageFiles);
+        if (previousExport != null) {
+            ProcessMetadata unchanged = previousExport.getUnchanged(process.getId(), fingerprint);
+            // the images must be copied again, if the folder was removed from the export directory
+            if (unchanged != null && (!copyImages || unchanged.getFilenames().isEmpty()
+                    || Files.exists(Paths.get(exportFolder, projectName, process.getTitel())))) {
+                log.debug("Process {} did not change since the last export", process.getTitel());
+                unchanged.setImageFolderPath(process.getConfiguredImageFolder(imageFolder));
+                // the vocabulary is not part of the fingerprint
+                enrichPublisher(unchanged);
+                return unchanged;
+            }
+        }
+        log.info("Collect metadata for process {}", process.getTitel());
+        ProcessMetadata data = new ProcessMetadata();
+        data.setProcessId(process.getId());
+        data.setProcessTitle(process.getTitel());
+        data.setFingerprint(fingerprint);
+        data.setImageFolderPath(process.getConfiguredImageFolder(imageFolder));
+
+        MetsFields fields = readMetadata(process);
+        for (MetsField md : fields.getPhysical()) {
+            if ("_representative".equals(md.getName())) {
+                data.setRepresentative(md.getValue());
+            }
+        }
+        // create row for each image
+        List<String> filenames = tifFiles.getFileNames();
+        data.setFilenames(filenames);
+        if (filenames.isEmpty()) {
+            return data;
+        }
+
+        // the properties were loaded together with the process list
+        String[] values = new String[layout.getSlotCount()];
+        layout.collectProcessValues(values, exportProcess);
+        for (MetsField md : fields.getLogical()) {
+            List<ColumnSource> sources = layout.getMetadataSources(md.getName());
+            if (sources == null) {
+                continue;
+            }
+            for (ColumnSource source : sources) {
+                if (source.getType() != SourceType.DERIVED) {
+                    source.collect(values, md.getValue());
+                } else if (StringUtils.isBlank(data.getPublisherMetadata())) {
+                    data.setPublisherMetadata(md.getValue());
+                    data.setPublisherAuthority(md.getAuthorityValue());
+                }
+            }
+        }
+        data.setValues(values);
+        enrichPublisher(data);
+        return data;
+    }
+
+    /**
+     * Export the publisher of the metadata file with the other writing forms from the vocabulary. The publisher of an unchanged process is enriched
+     * again, so that corrections in the vocabulary get exported.
+     *
+     * @param data the collected metadata of the process
+     */
+    private void enrichPublisher(ProcessMetadata data) {
+        data.setPublisherLat(StringUtils.defaultString(data.getPublisherMetadata()));
+        data.setPublisherOther("");
+        data.setPublisherViafUrl(null);
+        if (StringUtils.isNotBlank(data.getPublisherLat())) {
+            // once we found the publisher name get other writing forms from Vocabulary
+            publisherResolver.enrich(data, data.getPublisherAuthority());
+        }
+    }
+
+    /**
+     * Read the exported metadata of the top logical element and the physical element. The METS file is read directly if possible, the ruleset is
+     * only used if the file does not have the expected structure or the fast reader is disabled.
+     */
+    private MetsFields readMetadata(Process process) throws ReadException, PreferencesException, IOException, SwapException {
+        if (metsReader != null) {
+            try {
+                MetsFields fields = metsReader.read(Paths.get(process.getMetadataFilePath()));
+                if (fields != null) {
+                    return fields;
+                }
+                log.debug("Unexpected structure of the metadata file of process {}, use the ruleset", process.getTitel());
+            } catch (IOException e) {
+                log.warn("Cannot read the metadata file of process {} directly, use the ruleset", process.getTitel(), e);
+            }
+        }
+        Fileformat fileformat = process.readMetadataFile();
+        DigitalDocument digDoc = fileformat.getDigitalDocument();
+        return new MetsFields(toFields(digDoc.getLogicalDocStruct()), toFields(digDoc.getPhysicalDocStruct()));
+    }
+
+    private static List<MetsField> toFields(DocStruct docStruct) {
+        List<MetsField> fields = new ArrayList<>();
+        if (docStruct != null && docStruct.getAllMetadata() != null) {
+            for (Metadata md : docStruct.getAllMetadata()) {
+                fields.add(new MetsField(md.getType().getName(), md.getValue(), md.getAuthorityValue()));
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * Update the images of an earlier export. Only new and changed images are copied, images which do not exist anymore are deleted.
+     */
+    private void updateImages(FolderListing source, Path target) throws IOException {
+        // index of each expected file in the listing of the image folder
+        Map<String, Integer> expectedFiles = new HashMap<>();
+        List<Path> files = source.getFiles();
+        List<String> filenames = source.getFileNames();
+        if (imageConverter != null) {
+            filenames = imageConverter.getTargetNames(filenames);
+        }
+        for (int i = 0; i < filenames.size(); i++) {
+            expectedFiles.put(filenames.get(i), i);
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(target)) {
+            for (Path existing : stream) {
+                Integer index = expectedFiles.get(existing.getFileName().toString());
+                // the copy is newer than the image, if the image did not change since the last export
+                if (index != null && Files.getLastModifiedTime(existing).toMillis() >= source.getLastModified(index)) {
+                    expectedFiles.remove(existing.getFileName().toString());
+                } else {
+                    Files.delete(existing);
+                }
+            }
+        }
+        if (expectedFiles.isEmpty()) {
+            return;
+        }
+        log.debug("Update {} images in {}", expectedFiles.size(), target);
+        if (imageConverter != null) {
+            imageConverter.convertFiles(source, expectedFiles.values(), target);
+        } else {
+            List<Path> changedFiles = new ArrayList<>();
+            for (Integer index : expectedFiles.values()) {
+                changedFiles.add(files.get(index));
+            }
+            imageCopier.copyFiles(changedFiles, target);
+        }
+    }
+
+    /**
+     * Create a fingerprint of everything the export of a process depends on: the metadata file, the properties, the project fields and the
+     * names, sizes and modification dates of the images
+     */
+    private String createFingerprint(Process process, ExportProcess exportProcess, FolderListing tifFiles, FolderListing imageFiles)
+            throws IOException, SwapException, DAOException {
+        StringBuilder content = new StringBuilder();
+        content.append(process.getTitel()).append('\n');
+        content.append(StorageProvider.getInstance().getLastModifiedDate(Paths.get(process.getMetadataFilePath()))).append('\n');
+        for (String value : exportProcess.getPropertyValues()) {
+            content.append(value).append('\n');
+        }
+        content.append(exportProcess.getRightsOwner()).append('\n');
+        content.append(exportProcess.getRightsOwnerSite()).append('\n');
+        content.append(exportProcess.getRightsSponsor()).append('\n');
+        for (Path file : tifFiles.getFiles()) {
+            content.append(file.getFileName()).append('\n');
+        }
+        List<Path> images = imageFiles.getFiles();
+        for (int i = 0; i < images.size(); i++) {
+            content.append(images.get(i).getFileName())
+                    .append('\t')
+                    .append(imageFiles.getSize(i))
+                    .append('\t')
+                    .append(imageFiles.getLastModified(i))
+                    .append('\n');
+        }
+        return Checksums.sha256(content.toString());
+    }
+}
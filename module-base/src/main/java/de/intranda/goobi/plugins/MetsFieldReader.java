@@ -0,0 +1,226 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.lang3.StringUtils;
+
+import de.sub.goobi.helper.StorageProvider;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Reads selected metadata of the top logical and physical structure element directly from the internal METS file, without parsing the whole
+ * document against the ruleset. Only simple metadata is read, persons and groups are skipped. Like UGH, the top elements are the first div
+ * elements of the logical and physical structure maps, their DMDID attributes name the sections to read.
+ */
+public class MetsFieldReader {
+
+    private static final String METS_NAMESPACE = "http://www.loc.gov/METS/";
+    private static final String GOOBI_NAMESPACE = "http://meta.goobi.org/v1.5.1/";
+
+    private static final XMLInputFactory FACTORY = createFactory();
+
+    private final Set<String> logicalTypes;
+    private final Set<String> physicalTypes;
+    private final Set<String> types = new HashSet<>();
+
+    /**
+     *
+     * @param logicalTypes names of the metadata to read from the top logical element
+     * @param physicalTypes names of the metadata to read from the physical element
+     */
+    public MetsFieldReader(Collection<String> logicalTypes, Collection<String> physicalTypes) {
+        this.logicalTypes = new HashSet<>(logicalTypes);
+        this.physicalTypes = new HashSet<>(physicalTypes);
+        types.addAll(logicalTypes);
+        types.addAll(physicalTypes);
+    }
+
+    private static XMLInputFactory createFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        return factory;
+    }
+
+    /**
+     * Read the metadata from a METS file
+     *
+     * @param metsFile the internal METS file of a process
+     * @return the metadata in document order or null, if the file does not have the expected structure
+     * @throws IOException if the file cannot be read or parsed
+     */
+    public MetsFields read(Path metsFile) throws IOException {
+        try (InputStream in = StorageProvider.getInstance().newInputStream(metsFile)) {
+            XMLStreamReader reader = FACTORY.createXMLStreamReader(in);
+            try {
+                return read(reader);
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Cannot parse " + metsFile, e);
+        }
+    }
+
+    private MetsFields read(XMLStreamReader reader) throws XMLStreamException {
+        // all descriptive metadata sections are written before the structure maps, which tell the sections of the top elements
+        Map<String, List<MetsField>> sections = new HashMap<>();
+        String logicalId = null;
+        String physicalId = null;
+        boolean logicalRead = false;
+        boolean physicalRead = false;
+        while (reader.hasNext() && !(logicalRead && physicalRead)) {
+            if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+            if (isElement(reader, METS_NAMESPACE, "dmdSec")) {
+                String id = reader.getAttributeValue(null, "ID");
+                sections.put(id, readSection(reader, types));
+            } else if (isElement(reader, METS_NAMESPACE, "structMap")) {
+                String type = reader.getAttributeValue(null, "TYPE");
+                if ("LOGICAL".equals(type)) {
+                    logicalId = readTopSectionId(reader);
+                    logicalRead = true;
+                } else if ("PHYSICAL".equals(type)) {
+                    physicalId = readTopSectionId(reader);
+                    physicalRead = true;
+                }
+            }
+        }
+        // the section is missing e.g. if the metadata of an anchor is stored in a separate file, it is read with the ruleset then
+        if (logicalId == null || !sections.containsKey(logicalId)) {
+            return null;
+        }
+        List<MetsField> logical = select(sections.get(logicalId), logicalTypes);
+        List<MetsField> physical = new ArrayList<>();
+        if (physicalId != null && sections.containsKey(physicalId)) {
+            physical = select(sections.get(physicalId), physicalTypes);
+        }
+        return new MetsFields(logical, physical);
+    }
+
+    /**
+     * Get the first section referenced by the top div element of the current structMap element. The div element is skipped.
+     */
+    private static String readTopSectionId(XMLStreamReader reader) throws XMLStreamException {
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                // empty structure map
+                return null;
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                String dmdId = isElement(reader, METS_NAMESPACE, "div") ? reader.getAttributeValue(null, "DMDID") : null;
+                skipElement(reader);
+                return StringUtils.isBlank(dmdId) ? null : StringUtils.split(dmdId)[0];
+            }
+        }
+        return null;
+    }
+
+    private static List<MetsField> select(List<MetsField> section, Set<String> types) {
+        List<MetsField> fields = new ArrayList<>();
+        for (MetsField field : section) {
+            if (types.contains(field.getName())) {
+                fields.add(field);
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * Read the metadata of the current dmdSec element. Nested metadata of groups and persons is skipped.
+     */
+    private static List<MetsField> readSection(XMLStreamReader reader, Set<String> types) throws XMLStreamException {
+        List<MetsField> fields = new ArrayList<>();
+        int depth = 1;
+        while (depth > 0 && reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                if (isElement(reader, GOOBI_NAMESPACE, "metadata")) {
+                    String name = reader.getAttributeValue(null, "name");
+                    String type = reader.getAttributeValue(null, "type");
+                    if (type == null && types.contains(name)) {
+                        String authorityValue = reader.getAttributeValue(null, "valueURI");
+                        fields.add(new MetsField(name, readText(reader), authorityValue));
+                    } else {
+                        skipElement(reader);
+                    }
+                } else {
+                    depth++;
+                }
+            }
+        }
+        return fields;
+    }
+
+    private static String readText(XMLStreamReader reader) throws XMLStreamException {
+        StringBuilder text = new StringBuilder();
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            } else if (depth == 1 && (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA)) {
+                text.append(reader.getText());
+            }
+        }
+        return text.toString();
+    }
+
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    private static boolean isElement(XMLStreamReader reader, String namespace, String localName) {
+        return localName.equals(reader.getLocalName()) && namespace.equals(reader.getNamespaceURI());
+    }
+
+    /**
+     * The metadata read from a METS file
+     */
+    @Getter
+    @AllArgsConstructor
+    public static class MetsFields {
+        private List<MetsField> logical;
+        private List<MetsField> physical;
+    }
+
+    /**
+     * A single metadata value
+     */
+    @Getter
+    @AllArgsConstructor
+    public static class MetsField {
+        private String name;
+        private String value;
+        private String authorityValue;
+    }
+}
@@ -0,0 +1,40 @@
+package de.intranda.goobi.plugins;
+
+import java.util.Locale;
+
+import org.apache.commons.lang3.StringUtils;
+
+import lombok.Getter;
+
+/**
+ * The formats of the metadata file
+ */
+public enum OutputFormat {
+
+    XLSX("metadata.xlsx"),
+    CSV("metadata.csv"),
+    TSV("metadata.tsv"),
+    ARROW("metadata.arrow");
+
+    @Getter
+    private final String fileName;
+
+    OutputFormat(String fileName) {
+        this.fileName = fileName;
+    }
+
+    /**
+     * Get the format by its name
+     *
+     * @param name the name of the format, case insensitive
+     * @return the format or null, if the name is unknown
+     */
+    public static OutputFormat getByName(String name) {
+        for (OutputFormat format : values()) {
+            if (format.name().equals(StringUtils.trimToEmpty(name).toUpperCase(Locale.ENGLISH))) {
+                return format;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,604 @@
+package de.intranda.goobi.plugins;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import de.sub.goobi.helper.StorageProvider;
+import lombok.Setter;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Writes a zip file, where the checksums and the compression of the entries are calculated by several threads in parallel. The entries are
+ * appended in the order they were added. Zip64 records are written when the archive gets larger than 4 GB or contains more than 65535 entries.
+ */
+@Log4j2
+public class ParallelZipWriter implements Closeable {
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+    // larger files are compressed into a temporary file instead of memory
+    private static final long MAX_IN_MEMORY_SIZE = 16L * 1024 * 1024;
+    // maximum size of the entries read into memory before they are written, the next entry to write is always read
+    private static final long MAX_PENDING_BYTES = 64L * 1024 * 1024;
+
+    private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+    private static final int ZIP64_ENTRY_LIMIT = 0xFFFF;
+    private static final int VERSION_DEFAULT = 20;
+    private static final int VERSION_ZIP64 = 45;
+    // bit 11: file names are encoded in UTF-8
+    private static final int FLAG_UTF8 = 0x0800;
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+
+    // offset of the checksum in the local file header
+    private static final int LOCAL_HEADER_CRC_OFFSET = 14;
+
+    private final FileChannel channel;
+    private final CountingOutputStream out;
+    private final ZipCompressionPolicy policy;
+    private final ExecutorService executor;
+    // maximum number of entries waiting to be written
+    private final int windowSize;
+    private final Deque<Future<PreparedEntry>> pending = new ArrayDeque<>();
+    // the entries are numbered in the order they are added, the memory of the entries is counted in the worker threads
+    private final Object memoryLock = new Object();
+    private long addedEntries = 0;
+    private long writtenEntries = 0;
+    private long pendingBytes = 0;
+    private final List<PreparedEntry> centralDirectory = new ArrayList<>();
+    private final byte[] copyBuffer = new byte[BUFFER_SIZE];
+    private boolean closed = false;
+    // gets the number of bytes of each entry written into the zip file
+    @Setter
+    private LongConsumer entryListener;
+    // folder for the compressed large files, null to use the default temporary folder
+    @Setter
+    private Path tempFolder;
+
+    /**
+     *
+     * @param zipFile the file to write, an existing file gets replaced
+     * @param policy decides which files are stored without compression
+     * @param threads number of files to prepare in parallel
+     * @throws IOException if the file cannot be created
+     */
+    public ParallelZipWriter(Path zipFile, ZipCompressionPolicy policy, int threads) throws IOException {
+        // the checksums of large stored files are written into their local headers afterwards
+        this.channel = FileChannel.open(zipFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        this.out = new CountingOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE));
+        this.policy = policy;
+        this.executor = Executors.newFixedThreadPool(threads);
+        // small files can be prepared far ahead, the memory is limited by the size of the entries
+        this.windowSize = threads * 16;
+    }
+
+    /**
+     * Add a file to the zip file. The file is prepared in the background, this method only blocks if too many files are waiting to be written.
+     *
+     * @param entryName the name inside of the zip file
+     * @param file the file to add
+     * @throws IOException if a previously added file could not be written
+     */
+    public void addFile(String entryName, Path file) throws IOException {
+        boolean stored = policy.isStored(entryName);
+        long sequence = addedEntries++;
+        pending.add(executor.submit(() -> prepare(sequence, entryName, file, stored)));
+        while (pending.size() > windowSize) {
+            writeNext();
+        }
+    }
+
+    /**
+     * Add generated content to the zip file. The content is created in the background by one of the worker threads.
+     *
+     * @param entryName the name inside of the zip file
+     * @param content creates the data of the entry
+     * @throws IOException if a previously added file could not be written
+     */
+    public void addContent(String entryName, Callable<byte[]> content) throws IOException {
+        boolean stored = policy.isStored(entryName);
+        long sequence = addedEntries++;
+        pending.add(executor.submit(() -> {
+            byte[] data = content.call();
+            reserveMemory(sequence, data.length);
+            return prepare(entryName, data, stored, data.length);
+        }));
+        while (pending.size() > windowSize) {
+            writeNext();
+        }
+    }
+
+    /**
+     * Write all remaining entries and the central directory
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            while (!pending.isEmpty()) {
+                writeNext();
+            }
+            writeCentralDirectory();
+            out.flush();
+        } finally {
+            // remove temporary files of entries not written because of an error
+            discardPending();
+            out.close();
+        }
+    }
+
+    /**
+     * Stop writing without completing the zip file. The entries which are not written yet are discarded and the central directory is not written,
+     * the incomplete file must be deleted by the caller. Must not be called while another thread adds entries.
+     */
+    public void abort() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        discardPending();
+        // the buffered data is not needed anymore
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.debug("Cannot close incomplete zip file", e);
+        }
+    }
+
+    /**
+     * Stop the worker threads and delete the temporary files of the prepared entries. Waits until the running workers stopped, so that they do not
+     * create temporary files afterwards.
+     */
+    private void discardPending() {
+        executor.shutdownNow();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        for (Future<PreparedEntry> future : pending) {
+            if (future.isDone() && !future.isCancelled()) {
+                try {
+                    future.get().deleteTempFile();
+                } catch (InterruptedException | ExecutionException e) {
+                    // nothing to clean up
+                }
+            } else {
+                // never started
+                future.cancel(false);
+            }
+        }
+        pending.clear();
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeNext() throws IOException {
+        PreparedEntry entry;
+        try {
+            entry = pending.poll().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+        try {
+            entry.offset = out.getCount();
+            writeLocalHeader(entry);
+            if (entry.content != null) {
+                out.write(entry.content);
+            } else if (entry.tempFile != null) {
+                try (InputStream in = Files.newInputStream(entry.tempFile)) {
+                    in.transferTo(out);
+                }
+            } else {
+                writeStoredFile(entry);
+            }
+        } finally {
+            // keep only the values needed for the central directory
+            entry.content = null;
+            entry.deleteTempFile();
+            releaseMemory(entry);
+        }
+        centralDirectory.add(entry);
+        if (entryListener != null) {
+            entryListener.accept(out.getCount() - entry.offset);
+        }
+    }
+
+    /**
+     * Copy a large stored file into the zip file and calculate its checksum on the way. The file is read only once, the checksum gets written
+     * into the local header afterwards.
+     */
+    private void writeStoredFile(PreparedEntry entry) throws IOException {
+        CRC32 crc = new CRC32();
+        long count = 0;
+        try (InputStream in = StorageProvider.getInstance().newInputStream(entry.file)) {
+            int read;
+            while ((read = in.read(copyBuffer)) > 0) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Writing the zip file was interrupted");
+                }
+                crc.update(copyBuffer, 0, read);
+                out.write(copyBuffer, 0, read);
+                count += read;
+            }
+        }
+        if (count != entry.size) {
+            throw new IOException("File " + entry.file + " changed while it was added to the zip file");
+        }
+        entry.crc = crc.getValue();
+        out.flush();
+        ByteBuffer value = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt((int) entry.crc);
+        value.flip();
+        long position = entry.offset + LOCAL_HEADER_CRC_OFFSET;
+        while (value.hasRemaining()) {
+            position += channel.write(value, position);
+        }
+    }
+
+    /**
+     * Wait until the data of an entry can be kept in memory. Runs in a worker thread. The next entry to write never waits, so the entries
+     * waiting for memory are written eventually.
+     *
+     * @param sequence the number of the entry
+     * @param bytes the size of the data kept in memory
+     */
+    private void reserveMemory(long sequence, long bytes) throws IOException {
+        synchronized (memoryLock) {
+            while (sequence != writtenEntries && pendingBytes + bytes > MAX_PENDING_BYTES) {
+                try {
+                    memoryLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                }
+            }
+            pendingBytes += bytes;
+        }
+    }
+
+    private void releaseMemory(PreparedEntry entry) {
+        synchronized (memoryLock) {
+            pendingBytes -= entry.reservedBytes;
+            writtenEntries++;
+            memoryLock.notifyAll();
+        }
+    }
+
+    /**
+     * Read the file, calculate the checksum and compress it if necessary. Runs in a worker thread.
+     */
+    private PreparedEntry prepare(long sequence, String entryName, Path file, boolean stored) throws IOException {
+        PreparedEntry entry = new PreparedEntry();
+        entry.name = entryName.getBytes(StandardCharsets.UTF_8);
+        entry.file = file;
+        entry.method = stored ? METHOD_STORED : METHOD_DEFLATED;
+        entry.dosTime = toDosTime(Files.getLastModifiedTime(file).toMillis());
+        long size = Files.size(file);
+        if (size <= MAX_IN_MEMORY_SIZE) {
+            reserveMemory(sequence, size);
+            entry.reservedBytes = size;
+        }
+        CRC32 crc = new CRC32();
+        byte[] b = new byte[BUFFER_SIZE];
+        if (stored) {
+            if (size <= MAX_IN_MEMORY_SIZE) {
+                try (InputStream in = StorageProvider.getInstance().newInputStream(file)) {
+                    entry.content = in.readAllBytes();
+                }
+                crc.update(entry.content);
+                size = entry.content.length;
+                entry.crc = crc.getValue();
+            }
+            // a larger file is read when it is written, the checksum is calculated then
+            entry.size = size;
+            entry.compressedSize = size;
+        } else {
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            ByteArrayOutputStream buffer = null;
+            OutputStream target;
+            if (size <= MAX_IN_MEMORY_SIZE) {
+                buffer = new ByteArrayOutputStream((int) Math.max(32, size / 2));
+                target = buffer;
+            } else {
+                entry.tempFile = createTempFile();
+                target = Files.newOutputStream(entry.tempFile);
+            }
+            long uncompressed = 0;
+            try (InputStream in = StorageProvider.getInstance().newInputStream(file);
+                    DeflaterOutputStream dos = new DeflaterOutputStream(target, deflater, BUFFER_SIZE)) {
+                int count;
+                while ((count = in.read(b)) > 0) {
+                    // a large file is not compressed completely, if the zip file is aborted
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new InterruptedIOException("Writing the zip file was interrupted");
+                    }
+                    crc.update(b, 0, count);
+                    dos.write(b, 0, count);
+                    uncompressed += count;
+                }
+            } catch (IOException e) {
+                entry.deleteTempFile();
+                throw e;
+            } finally {
+                deflater.end();
+            }
+            entry.size = uncompressed;
+            if (buffer != null) {
+                entry.content = buffer.toByteArray();
+                entry.compressedSize = entry.content.length;
+            } else {
+                entry.compressedSize = Files.size(entry.tempFile);
+            }
+            entry.crc = crc.getValue();
+        }
+        return entry;
+    }
+
+    private Path createTempFile() throws IOException {
+        if (tempFolder == null) {
+            return Files.createTempFile("projectexport", ".deflate");
+        }
+        Files.createDirectories(tempFolder);
+        return Files.createTempFile(tempFolder, "projectexport", ".deflate");
+    }
+
+    /**
+     * Calculate the checksum of generated content and compress it if necessary. Runs in a worker thread.
+     */
+    private static PreparedEntry prepare(String entryName, byte[] data, boolean stored, long reservedBytes) {
+        PreparedEntry entry = new PreparedEntry();
+        entry.reservedBytes = reservedBytes;
+        entry.name = entryName.getBytes(StandardCharsets.UTF_8);
+        entry.method = stored ? METHOD_STORED : METHOD_DEFLATED;
+        entry.dosTime = toDosTime(System.currentTimeMillis());
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        entry.crc = crc.getValue();
+        entry.size = data.length;
+        if (stored) {
+            entry.content = data;
+        } else {
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            try {
+                deflater.setInput(data);
+                deflater.finish();
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream(Math.max(32, data.length / 2));
+                byte[] b = new byte[BUFFER_SIZE];
+                while (!deflater.finished()) {
+                    int count = deflater.deflate(b);
+                    buffer.write(b, 0, count);
+                }
+                entry.content = buffer.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+        entry.compressedSize = entry.content.length;
+        return entry;
+    }
+
+    private void writeLocalHeader(PreparedEntry entry) throws IOException {
+        boolean zip64 = entry.size >= ZIP64_LIMIT || entry.compressedSize >= ZIP64_LIMIT;
+        writeInt(0x04034b50L);
+        writeShort(zip64 ? VERSION_ZIP64 : VERSION_DEFAULT);
+        writeShort(FLAG_UTF8);
+        writeShort(entry.method);
+        writeInt(entry.dosTime);
+        writeInt(entry.crc);
+        writeInt(zip64 ? ZIP64_LIMIT : entry.compressedSize);
+        writeInt(zip64 ? ZIP64_LIMIT : entry.size);
+        writeShort(entry.name.length);
+        writeShort(zip64 ? 20 : 0);
+        out.write(entry.name);
+        if (zip64) {
+            writeShort(0x0001);
+            writeShort(16);
+            writeLong(entry.size);
+            writeLong(entry.compressedSize);
+        }
+    }
+
+    private void writeCentralDirectory() throws IOException {
+        long centralDirectoryOffset = out.getCount();
+        for (PreparedEntry entry : centralDirectory) {
+            boolean sizeZip64 = entry.size >= ZIP64_LIMIT;
+            boolean compressedSizeZip64 = entry.compressedSize >= ZIP64_LIMIT;
+            boolean offsetZip64 = entry.offset >= ZIP64_LIMIT;
+            int extraLength = (sizeZip64 ? 8 : 0) + (compressedSizeZip64 ? 8 : 0) + (offsetZip64 ? 8 : 0);
+            boolean zip64 = extraLength > 0;
+
+            writeInt(0x02014b50L);
+            writeShort(zip64 ? VERSION_ZIP64 : VERSION_DEFAULT);
+            writeShort(zip64 ? VERSION_ZIP64 : VERSION_DEFAULT);
+            writeShort(FLAG_UTF8);
+            writeShort(entry.method);
+            writeInt(entry.dosTime);
+            writeInt(entry.crc);
+            writeInt(compressedSizeZip64 ? ZIP64_LIMIT : entry.compressedSize);
+            writeInt(sizeZip64 ? ZIP64_LIMIT : entry.size);
+            writeShort(entry.name.length);
+            writeShort(zip64 ? extraLength + 4 : 0);
+            // comment length, disk number, internal and external attributes
+            writeShort(0);
+            writeShort(0);
+            writeShort(0);
+            writeInt(0);
+            writeInt(offsetZip64 ? ZIP64_LIMIT : entry.offset);
+            out.write(entry.name);
+            if (zip64) {
+                writeShort(0x0001);
+                writeShort(extraLength);
+                if (sizeZip64) {
+                    writeLong(entry.size);
+                }
+                if (compressedSizeZip64) {
+                    writeLong(entry.compressedSize);
+                }
+                if (offsetZip64) {
+                    writeLong(entry.offset);
+                }
+            }
+        }
+        long centralDirectoryEnd = out.getCount();
+        long centralDirectorySize = centralDirectoryEnd - centralDirectoryOffset;
+        int entries = centralDirectory.size();
+
+        if (entries >= ZIP64_ENTRY_LIMIT || centralDirectoryOffset >= ZIP64_LIMIT || centralDirectorySize >= ZIP64_LIMIT) {
+            // zip64 end of central directory record
+            writeInt(0x06064b50L);
+            writeLong(44);
+            writeShort(VERSION_ZIP64);
+            writeShort(VERSION_ZIP64);
+            writeInt(0);
+            writeInt(0);
+            writeLong(entries);
+            writeLong(entries);
+            writeLong(centralDirectorySize);
+            writeLong(centralDirectoryOffset);
+            // zip64 end of central directory locator
+            writeInt(0x07064b50L);
+            writeInt(0);
+            writeLong(centralDirectoryEnd);
+            writeInt(1);
+        }
+        // end of central directory record
+        writeInt(0x06054b50L);
+        writeShort(0);
+        writeShort(0);
+        writeShort(Math.min(entries, ZIP64_ENTRY_LIMIT));
+        writeShort(Math.min(entries, ZIP64_ENTRY_LIMIT));
+        writeInt(Math.min(centralDirectorySize, ZIP64_LIMIT));
+        writeInt(Math.min(centralDirectoryOffset, ZIP64_LIMIT));
+        writeShort(0);
+    }
+
+    private void writeShort(int value) throws IOException {
+        out.write(value & 0xFF);
+        out.write((value >>> 8) & 0xFF);
+    }
+
+    private void writeInt(long value) throws IOException {
+        writeShort((int) (value & 0xFFFF));
+        writeShort((int) ((value >>> 16) & 0xFFFF));
+    }
+
+    private void writeLong(long value) throws IOException {
+        writeInt(value & 0xFFFFFFFFL);
+        writeInt(value >>> 32);
+    }
+
+    /**
+     * Convert a timestamp into the MS-DOS date and time format used in zip files
+     */
+    static long toDosTime(long millis) {
+        LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+        if (time.getYear() < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return ((long) (time.getYear() - 1980) << 25) | ((long) time.getMonthValue() << 21) | ((long) time.getDayOfMonth() << 16)
+                | ((long) time.getHour() << 11) | ((long) time.getMinute() << 5) | (time.getSecond() >> 1);
+    }
+
+    /**
+     * A file with checksum and sizes, ready to be written into the zip file
+     */
+    private static class PreparedEntry {
+        private byte[] name;
+        private Path file;
+        private int method;
+        private long dosTime;
+        private long crc;
+        private long size;
+        private long compressedSize;
+        private long offset;
+        // compressed or stored data, if it fits into memory. Large stored files are read from their source when they are written
+        private byte[] content;
+        // compressed data of large files
+        private Path tempFile;
+        // memory counted for the entry until it is written
+        private long reservedBytes;
+
+        private void deleteTempFile() {
+            if (tempFile != null) {
+                try {
+                    Files.deleteIfExists(tempFile);
+                } catch (IOException e) {
+                    log.warn("Cannot delete temporary file {}", tempFile);
+                }
+                tempFile = null;
+            }
+        }
+    }
+
+    /**
+     * Counts the bytes written, to know the offsets of the entries
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+}
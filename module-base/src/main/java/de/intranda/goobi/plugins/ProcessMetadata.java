@@ -0,0 +1,37 @@
+package de.intranda.goobi.plugins;
+
+import java.util.List;
+
+import lombok.Data;
+
+/**
+ * Collected metadata of a single process, used to create one spreadsheet row per image
+ */
+@Data
+public class ProcessMetadata {
+
+    private int processId;
+    private String processTitle;
+    // fingerprint of the metadata file, properties and images, used to detect changes since the last export
+    private String fingerprint;
+    // the configured image folder of the process
+    private String imageFolderPath;
+
+    // names of all images of the process, one row is written for each of them
+    private List<String> filenames;
+    // physical page number of the representative image
+    private String representative = "";
+
+    // values of the metadata, properties and process fields, indexed by the slots of the spreadsheet layout
+    private String[] values;
+
+    // first publisher of the logical docstruct and its authority value as they are in the metadata file. They are kept in the manifest, so that
+    // unchanged processes can be enriched again by the next export.
+    private String publisherMetadata = "";
+    private String publisherAuthority;
+    // the exported publisher, replaced by the normalized name if it is found in the vocabulary or in VIAF
+    private String publisherLat = "";
+    private String publisherOther = "";
+    // VIAF record of the publisher, the names from it get added before the rows are written
+    private String publisherViafUrl;
+}
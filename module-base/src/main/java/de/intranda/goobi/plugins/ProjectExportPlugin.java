@@ -2,67 +2,55 @@ package de.intranda.goobi.plugins;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Stream;
-import java.util.zip.ZipOutputStream;
 
 import org.apache.commons.configuration.HierarchicalConfiguration;
 import org.apache.commons.configuration.XMLConfiguration;
 import org.apache.commons.configuration.tree.xpath.XPathExpressionEngine;
 import org.apache.commons.dbutils.QueryRunner;
+import org.apache.commons.dbutils.handlers.ArrayHandler;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.poi.ss.usermodel.Row;
-import org.apache.poi.ss.usermodel.Sheet;
-import org.apache.poi.ss.usermodel.Workbook;
-import org.apache.poi.xssf.streaming.SXSSFWorkbook;
-import org.goobi.beans.GoobiProperty;
 import org.goobi.beans.Process;
 import org.goobi.beans.Step;
 import org.goobi.production.enums.PluginType;
 import org.goobi.production.plugin.interfaces.IWorkflowPlugin;
 
-import de.intranda.digiverso.normdataimporter.NormDataImporter;
-import de.intranda.digiverso.normdataimporter.model.MarcRecord;
-import de.intranda.digiverso.normdataimporter.model.MarcRecord.DatabaseUrl;
+import de.intranda.goobi.plugins.SpreadsheetLayout.Column;
 import de.sub.goobi.config.ConfigPlugins;
 import de.sub.goobi.helper.CloseStepHelper;
 import de.sub.goobi.helper.FacesContextHelper;
 import de.sub.goobi.helper.Helper;
 import de.sub.goobi.helper.StorageProvider;
-import de.sub.goobi.helper.enums.StepStatus;
-import de.sub.goobi.helper.exceptions.DAOException;
-import de.sub.goobi.helper.exceptions.SwapException;
 import de.sub.goobi.persistence.managers.MySQLHelper;
-import de.sub.goobi.persistence.managers.ProcessManager;
 import de.sub.goobi.persistence.managers.ProjectManager;
-import io.goobi.vocabulary.exchange.FieldDefinition;
-import io.goobi.vocabulary.exchange.VocabularySchema;
-import io.goobi.workflow.api.vocabulary.APIException;
-import io.goobi.workflow.api.vocabulary.VocabularyAPIManager;
-import io.goobi.workflow.api.vocabulary.VocabularyRecordAPI;
-import io.goobi.workflow.api.vocabulary.helper.ExtendedVocabulary;
-import io.goobi.workflow.api.vocabulary.helper.ExtendedVocabularyRecord;
+import de.sub.goobi.persistence.managers.StepManager;
 import jakarta.faces.context.ExternalContext;
 import jakarta.faces.context.FacesContext;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.log4j.Log4j2;
 import net.xeoh.plugins.base.annotations.PluginImplementation;
-import ugh.dl.DigitalDocument;
-import ugh.dl.DocStruct;
-import ugh.dl.Fileformat;
-import ugh.dl.Metadata;
-import ugh.exceptions.PreferencesException;
-import ugh.exceptions.ReadException;
 
 @PluginImplementation
 @Log4j2
@@ -79,6 +67,9 @@ public class ProjectExportPlugin implements IWorkflowPlugin {
     //
 
     private static final long serialVersionUID = 5481832734226737224L;
+    private static final String AUTHORITY_STORE_FILE = ".authority_store.tsv";
+    private static final String DERIVATIVE_CACHE_FOLDER = ".derivative_cache";
+    private static final String MANIFEST_SUFFIX = ".manifest";
     @Getter
     private String title = "intranda_workflow_projectexport";
     @Getter
@@ -90,10 +81,6 @@ public class ProjectExportPlugin implements IWorkflowPlugin {
     @Setter
     private List<String> allProjectNames = null;
     @Getter
-    private String finishStepName;
-    @Getter
-    private String closeStepName;
-    @Getter
     private boolean exportPossible = false;
     @Getter
     private boolean stepsComplete = false;
@@ -101,12 +88,10 @@ public class ProjectExportPlugin implements IWorkflowPlugin {
     private String projectValidationError = null;
     @Setter
     private String exportFolder;
-    @Setter
-    private String imageFolder = "media";
     @Getter
     private String projectSizeMessage = null;
-    @Getter
-    private boolean allowZipDownload = true;
+    // the settings of the selected project, each export keeps the settings it was started with
+    private ExportSettings currentSettings = new ExportSettings(null, null, false, null);
 
     // used for tests
     @Setter
@@ -116,6 +101,9 @@ public class ProjectExportPlugin implements IWorkflowPlugin {
 
     @Getter
     private boolean includeAllFinishedProcesses = false;
+    // number of images of the processes to export
+    @Getter
+    private int numberOfImages = 0;
 
     /**
      * Getter to list all existing active projects
@@ -129,6 +117,18 @@ public class ProjectExportPlugin implements IWorkflowPlugin {
         return allProjectNames;
     }
 
+    public String getFinishStepName() {
+        return currentSettings.getFinishStepName();
+    }
+
+    public String getCloseStepName() {
+        return currentSettings.getCloseStepName();
+    }
+
+    public boolean isAllowZipDownload() {
+        return currentSettings.isAllowZipDownload();
+    }
+
     /**
      * Setter to define the project to use
      * 
@@ -157,23 +157,24 @@ public class ProjectExportPlugin implements IWorkflowPlugin {
     private void calculateProjectSize() {
         readConfiguration(projectName);
         projectSizeMessage = null;
-        int projectSize = getProcessList().size();
-        if (projectSize == 0) {
+        int[] projectSize = getProjectSize();
+        numberOfImages = projectSize[2];
+        if (projectSize[0] == 0) {
             stepsComplete = false;
             exportPossible = false;
             projectValidationError = Helper.getTranslation("plugin_workflow_projectexport_emptyProject", projectName);
             Helper.setFehlerMeldung("project", projectValidationError, projectValidationError);
         } else {
-            int numberOfTasks = getNumberOfUnfinishedTasks();
+            int numberOfTasks = projectSize[1];
             exportPossible = true;
             if (numberOfTasks == 0) {
                 stepsComplete = true;
                 projectValidationError = null;
-                projectSizeMessage = Helper.getTranslation("plugin_workflow_projectexport_projectSize", String.valueOf(projectSize));
+                projectSizeMessage = Helper.getTranslation("plugin_workflow_projectexport_projectSize", String.valueOf(projectSize[0]));
             } else {
                 // change warning text ?
                 stepsComplete = false;
-                projectSizeMessage = Helper.getTranslation("plugin_workflow_projectexport_projectSize", String.valueOf(projectSize));
+                projectSizeMessage = Helper.getTranslation("plugin_workflow_projectexport_projectSize", String.valueOf(projectSize[0]));
                 projectValidationError = Helper.getTranslation("plugin_workflow_projectexport_openSteps", projectName, String.valueOf(numberOfTasks));
                 Helper.setFehlerMeldung("project", projectValidationError, projectValidationError);
             }
@@ -181,63 +182,86 @@ public class ProjectExportPlugin implements IWorkflowPlugin {
     }
 
     /**
-     * Find out how many processes in the project are still not in the right status to be interpreted as finished
+     * Count the processes and images of the selected project in a single query, without loading the processes. The processes to export are
+     * selected in the same way as in {@link #getProcessList(ExportSettings, List)}.
      * 
-     * @return integer value with number of processes
+     * @return the number of processes to export, the number of processes which are still not in the right status to be interpreted as finished
+     *         and the number of images of the processes to export
      */
-    private int getNumberOfUnfinishedTasks() {
-        if (!testDatabase) {
-            Connection connection = null;
-            StringBuilder query = new StringBuilder();
-            query.append("SELECT COUNT(*) ");
-            query.append("FROM prozesse WHERE ");
-            query.append("istTemplate = false and projekteId = (SELECT projekteID FROM projekte WHERE titel = ?) ");
-            query.append("AND prozesseID NOT IN ( ");
-            query.append("SELECT prozesseId FROM schritte WHERE titel = ? AND (Bearbeitungsstatus = 3 OR Bearbeitungsstatus = 5)) ");
-            try {
-                connection = MySQLHelper.getInstance().getConnection();
-                return new QueryRunner().query(connection, query.toString(), MySQLHelper.resultSetToIntegerHandler, projectName, finishStepName);
-            } catch (SQLException e) {
-                log.error(e);
-            } finally {
-                if (connection != null) {
-                    try {
-                        MySQLHelper.closeConnection(connection);
-                    } catch (SQLException e) {
-                        log.error(e);
-                    }
+    private int[] getProjectSize() {
+        if (testDatabase) {
+            return new int[] { testList.size(), 0, 0 };
+        }
+        StringBuilder exportable = new StringBuilder();
+        exportable.append("EXISTS (SELECT 1 FROM schritte s WHERE s.prozesseId = p.prozesseID AND s.titel = ? AND s.Bearbeitungsstatus = 3) ");
+        if (!includeAllFinishedProcesses) {
+            exportable.append("AND NOT EXISTS (SELECT 1 FROM schritte s WHERE s.prozesseId = p.prozesseID AND s.titel = ? ");
+            exportable.append("AND (s.Bearbeitungsstatus = 3 OR s.Bearbeitungsstatus = 5)) ");
+        }
+        StringBuilder query = new StringBuilder();
+        query.append("SELECT ");
+        query.append("SUM(CASE WHEN ").append(exportable).append("THEN 1 ELSE 0 END), ");
+        query.append("SUM(CASE WHEN NOT EXISTS (SELECT 1 FROM schritte s WHERE s.prozesseId = p.prozesseID AND s.titel = ? ");
+        query.append("AND (s.Bearbeitungsstatus = 3 OR s.Bearbeitungsstatus = 5)) THEN 1 ELSE 0 END), ");
+        query.append("SUM(CASE WHEN ").append(exportable).append("THEN COALESCE(p.sortHelperImages, 0) ELSE 0 END) ");
+        query.append("FROM prozesse p WHERE p.istTemplate = false AND p.projekteId = (SELECT projekteID FROM projekte WHERE titel = ?) ");
+
+        List<Object> parameter = new ArrayList<>();
+        addExportableParameter(parameter);
+        parameter.add(currentSettings.getFinishStepName());
+        addExportableParameter(parameter);
+        parameter.add(projectName);
+
+        Connection connection = null;
+        try {
+            connection = MySQLHelper.getInstance().getConnection();
+            Object[] result = new QueryRunner().query(connection, query.toString(), new ArrayHandler(), parameter.toArray());
+            int[] size = new int[3];
+            for (int i = 0; i < size.length && result != null && i < result.length; i++) {
+                // the sums are null, if the project has no processes
+                size[i] = result[i] == null ? 0 : ((Number) result[i]).intValue();
+            }
+            return size;
+        } catch (SQLException e) {
+            log.error(e);
+        } finally {
+            if (connection != null) {
+                try {
+                    MySQLHelper.closeConnection(connection);
+                } catch (SQLException e) {
+                    log.error(e);
                 }
             }
         }
-        return 0;
+        return new int[3];
+    }
+
+    private void addExportableParameter(List<Object> parameter) {
+        parameter.add(currentSettings.getFinishStepName());
+        if (!includeAllFinishedProcesses) {
+            parameter.add(currentSettings.getCloseStepName());
+        }
     }
 
     /**
-     * Create a list of all processes of the selected project based on the project title
+     * Create a list of all processes of the exported project based on the project title. Only the data needed for the export is loaded, sorted by
+     * the process title.
      * 
+     * @param settings the settings of the export
+     * @param testProcesses the processes to use instead of the database in tests or null
      * @return List of processes
      */
-    private List<Process> getProcessList() {
-        if (!testDatabase) {
-            StringBuilder query = new StringBuilder();
-            query.append("prozesse.istTemplate = false and projekte.titel = '");
-            query.append(projectName);
-            query.append("' ");
-            query.append("AND prozesseID IN ( ");
-            query.append("SELECT prozesseId FROM schritte WHERE titel = '");
-            query.append(finishStepName);
-            query.append("' ");
-            query.append(" AND (Bearbeitungsstatus = 3)) ");
-            if (!includeAllFinishedProcesses) {
-                query.append("AND prozesseID NOT IN ( ");
-                query.append("SELECT prozesseId FROM schritte WHERE titel = '");
-                query.append(closeStepName);
-                query.append("' AND (Bearbeitungsstatus = 3 OR Bearbeitungsstatus = 5)) ");
-            }
-
-            return ProcessManager.getProcesses("prozesse.titel", query.toString(), null);
+    private static List<ExportProcess> getProcessList(ExportSettings settings, List<Process> testProcesses) {
+        if (testProcesses == null) {
+            return new ExportProcessLoader(settings).load();
         } else {
-            return testList;
+            List<String> propertyNames = settings.getLayout().getPropertyNames();
+            List<ExportProcess> processes = new ArrayList<>();
+            for (Process process : testProcesses) {
+                processes.add(ExportProcess.of(process, settings.getFinishStepName(), settings.getCloseStepName(), propertyNames));
+            }
+            processes.sort(Comparator.comparing(ExportProcess::getTitle, Comparator.nullsFirst(Comparator.naturalOrder())));
+            return processes;
         }
     }
 
@@ -266,34 +290,132 @@ public class ProjectExportPlugin implements IWorkflowPlugin {
                 // do nothing
             }
         }
-        if (config != null) {
-            finishStepName = config.getString("/finishedStepName");
-            closeStepName = config.getString("/closeStepName");
-            imageFolder = config.getString("/imageFolder", "media");
-            allowZipDownload = config.getBoolean("/allowZipDownload", true);
-            if (StringUtils.isBlank(exportFolder)) {
-                exportFolder = config.getString("/exportDirectory");
-            }
-        }
+        currentSettings = new ExportSettings(config, projectName, includeAllFinishedProcesses, exportFolder);
+        exportFolder = currentSettings.getExportFolder();
     }
 
     /**
-     * Execute the export to write the excel file and the images to the given export folder
+     * Start the export of the selected project in the background. The job writes the metadata files and the images into the export folder, closes
+     * the steps and creates the zip file of the project. Its progress is shown by polling {@link #getJob()}. If the project is already exported,
+     * no second job is started.
      */
     public void prepareExport() {
-        // first try to delete previous project exports
+        // the job keeps its settings, if the user selects another project in the meantime
+        ExportSettings settings = currentSettings;
+        List<Process> testProcesses = testDatabase ? new ArrayList<>(testList) : null;
+        Path zipFile = Paths.get(settings.getExportFolder(), settings.getProjectName() + ".zip");
+        ExportJobManager manager = ExportJobManager.getInstance();
+        manager.setMaxJobs(settings.getMaxConcurrentExports());
+        ExportJob job = new ExportJob(settings.getProjectName(), zipFile, j -> runExport(j, settings, testProcesses));
+        if (manager.submit(job) != job) {
+            // show the progress of the running export instead
+            Helper.setMeldung("plugin_workflow_projectexport_exportRunning");
+            return;
+        }
+        Helper.setMeldung("plugin_workflow_projectexport_exportStarted");
+    }
+
+    /**
+     * Cancel the running export of the selected project
+     */
+    public void cancelExport() {
+        if (ExportJobManager.getInstance().cancel(projectName)) {
+            Helper.setMeldung("plugin_workflow_projectexport_exportCancelled");
+        }
+    }
+
+    /**
+     * Get the last export job of the selected project
+     *
+     * @return the running or finished job or null
+     */
+    public ExportJob getJob() {
+        return ExportJobManager.getInstance().getJob(projectName);
+    }
+
+    /**
+     * Send the zip file created by the last export of the selected project. Range requests are supported, so that the download can be resumed.
+     */
+    public void downloadZip() {
+        ExportJob job = getJob();
+        if (!currentSettings.isAllowZipDownload() || job == null || !job.isZipAvailable()) {
+            Helper.setFehlerMeldung("plugin_workflow_projectexport_noZipFile");
+            return;
+        }
         try {
-            Path exporttarget = Paths.get(exportFolder, projectName);
-            if (Files.exists(exporttarget)) {
-                try (Stream<Path> walkStream = Files.walk(exporttarget)) {
-                    walkStream.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
-                }
-            }
+            FacesContext facesContext = FacesContextHelper.getCurrentFacesContext();
+            ExternalContext ec = facesContext.getExternalContext();
+            ec.responseReset();
+            FileDownload.send(job.getZipFile(), "application/zip", (HttpServletRequest) ec.getRequest(), (HttpServletResponse) ec.getResponse());
+            facesContext.responseComplete();
         } catch (IOException e) {
-            log.error("Error while deleting previous export results", e);
+            log.error(e);
         }
+    }
+
+    /**
+     * Write the excel file and the images of a project to the export folder, close the steps and create the zip file
+     *
+     * @param job the job to report the progress to
+     * @param settings the settings of the project to export, not changed by the user interface
+     * @param testProcesses the processes to use instead of the database in tests or null
+     */
+    private static void runExport(ExportJob job, ExportSettings settings, List<Process> testProcesses) throws IOException, InterruptedException {
+        // shared by the copy and the zip steps, closed after the zip file was created
+        ImageConverter imageConverter = settings.isConvertImages()
+                ? new ImageConverter(settings.getConversionDpi(), settings.getConversionMaxFileSize(), settings.getConversionMinQuality(),
+                        settings.getConversionMaxQuality(), settings.getConversionMaxPasses(), settings.getConversionThreads())
+                : null;
+        if (imageConverter != null && settings.getConversionCacheSize() > 0) {
+            try {
+                DerivativeCache cache = DerivativeCache.open(Paths.get(settings.getExportFolder(), DERIVATIVE_CACHE_FOLDER),
+                        settings.getConversionCacheSize() * 1024 * 1024, imageConverter.getParameters());
+                cache.setLinkFiles(settings.isLinkImages());
+                imageConverter.setCache(cache);
+            } catch (IOException e) {
+                log.error("Cannot open the derivative cache, all images get converted", e);
+            }
+        }
+        // each image folder is listed once, the listings are kept until the images are copied or added to the zip file
+        ImageListing imageListing = new ImageListing();
+        // the zip file is written while the export is running, an incomplete file is removed when the export fails
+        try (ExportZip zip = new ExportZip(job.getZipFile(), Paths.get(settings.getExportFolder(), settings.getProjectName()),
+                settings.isStreamImagesIntoZip(), imageListing, settings.getCompressionPolicy(), settings.getZipThreads(), imageConverter,
+                job::addZipBytes, settings.getCollectorThreads() * 4,
+                StringUtils.isBlank(settings.getTempFolder()) ? null : Paths.get(settings.getTempFolder()))) {
+            runExport(job, settings, testProcesses, imageConverter, imageListing, zip);
+        } finally {
+            if (imageConverter != null) {
+                imageConverter.close();
+            }
+        }
+    }
 
-        List<Process> processesInProject = getProcessList();
+    private static void runExport(ExportJob job, ExportSettings settings, List<Process> testProcesses, ImageConverter imageConverter,
+            ImageListing imageListing, ExportZip zip) throws IOException, InterruptedException {
+        String projectName = settings.getProjectName();
+        String exportFolder = settings.getExportFolder();
+        // the manifest of the last export allows to skip the processes which did not change since then
+        boolean copyImages = !settings.isStreamImagesIntoZip();
+        Path manifestFile = Paths.get(exportFolder, "." + projectName + MANIFEST_SUFFIX);
+        String exportSettings = settings.getSignature(imageConverter);
+        ExportManifest previousExport = settings.isIncrementalExport() ? ExportManifest.load(manifestFile, exportSettings) : null;
+
+        Path destination = Paths.get(exportFolder, projectName);
+        if (previousExport == null) {
+            // first try to delete previous project exports
+            try {
+                deleteFolder(destination);
+            } catch (IOException e) {
+                log.error("Error while deleting previous export results", e);
+            }
+        } else {
+            log.info("Update export of project {}, {} processes were exported before", projectName, previousExport.size());
+        }
+
+        List<ExportProcess> processesInProject = getProcessList(settings, testProcesses);
+        // filled with the collected metadata, the images are read from it when they get streamed into the zip file
+        ExportManifest currentExport = new ExportManifest(exportSettings);
         //Properties:
         //    Marginalia  N
         //    Censorship  N
@@ -308,562 +430,277 @@ public class ProjectExportPlugin implements IWorkflowPlugin {
         //    Reason for missing NLI identifier
         //    OCLC identifier
 
-        // create excel file
-        Runnable run = () -> {
-            Workbook wb = new SXSSFWorkbook(20);
-            Sheet sheet = wb.createSheet("images");
-
-            // create header
-            Row headerRow = sheet.createRow(0);
-            headerRow.createCell(0).setCellValue("File path");
-            headerRow.createCell(1).setCellValue("Shots sequence");
-            headerRow.createCell(2).setCellValue("Prime Image Flag");
-            headerRow.createCell(3).setCellValue("Order");
-            headerRow.createCell(4).setCellValue("Identification");
-            headerRow.createCell(5).setCellValue("Author lat");
-            headerRow.createCell(6).setCellValue("Author in Hebrew");
-            headerRow.createCell(7).setCellValue("Other Name Forms");
-            headerRow.createCell(8).setCellValue("Litle lat");
-            headerRow.createCell(9).setCellValue("Title heb");
-            headerRow.createCell(10).setCellValue("NLI number");
-            headerRow.createCell(11).setCellValue("OCLC number");
-            headerRow.createCell(12).setCellValue("Notes_01");
-            headerRow.createCell(13).setCellValue("Normalised Year");
-            headerRow.createCell(14).setCellValue("Normalised City");
-            headerRow.createCell(15).setCellValue("Reference forms of city.");
-            headerRow.createCell(16).setCellValue("Normalised Publisher");
-            headerRow.createCell(17).setCellValue("Other name forms for the Publisher");
-            headerRow.createCell(18).setCellValue("Notes_02");
-            headerRow.createCell(19).setCellValue("Link 1 NLI catalog");
-            headerRow.createCell(20).setCellValue("Etichetta 1");
-            headerRow.createCell(21).setCellValue("Link 2 website of keeping institution");
-            headerRow.createCell(22).setCellValue("Etichetta 2 keeping institution");
-            headerRow.createCell(23).setCellValue("Fondo");
-            headerRow.createCell(24).setCellValue("Provenance");
-            headerRow.createCell(25).setCellValue("Marginalia");
-            headerRow.createCell(26).setCellValue("Censorship");
-            headerRow.createCell(27).setCellValue("Additional authors in Latin");
-            headerRow.createCell(28).setCellValue("Additional authors in Hebrew");
-            headerRow.createCell(29).setCellValue("Additional authors references");
-            headerRow.createCell(30).setCellValue("Number of copies");
-            headerRow.createCell(31).setCellValue("Segnatura");
-
-            int rowCounter = 1;
-            boolean error = false;
-            processloop: for (Process p : processesInProject) {
-                //do this so the metadata is not kept in memory for every process in the list
-                Process process = ProcessManager.getProcessById(p.getId());
-                // just use this process if the step to check is in valid status
-                for (Step step : process.getSchritte()) {
-                    if (finishStepName.equals(step.getTitel()) && step.getBearbeitungsstatusEnum() == StepStatus.DEACTIVATED) {
-                        continue processloop;
-                    }
+        job.startPhase(ExportJob.Phase.COLLECT, processesInProject.size());
+        boolean error = false;
+        // all metadata files are written while the metadata is collected
+        List<RowWriter> writers = new ArrayList<>();
+        try {
+            StorageProvider.getInstance().createDirectories(destination);
+            writers = createRowWriters(destination, settings);
+        } catch (IOException e) {
+            log.error("Cannot create the metadata files", e);
+            error = true;
+        }
 
+        // collect the metadata of several processes in parallel, but write the rows in a stable order. The images of each process are copied and
+        // added to the zip file in the background, while the rows are written.
+        AuthorityStore authorityStore = null;
+        if (settings.getAuthorityStoreDays() > 0) {
+            authorityStore = AuthorityStore.open(Paths.get(exportFolder, AUTHORITY_STORE_FILE), settings.getAuthorityStoreDays());
+        }
+        PublisherResolver publisherResolver = new PublisherResolver(settings.getPublisherCacheSize(), authorityStore, settings.getViafThreads(),
+                TimeUnit.SECONDS.toMillis(settings.getViafTimeout()));
+        ImageCopier imageCopier = new ImageCopier(settings.getCopyThreads(), createCopyLimiter(settings), settings.isLinkImages());
+        MetadataCollector collector = new MetadataCollector(settings.getFinishStepName(), exportFolder, projectName, settings.getImageFolder(),
+                copyImages, publisherResolver, imageConverter, imageCopier, imageListing, previousExport, settings.getLayout(),
+                settings.isFastMetsReader());
+        ExecutorService executor = Executors.newFixedThreadPool(settings.getCollectorThreads());
+        // limit the number of processes kept in memory, if the workbook gets written slower than the metadata is collected
+        int windowSize = settings.getCollectorThreads() * 4;
+        ImageStage imageStage = new ImageStage(collector, copyImages, zip, settings.getCollectorThreads(), windowSize);
+        Deque<Future<ProcessMetadata>> pending = new ArrayDeque<>();
+        Iterator<ExportProcess> processIterator = processesInProject.iterator();
+        try {
+            while ((processIterator.hasNext() || !pending.isEmpty()) && !job.isCancelled()) {
+                while (processIterator.hasNext() && pending.size() < windowSize) {
+                    ExportProcess exportProcess = processIterator.next();
+                    pending.add(executor.submit(() -> {
+                        ProcessMetadata data = collector.collect(exportProcess);
+                        if (data != null) {
+                            // wait for the VIAF record in the collector thread, not in the loop writing the rows
+                            publisherResolver.applyViafNames(data);
+                        }
+                        return data;
+                    }));
                 }
-                log.info("Collect metadata for process {}", process.getTitel());
-                // open mets file
                 try {
-                    Fileformat fileformat = process.readMetadataFile();
-
-                    DigitalDocument digDoc = fileformat.getDigitalDocument();
-
-                    DocStruct logical = digDoc.getLogicalDocStruct();
-                    DocStruct physical = digDoc.getPhysicalDocStruct();
-                    String representative = "";
-                    if (physical.getAllMetadata() != null) {
-                        for (Metadata md : physical.getAllMetadata()) {
-                            if ("_representative".equals(md.getType().getName())) {
-                                representative = md.getValue();
-                            }
-                        }
-                    }
-                    // create row for each image
-                    List<String> filenames = StorageProvider.getInstance().list(process.getImagesTifDirectory(false));
-
-                    if (!filenames.isEmpty()) {
-
-                        String censorship = "";
-                        String marginalia = "";
-                        String provenance = "";
-                        String oclcIdentifier = "";
-                        String notes01 = "";
-                        String titleLat = "";
-                        String notes02 = "";
-                        String copies = "";
-                        String title = "";
-                        String identifier = "";
-                        String shelfmark = process.getTitel();
-                        String authorLat = "";
-                        String authorHeb = "";
-                        String authorOther = "";
-                        String year = "";
-                        String city = "";
-                        String cityNormed = "";
-                        String cityOther = "";
-
-                        String publisherLat = "";
-                        String publisherOther = "";
-                        String nliLink = "";
-
-                        for (GoobiProperty prop : process.getProperties()) {
-                            if ("Censorship".equals(prop.getPropertyName())) {
-                                censorship = prop.getPropertyValue();
-                            } else if ("Marginalia".equals(prop.getPropertyName())) {
-                                marginalia = prop.getPropertyValue();
-                            } else if ("Provenance".equals(prop.getPropertyName())) {
-                                provenance = prop.getPropertyValue();
-                            } else if ("Number of Copies".equals(prop.getPropertyName())) {
-                                copies = prop.getPropertyValue();
-                            } else if ("NLI_Number".equals(prop.getPropertyName())) {
-                                identifier = prop.getPropertyValue();
-                            }
-
-                        }
-
-                        StringBuilder additionalAuthorHeb = new StringBuilder();
-                        StringBuilder additionalAuthorLat = new StringBuilder();
-                        StringBuilder additionalAuthorOther = new StringBuilder();
-
-                        for (Metadata md : logical.getAllMetadata()) {
-                            if ("TitleDocMain".equals(md.getType().getName())) {
-                                title = md.getValue();
-                            } else if ("OtherTitle".equals(md.getType().getName())) {
-                                titleLat = md.getValue();
-                            } else if ("OclcID".equals(md.getType().getName())) {
-                                oclcIdentifier = md.getValue();
-                            } else if ("Notes01".equals(md.getType().getName())) {
-                                notes01 = md.getValue();
-                            } else if ("Notes02".equals(md.getType().getName())) {
-                                notes02 = md.getValue();
-                            } else if ("shelfmarksource".equals(md.getType().getName()) && StringUtils.isNotBlank(md.getValue())) {
-                                shelfmark = md.getValue();
-                            } else if ("AuthorPreferred".equals(md.getType().getName())) {
-                                authorLat = md.getValue();
-                            } else if ("AuthorPreferredHeb".equals(md.getType().getName())) {
-                                authorHeb = md.getValue();
-                            } else if ("AuthorPreferredOther".equals(md.getType().getName())) {
-                                authorOther = md.getValue();
-                            } else if ("PublicationRun".equals(md.getType().getName())) {
-                                year = md.getValue();
-                            } else if ("PublicationYear".equals(md.getType().getName())) {
-                                year = md.getValue();
-                            } else if ("PlaceOfPublicationNormalized".equals(md.getType().getName())) {
-                                cityNormed = md.getValue();
-                            } else if ("PlaceOfPublication".equals(md.getType().getName())) {
-                                city = md.getValue();
-                            } else if ("PlaceOfPublicationOther".equals(md.getType().getName())) {
-                                cityOther = md.getValue();
-                            } else if ("Publisher".equals(md.getType().getName()) && StringUtils.isBlank(publisherLat)) {
-                                publisherLat = md.getValue();
-
-                                // once we found the publisher name get other writing forms from Vocabulary
-                                String vocabRecordUrl = md.getAuthorityValue();
-                                if (vocabRecordUrl != null && vocabRecordUrl.length() > 0) {
-                                    VocabularyRecordAPI api = VocabularyAPIManager.getInstance().vocabularyRecords();
-
-                                    try {
-                                        ExtendedVocabularyRecord rec = null;
-                                        boolean searchAgain = false;
-                                        try {
-                                            rec = api.get(vocabRecordUrl);
-                                            Optional<String> correctedValue = rec.getFieldValueForDefinitionName("Corrected value");
-
-                                            if (correctedValue.isEmpty()) {
-                                                continue;
-                                            } else if (!correctedValue.get().equals(publisherLat)) {
-                                                searchAgain = true;
-                                            }
-                                        } catch (APIException e) {
-                                            // Possibly not found, go directly to fallback
-                                            searchAgain = true;
-                                        }
-
-                                        if (searchAgain) {
-                                            ExtendedVocabulary publishersVocabulary =
-                                                    VocabularyAPIManager.getInstance().vocabularies().findByName("Publishers");
-                                            VocabularySchema schema =
-                                                    VocabularyAPIManager.getInstance().vocabularySchemas().get(publishersVocabulary.getSchemaId());
-                                            Optional<Long> correctedValueDefinitionId = schema.getDefinitions()
-                                                    .stream()
-                                                    .filter(d -> "Corrected value".equals(d.getName()))
-                                                    .map(FieldDefinition::getId)
-                                                    .findFirst();
-
-                                            if (correctedValueDefinitionId.isEmpty()) {
-                                                log.error("Unable to find definition id for field \"Corrected value\"");
-                                                continue;
-                                            } else {
-                                                List<ExtendedVocabularyRecord> hits = VocabularyAPIManager.getInstance()
-                                                        .vocabularyRecords()
-                                                        .list(publishersVocabulary.getId())
-                                                        .search(correctedValueDefinitionId.get() + ":" + publisherLat)
-                                                        .all()
-                                                        .request()
-                                                        .getContent();
-
-                                                if (hits.size() == 1) {
-                                                    rec = hits.get(0);
-                                                } else {
-                                                    log.error("Search result for publisher \"{}\" not existing or not unique, skipping",
-                                                            publisherLat);
-                                                    continue;
-                                                }
-                                            }
-                                        }
-
-                                        if (rec == null) {
-                                            log.error("This should have been prevented!");
-                                            continue;
-                                        }
-
-                                        String url = null;
-                                        String value = null;
-                                        publisherOther = rec.getFieldValueForDefinitionName("Name variants").orElse("");
-                                        url = rec.getFieldValueForDefinitionName("Authority URI").orElse("");
-                                        value = rec.getFieldValueForDefinitionName("Value URI").orElse("");
-
-                                        if (StringUtils.isNotBlank(url) && StringUtils.isNotBlank(value) && url.contains("viaf")) {
-                                            url = url + value + "/marc21.xml";
-                                            MarcRecord recordToImport = null;
-                                            try {
-                                                recordToImport = NormDataImporter.getSingleMarcRecord(url);
-                                            } catch (Exception e) {
-                                                log.error(e);
-                                            }
-                                            if (recordToImport != null) {
-                                                List<String> databases = new ArrayList<>();
-                                                databases.add("j9u"); // NLI
-                                                databases.add("lc"); // LOC
-                                                databases.add("bav"); // Vatican
-                                                databases.add("gnd"); // GND
-                                                databases.add("isni"); // ISNI
-                                                DatabaseUrl currentUrl = null;
-                                                for (String database : databases) {
-                                                    if (currentUrl == null) {
-                                                        for (DatabaseUrl dbUrl : recordToImport.getAuthorityDatabaseUrls()) {
-                                                            if (dbUrl.getDatabaseCode().equalsIgnoreCase(database)) {
-                                                                currentUrl = dbUrl;
-                                                            }
-                                                        }
-                                                    }
-                                                }
-                                                if (currentUrl == null && !recordToImport.getAuthorityDatabaseUrls().isEmpty()) {
-                                                    currentUrl = recordToImport.getAuthorityDatabaseUrls().get(0);
-                                                }
-
-                                                if (currentUrl != null) {
-                                                    recordToImport = NormDataImporter.getSingleMarcRecord(currentUrl.getMarcRecordUrl());
-                                                    if (recordToImport != null) {
-                                                        List<String> normalizedVariant =
-                                                                recordToImport.getSubFieldValues("100", null, null, "a", "b", "c");
-                                                        List<String> otherVariants =
-                                                                recordToImport.getSubFieldValues("400", null, null, "a", "b", "c");
-                                                        if (normalizedVariant != null && !normalizedVariant.isEmpty()) {
-                                                            publisherLat = normalizedVariant.get(0);
-                                                        }
-                                                        if (otherVariants != null && !otherVariants.isEmpty()) {
-                                                            StringBuilder sb = new StringBuilder();
-                                                            for (String spelling : otherVariants) {
-                                                                if (sb.length() > 0) {
-                                                                    sb.append("; ");
-                                                                }
-                                                                sb.append(spelling);
-                                                            }
-                                                            if (sb.length() > 0) {
-                                                                publisherOther = sb.toString();
-                                                            }
-                                                        }
-                                                    }
-                                                }
-                                            }
-                                        }
-                                    } catch (APIException e) {
-                                        log.warn("Unable to find referenced vocabulary record \"{}\"", vocabRecordUrl);
-                                    }
-                                }
-                            } else if ("NLICatalog".equals(md.getType().getName())) {
-                                nliLink = md.getValue();
-                            } else if ("AdditionalAuthor".equals(md.getType().getName())) {
-                                if (additionalAuthorLat.length() > 0) {
-                                    additionalAuthorLat.append("; ");
-                                }
-                                additionalAuthorLat.append(md.getValue());
-
-                            } else if ("AdditionalAuthorHeb".equals(md.getType().getName())) {
-                                if (additionalAuthorHeb.length() > 0) {
-                                    additionalAuthorHeb.append("; ");
-                                }
-                                additionalAuthorHeb.append(md.getValue());
-
-                            } else if ("AdditionalAuthorOther".equals(md.getType().getName())) {
-                                if (additionalAuthorOther.length() > 0) {
-                                    additionalAuthorOther.append("; ");
-                                }
-                                additionalAuthorOther.append(md.getValue());
-                            }
-                        }
-                        for (int i = 0; i < filenames.size(); i++) {
-                            String imageName = filenames.get(i);
-
-                            String physPageNo = String.valueOf(i + 1);
-
-                            Row imageRow = sheet.createRow(rowCounter);
-                            // Field: file path
-                            // Comments: A line should be produced for each image taken.
-                            // Clarification: Generated by Goobi from the process title/image filename
-                            // Example: RM0166F05-0000001/ RM0166F05-0000001_001.jpg
-                            imageRow.createCell(0).setCellValue(process.getTitel() + "/" + imageName);
-                            // Field: shots sequence
-                            // Comments:
-                            // Clarification: Generated by Goobi from the image sequence numbering at the end of the image filename
-                            // Example: 1
-                            imageRow.createCell(1).setCellValue(physPageNo);
-                            // Field: Prime Image Flag
-                            // Comments: Y/N for the image that should be used as the thumbnail, will be chosen by the cataloger
-                            // Clarification: As selected in the workflow by the cataloguer
-                            // Example: N
-                            imageRow.createCell(2)
-                                    .setCellValue(StringUtils.isNotBlank(representative) && representative.equals(physPageNo) ? "Y" : "N");
-                            // Field: order
-                            // Comments:
-                            // Clarification: Generated by Goobi from the process title
-                            // Example: RM0166F05-0000001
-                            imageRow.createCell(3).setCellValue(process.getTitel());
-                            // Field: identification
-                            // Comments: Should be the number in the original library. will be loaded based on the excel provided by the institution after inserting the barcodes
-                            // Clarification: Imported into Goobi as part of the excel upload of the inventory spreadsheet. This is the shelf mark information provided by the source library (if they use shelf marks) it will not always be present.
-                            // Example: CB_FI_015
-                            imageRow.createCell(4).setCellValue(process.getTitel());
-                            // Field: author lat
-                            // Comments: will be taken from VIAF based on the 100 field in the NLI record
-                            // Clarification: To be taken from VIAF, Exact Query using the Israel data set on VIAF only the search term is the content of field G below which has been extracted from the NLI ALMA bibliographic record. The version to be used is Either: Italian, Vatican or LOC if Italian or vatican name forms are not present
-                            // Example: Aaron Berechiah ben Moses, of Modena, 1549-1639
-                            imageRow.createCell(5).setCellValue(authorLat);
-                            // Field: Author in Hebrew
-                            // Comments: Wil be taken from the 100 field in the NLI record
-                            // Clarification: Taken automatically by Goobi from the 100 field in the NLI Alma bibliographic record with the prefix $$HEB (to denote the Hebrew Name)
-                            // Example: מודנה, אהרן ברכיה בן משה
-                            imageRow.createCell(6).setCellValue(authorHeb);
-                            // Field: Other Name Forms
-                            // Comments: will be taken from VIAF
-                            // Clarification: To be taken from VIAF, Exact Query using the Israel data set on VIAF only the search term is the content of field G above which has been extracted from the NLI ALMA bibliographic record. All other name forms to be copied into this field separated by a semicolon+space "; "
-                            // Example: Aaron Berechiah ben Moses von Modena -1639; Aaron Berechja di Modena
-                            imageRow.createCell(7).setCellValue(authorOther);
-                            // Field: title lat
-                            // Comments: will be taken from the OCLC record, or from the manual transliteration.
-                            // Clarification: To be taken from the WorldCat transliterated MARC record (field 245) based on the OCLC number entered by the cataloguer (see field L below). If no OCLC number then this will be manually transliterated by the cataloguer
-                            // Example: Maʻavar Yaboḳ
-                            imageRow.createCell(8).setCellValue(titleLat);
-                            // Field: title heb
-                            // Comments: should be taken from the 245 feild in the NLI record
-                            // Clarification: Taken automatically by Goobi from the 245 field in the NLI Alma bibliographic record
-                            // Example: ספר מעבר יבק / שפתי רננות ... עתר ענן הקטרת ... אשר יסד ... כמוהר"ר אהרן ברכיה בכמה"ר משה ממודינה ... בו ביאר איך יתנהג האדם בעה"ז עד עת בוא יום פקודתו ... וחלק אותו לד' חלקים ... שפתי צדק ... שפת אמת ...
-                            imageRow.createCell(9).setCellValue(title);
-                            // Field: NLI number
-                            // Comments: is inserted by the cataloger
-                            // Clarification: In most cases this is inserted by the cataloguer in Goobi Workflow after they have found the book on the ALMA system. In some cases this will be inserted by the NLI cataloguer after they have catalogued a new book on ALMA (this is for situations when the cataloguer cannot find the book on ALMA)
-                            // Example: 990010919220205000
-                            imageRow.createCell(10).setCellValue(identifier);
-                            // Field: OCLC number
-                            // Comments: is inserted by the cataloger
-                            // Clarification: This is inserted by the cataloguer in Goobi workflow if a suitable transliterated record can be found on WorldCat. If not then the book will be manually transliterated by the cataloguer and this field will remain empty
-                            // Example: 47085556
-                            imageRow.createCell(11).setCellValue(oclcIdentifier);
-                            // Field: notes_01
-                            // Comments: is taken from the 260 field in OCLC or compiled by the cataloguer if missing
-                            // Clarification: This is the imprint field which will be taken from the OCLC record under field 260 (for the majority of the time) or 264 if there is no information in the 260 field
-                            // Example: Manṭovah :  Be-vet Yehudah Shemuʼel mi-Prushah u-veno,   [386] 1626.
-                            imageRow.createCell(12).setCellValue(notes01);
-                            // Field: Normalised Year
-                            // Comments: should be taken from the 008 field in the NLI record
-                            // Clarification: To be taken from the NLI ALMA bibliographic record from field 008
-                            // Example: 1626
-                            imageRow.createCell(13).setCellValue(year);
-                            // Field: Normalised City
-                            // Comments: should be taken from VIAF (Italian form) based on the 751 NLI record with sub-field "e"="publishing place"
-                            // Clarification: To be taken from VIAF, Exact Query using the Israel data set on VIAF only the search term is the content of field 751 (with a sub field "e" which means publishing place) to be extracted from the NLI ALMA bibliographic record. The version to be used is Either: Italian, Vatican or LOC if Italian or vatican name forms are not present
-                            // Example: Mantova
-                            imageRow.createCell(14).setCellValue(StringUtils.isNotBlank(cityNormed) ? cityNormed : city);
-                            // Field: reference forms of city.
-                            // Comments: should be taken from VIAF based on the 751 NLI record with sub-field "e"="publishing place"
-                            // Clarification: To be taken from VIAF, Exact Query using the Israel data set on VIAF only the search term is the content of field 751 (with a sub field "e" which means publishing place) to be extracted from the NLI ALMA bibliographic record.  All other name forms to be copied into this field separated by a semicolon+space "; "
-                            // Example: Mantua (Italy); Mantoue (Italie); מנטובה (איטליה)
-                            imageRow.createCell(15).setCellValue(cityOther);
-                            // Field: Normalised Publisher
-                            // Comments: should be taken from the 7001 or 7102 NLI record with sub-field "e"="publisher"
-                            // Clarification: To be taken from the vocabulary manager in Goobi. The cataloguing team has provided approx. 300 publishers, some with VIAF identifiers, to be uploaded to Goobi vocabulary manager. These will therefore need to be manually selected from a drop down list within Goobi Workflow by the cataloguers. As more publishers are added to VIAF the vocabulary can be updated with VIAF identifiers.
-                            // Example: Perugia, Yehudah Shemuʼel ben Yehoshuʻa
-                            imageRow.createCell(16).setCellValue(publisherLat);
-                            // Field: Other name forms for the Publisher
-                            // Comments: should be taken from VIAF based on the 751 NLI record with sub-field "e"="publisher
-                            // Clarification:
-                            // Example:
-                            imageRow.createCell(17).setCellValue(publisherOther);
-                            // Field: notes_02
-                            // Comments: IT IS COMPILED BY THE CATALOGUER ACCORDING TO THE COPY INFORMATION
-                            // Clarification: This is an area for the cataloguer to record any notes as needed in Goobi workflow
-                            // Example: Missing pages.
-                            imageRow.createCell(18).setCellValue(notes02);
-                            // Field: Link 1 NLI catalog
-                            // Comments:
-                            // Clarification: This is the link to the NLI ALMA catalogue record for the book. Goobi to automatically generate it by combining standard URL prefix with the NLI ALMA number in field K above
-                            // Example:
-                            imageRow.createCell(19).setCellValue(nliLink);
-                            // Field: Etichetta 1
-                            // Comments:
-                            // Clarification: Standard wording, always the same as in the cell on the right
-                            // Example: National Library of Israel record
-                            imageRow.createCell(20).setCellValue("National Library of Israel record");
-                            // Field: Link 2 website of keeping institution
-                            // Comments:
-                            // Clarification: This is the website of the holding institution. This is to be inserted by Goobi automatically from the Project record (there will be 1 project per institution)
-                            // Example:
-                            imageRow.createCell(21).setCellValue(process.getProjekt().getMetsRightsOwnerSite());
-                            // Field: Etichetta 2 keeping institution
-                            // Comments:
-                            // Clarification: This is the name of the holding institution. This is to be inserted by Goobi automatically from the Project record (there will be 1 project per institution)
-                            // Example:
-                            imageRow.createCell(22).setCellValue(process.getProjekt().getMetsRightsOwner());
-
-                            // Field: Fondo
-                            imageRow.createCell(23).setCellValue(process.getProjekt().getMetsRightsSponsor());
-                            // Field: provenance
-                            // Comments: Y/N, will be chosen by the cataloger or provided by the institution in there excel
-                            // Clarification: Imported into Goobi as part of the excel upload of the inventory spreadsheet. This is the provenence information provided by the source library "Y" or "N" it will always be present.
-                            // Example: y
-                            imageRow.createCell(24).setCellValue(provenance);
-                            // Field: Marginalia
-                            // Comments: Y/N, will be chosen by the cataloger or provided by the institution in there excel
-                            // Clarification: Imported into Goobi as part of the excel upload of the inventory spreadsheet. This is the marginalia information provided by the source library "Y" or "N" it will always be present.
-                            // Example: y
-                            imageRow.createCell(25).setCellValue(marginalia);
-                            // Field: censorship
-                            // Comments: Y/N, will be chosen by the cataloger or provided by the institution in there excel
-                            // Clarification: Imported into Goobi as part of the excel upload of the inventory spreadsheet. This is the Censorshop information provided by the source library "Y" or "N" it will always be present.
-                            // Example: N
-                            imageRow.createCell(26).setCellValue(censorship);
-                            // Field: additional authors in Latin
-                            // Comments: will be taken from VIAF based on the 700 field in the NLI record, can be multiple should be seperated with ";"
-                            // Clarification: Taken automatically by Goobi from the 700 field in the NLI Alma bibliographic record with the prefix $$LAT (to denote Latin names) All additional author names to be copied into this field separated by a semicolon+space "; "
-                            // Example:
-
-                            imageRow.createCell(27).setCellValue(additionalAuthorLat.toString());
-                            // Field: Additional authors in Hebrew
-                            // Comments: will be taken from the 700 field in the NLI record, can be multiple should be seperated with ";"
-                            // Clarification: Taken automatically by Goobi from the 700 field in the NLI Alma bibliographic record with the prefix $$HEB (to denote Hebrew names) All additional author names to be copied into this field separated by a semicolon+space "; "
-                            // Example:
-
-                            imageRow.createCell(28).setCellValue(additionalAuthorHeb.toString());
-                            // Field: Additional authors references
-                            // Comments: will be taken from VIAF based on the 700 field in the NLI record, can be multiple should be seperated with ";"
-                            // Clarification: To be taken from VIAF, Exact Query using the Israel data set on VIAF only the search term is the content of field 700 to be extracted from the NLI ALMA bibliographic record. All other name forms to be copied into this field separated by a semicolon+space "; "
-                            // Example:
-                            imageRow.createCell(29).setCellValue(additionalAuthorOther.toString());
-                            // Field: Number of copies
-                            // Comments: calculated by GOOBI, or provided by the institutino in there excel
-                            // Clarification: This is to be taken from the excel upload of the inventory spreadsheet
-                            // Example: 1
-                            imageRow.createCell(30).setCellValue(StringUtils.isBlank(copies) ? "" : copies);
-
-                            imageRow.createCell(31).setCellValue(shelfmark);
-
-                            rowCounter = rowCounter + 1;
-                        }
-                        if (allowZipDownload) {
-                            // export images
-                            Path source = Paths.get(process.getConfiguredImageFolder(imageFolder));
-                            Path target = Paths.get(exportFolder, projectName, process.getTitel());
-                            if (!Files.exists(target)) {
-                                Files.createDirectories(target);
-                            }
-                            StorageProvider.getInstance().copyDirectory(source, target);
-                        }
+                    ProcessMetadata data = pending.poll().get();
+                    if (data != null) {
+                        imageStage.add(data);
+                        writeImageRows(writers, settings.getLayout(), data, imageConverter);
+                        currentExport.put(data);
                     }
-                } catch (ReadException | PreferencesException | IOException | SwapException | DAOException e) {
-                    log.error(e);
+                } catch (ExecutionException e) {
+                    log.error(e.getCause());
                     error = true;
-                }
-            }
-            // save/download excel
-            Path destination = Paths.get(exportFolder, projectName);
-            if (!StorageProvider.getInstance().isFileExists(destination)) {
-                try {
-                    StorageProvider.getInstance().createDirectories(destination);
                 } catch (IOException e) {
-                    log.error(e);
+                    log.error("Cannot write the metadata files", e);
+                    error = true;
                 }
+                job.addProgress(1);
+            }
+            if (!job.isCancelled()) {
+                imageStage.finish();
             }
+        } catch (InterruptedException e) {
+            // a cancelled job still closes the metadata files
+            if (!job.isCancelled()) {
+                log.error(e);
+                Thread.currentThread().interrupt();
+            }
+            error = true;
+        } finally {
+            executor.shutdownNow();
+            imageStage.close();
+        }
+        if (imageStage.isError()) {
+            error = true;
+        }
+        publisherResolver.close();
+        imageCopier.close();
+        // save/download excel
+        job.startPhase(ExportJob.Phase.WRITE, writers.size());
+        for (RowWriter writer : writers) {
             try {
-                Path metadataXlsPath = Paths.get(destination.toString(), "metadata.xlsx");
-                log.info("Writing metadata file to {}", metadataXlsPath);
-                OutputStream out = Files.newOutputStream(metadataXlsPath);
-                wb.write(out);
-                out.flush();
-                out.close();
-                wb.close();
+                writer.close();
             } catch (IOException e) {
                 log.error(e);
                 error = true;
             }
-
-            // close step if no error occurred
-            if (!error) {
-                // close steps in separate thread
-
-                for (Process process : processesInProject) {
-                    for (Step step : process.getSchritte()) {
-                        if (closeStepName.equals(step.getTitel()) && step.getBearbeitungsstatusEnum() != StepStatus.DEACTIVATED
-                                && step.getBearbeitungsstatusEnum() != StepStatus.DONE) {
-                            CloseStepHelper.closeStep(step, null);
-                            // close step via ticket or goobiscript?
-                            break;
-                        }
-                    }
+            job.addProgress(1);
+        }
+        if (job.isCancelled()) {
+            // the next export must check all processes again
+            error = true;
+        } else if (previousExport != null) {
+            removeStaleFolders(destination, currentExport);
+        }
+        if (settings.isIncrementalExport()) {
+            try {
+                if (error) {
+                    // the next export must check all processes again
+                    Files.deleteIfExists(manifestFile);
+                } else {
+                    currentExport.save(manifestFile);
                 }
+            } catch (IOException e) {
+                log.error("Cannot write export manifest {}", manifestFile, e);
             }
-        };
-        Thread createExcelAndCloseThread = new Thread(run);
-        createExcelAndCloseThread.start();
+        }
+        if (job.isCancelled()) {
+            return;
+        }
 
-        // now zip the entire exported project and allow a download
-        if (allowZipDownload) {
-            try {
-                createExcelAndCloseThread.join();
-            } catch (InterruptedException e) {
-                log.error(e);
-                Helper.setFehlerMeldung("Error exporting project. See application log for details");
-                return;
+        // close step if no error occurred
+        if (!error) {
+            List<Integer> closeStepIds = new ArrayList<>();
+            for (ExportProcess process : processesInProject) {
+                if (process.getCloseStepId() != null) {
+                    closeStepIds.add(process.getCloseStepId());
+                }
             }
-            Helper.setMeldung("plugin_workflow_projectexport_exportFinished");
-            try {
-                FacesContext facesContext = FacesContextHelper.getCurrentFacesContext();
-                ExternalContext ec = facesContext.getExternalContext();
-                ec.responseReset();
-                ec.setResponseContentType("application/zip");
+            job.startPhase(ExportJob.Phase.CLOSE_STEPS, closeStepIds.size());
+            for (Integer stepId : closeStepIds) {
+                Step step = StepManager.getStepById(stepId);
+                if (step != null) {
+                    CloseStepHelper.closeStep(step, null);
+                    // close step via ticket or goobiscript?
+                }
+                job.addProgress(1);
+            }
+        } else {
+            job.fail("Error exporting project. See application log for details");
+            // the incomplete zip file is removed when it gets closed, the one of the last export is kept
+            return;
+        }
 
-                ec.setResponseHeader("Content-Disposition", "attachment; filename=" + projectName + ".zip");
-                OutputStream responseOutputStream = ec.getResponseOutputStream();
-                ZipOutputStream out = new ZipOutputStream(responseOutputStream);
+        // the images are in the zip file already, add the metadata files
+        job.startPhase(ExportJob.Phase.ZIP, 0);
+        zip.finish();
+    }
 
-                Path project = Paths.get(exportFolder, projectName);
-                ExportThread.zipFolder("", project, out);
-                out.flush();
-                out.close();
+    /**
+     * Create the bandwidth limit of the image copies
+     *
+     * @param settings the settings of the export
+     * @return the limiter or null, if the bandwidth is not limited
+     */
+    private static BandwidthLimiter createCopyLimiter(ExportSettings settings) {
+        if (settings.getCopyBandwidth() <= 0) {
+            return null;
+        }
+        try {
+            return BandwidthLimiter.create(settings.getCopyBandwidth() * 1024 * 1024, settings.getCopyLimitedHours());
+        } catch (IllegalArgumentException e) {
+            log.error("Invalid time window {}, the bandwidth is limited all day", settings.getCopyLimitedHours());
+            return BandwidthLimiter.create(settings.getCopyBandwidth() * 1024 * 1024, null);
+        }
+    }
+
+    /**
+     * Remove the folders of processes which are not part of the export anymore
+     */
+    private static void removeStaleFolders(Path destination, ExportManifest currentExport) {
+        Set<String> exportedTitles = new HashSet<>();
+        for (ProcessMetadata data : currentExport.getProcesses()) {
+            exportedTitles.add(data.getProcessTitle());
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(destination)) {
+            for (Path folder : stream) {
+                if (Files.isDirectory(folder) && !exportedTitles.contains(folder.getFileName().toString())) {
+                    log.debug("Remove folder {} of process which is not exported anymore", folder);
+                    deleteFolder(folder);
+                }
+            }
+        } catch (IOException e) {
+            log.error("Error while removing outdated export results", e);
+        }
+    }
 
-                facesContext.responseComplete();
+    private static void deleteFolder(Path folder) throws IOException {
+        if (Files.exists(folder)) {
+            try (Stream<Path> walkStream = Files.walk(folder)) {
+                walkStream.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    /**
+     * Create the writers for the configured formats of the metadata file and write the header into them. Metadata files of other formats from
+     * earlier exports are removed.
+     */
+    private static List<RowWriter> createRowWriters(Path destination, ExportSettings settings) throws IOException {
+        List<RowWriter> writers = new ArrayList<>();
+        List<String> headers = new ArrayList<>();
+        for (Column column : settings.getLayout().getColumns()) {
+            headers.add(column.getHeader());
+        }
+        for (OutputFormat format : OutputFormat.values()) {
+            Path file = destination.resolve(format.getFileName());
+            if (!settings.getOutputFormats().contains(format)) {
+                if (format == OutputFormat.XLSX) {
+                    XlsxRowWriter.deleteFiles(destination);
+                } else {
+                    Files.deleteIfExists(file);
+                }
+                continue;
+            }
+            try {
+                RowWriter writer;
+                if (format == OutputFormat.XLSX) {
+                    XlsxRowWriter xlsxWriter =
+                            new XlsxRowWriter(destination, settings.isSharedStrings(), settings.getMaxRowsPerSheet(), settings.isSplitIntoFiles());
+                    xlsxWriter.setRowWindow(settings.getRowAccessWindow());
+                    xlsxWriter.setCompressTempFiles(settings.isCompressTempFiles());
+                    if (StringUtils.isNotBlank(settings.getTempFolder())) {
+                        xlsxWriter.setTempFolder(Paths.get(settings.getTempFolder()));
+                    }
+                    writer = xlsxWriter;
+                } else if (format == OutputFormat.ARROW) {
+                    writer = new ArrowRowWriter(file);
+                } else {
+                    writer = DelimitedRowWriter.create(file, format);
+                }
+                writers.add(writer);
+                writer.writeHeader(headers);
             } catch (IOException e) {
-                log.error(e);
+                for (RowWriter writer : writers) {
+                    try {
+                        writer.close();
+                    } catch (IOException e1) {
+                        log.debug(e1);
+                    }
+                }
+                throw e;
+            }
+        }
+        return writers;
+    }
+
+    /**
+     * Write one row for each image of the process into the metadata files
+     *
+     * @param writers the writers of the metadata files
+     * @param layout the columns of the metadata files
+     * @param data the collected metadata of the process
+     * @param imageConverter creates the derivatives of the images or null, if the original images are exported
+     * @throws IOException if a metadata file cannot be written
+     */
+    private static void writeImageRows(List<RowWriter> writers, SpreadsheetLayout layout, ProcessMetadata data, ImageConverter imageConverter)
+            throws IOException {
+        List<Column> columns = layout.getColumns();
+        // the values which are the same for all images are only computed once per process
+        String[] processRow = layout.getProcessRow(data);
+        String[] row = new String[columns.size()];
+        List<String> filenames = data.getFilenames();
+        if (imageConverter != null) {
+            filenames = imageConverter.getTargetNames(filenames);
+        }
+        for (RowWriter writer : writers) {
+            writer.startProcess(filenames.size());
+        }
+        for (int i = 0; i < filenames.size(); i++) {
+            String imageName = filenames.get(i);
+            for (int column = 0; column < columns.size(); column++) {
+                String value = processRow[column];
+                if (value == null) {
+                    value = layout.getCellValue(columns.get(column), data, imageName, i + 1);
+                }
+                row[column] = value;
+            }
+            for (RowWriter writer : writers) {
+                writer.writeRow(row);
             }
-        } else {
-            Helper.setMeldung("Export started, this might run a while. Check the export folder for results.");
-            ExportThread thread = new ExportThread();
-            thread.setExportFolder(exportFolder);
-            thread.setImageFolder(imageFolder);
-            thread.setProjectName(projectName);
-            thread.setProcessesInProject(processesInProject);
-            thread.setFinishStepName(finishStepName);
-            thread.setWaitforThread(createExcelAndCloseThread);
-            thread.start();
         }
     }
 }
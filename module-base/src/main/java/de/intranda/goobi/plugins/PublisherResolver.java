@@ -0,0 +1,396 @@
+package de.intranda.goobi.plugins;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.apache.commons.lang3.StringUtils;
+
+import de.intranda.digiverso.normdataimporter.NormDataImporter;
+import de.intranda.digiverso.normdataimporter.model.MarcRecord;
+import de.intranda.digiverso.normdataimporter.model.MarcRecord.DatabaseUrl;
+import io.goobi.vocabulary.exchange.FieldDefinition;
+import io.goobi.vocabulary.exchange.VocabularySchema;
+import io.goobi.workflow.api.vocabulary.APIException;
+import io.goobi.workflow.api.vocabulary.VocabularyAPIManager;
+import io.goobi.workflow.api.vocabulary.VocabularyRecordAPI;
+import io.goobi.workflow.api.vocabulary.helper.ExtendedVocabulary;
+import io.goobi.workflow.api.vocabulary.helper.ExtendedVocabularyRecord;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Resolves the other writing forms of a publisher from the vocabulary and from VIAF. All lookups are cached for the duration of a single export,
+ * because the same few hundred publishers are referenced by thousands of processes. VIAF records are requested in the background with a limited
+ * number of threads, so the collection of the metadata does not wait for them.
+ */
+@Log4j2
+public class PublisherResolver {
+
+    private static final String CORRECTED_VALUE = "Corrected value";
+
+    // vocabulary records by authority url of the metadata, empty if the record does not exist
+    private final BoundedCache<String, Optional<PublisherRecord>> recordsByUrl;
+    // vocabulary records by publisher name, empty if the search result was not unique
+    private final BoundedCache<String, Optional<PublisherRecord>> recordsByName;
+    // requests for the names from VIAF by marc url, a request which is not answered in time is kept, so its late answer can be used
+    private final BoundedCache<String, ViafRequest> viafNames;
+    // names from previous exports, can be null
+    private final AuthorityStore authorityStore;
+    private final AtomicLong storeHits = new AtomicLong();
+    // requests the names from VIAF
+    private final Function<String, PublisherNames> viafLoader;
+    private final ExecutorService viafExecutor;
+    // maximum time in milliseconds to wait for a VIAF record, counted from the start of the request
+    private final long viafTimeout;
+    // time when the last VIAF request was started or answered, queued requests are given up when no request got answered for the timeout
+    private final AtomicLong lastViafProgress = new AtomicLong(System.currentTimeMillis());
+
+    private Long publishersVocabularyId;
+    private Long correctedValueDefinitionId;
+    private boolean definitionLoaded = false;
+
+    /**
+     *
+     * @param cacheSize maximum number of entries of each cache
+     * @param authorityStore persistent store for names resolved by previous exports or null
+     * @param viafThreads number of VIAF records to request at the same time
+     * @param viafTimeout time in milliseconds after which the unenriched publisher is used
+     */
+    public PublisherResolver(int cacheSize, AuthorityStore authorityStore, int viafThreads, long viafTimeout) {
+        this(cacheSize, authorityStore, viafThreads, viafTimeout, PublisherResolver::loadViafNames);
+    }
+
+    PublisherResolver(int cacheSize, AuthorityStore authorityStore, int viafThreads, long viafTimeout,
+            Function<String, PublisherNames> viafLoader) {
+        recordsByUrl = new BoundedCache<>(cacheSize);
+        recordsByName = new BoundedCache<>(cacheSize);
+        viafNames = new BoundedCache<>(cacheSize);
+        this.authorityStore = authorityStore;
+        this.viafLoader = viafLoader;
+        // NormDataImporter has no socket timeout, a hung request must not keep the application server from shutting down
+        this.viafExecutor = Executors.newFixedThreadPool(viafThreads, runnable -> {
+            Thread thread = new Thread(runnable, "projectexport-viaf");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.viafTimeout = viafTimeout;
+    }
+
+    /**
+     * Add the other writing forms of the publisher from the vocabulary. If the vocabulary links to VIAF, the record gets requested in the
+     * background and its names are added by {@link #applyViafNames(ProcessMetadata)}.
+     *
+     * @param data the process metadata, publisherLat must already be set
+     * @param vocabRecordUrl the authority value of the publisher metadata
+     */
+    public void enrich(ProcessMetadata data, String vocabRecordUrl) {
+        if (vocabRecordUrl == null || vocabRecordUrl.length() == 0) {
+            return;
+        }
+        String publisherLat = data.getPublisherLat();
+        try {
+            Optional<PublisherRecord> rec = getRecordByUrl(vocabRecordUrl);
+            if (rec.isPresent() && rec.get().getCorrectedValue() == null) {
+                return;
+            }
+            if (rec.isEmpty() || !rec.get().getCorrectedValue().equals(publisherLat)) {
+                // Possibly not found or a different publisher, search by name
+                if (getCorrectedValueDefinitionId() == null) {
+                    log.error("Unable to find definition id for field \"Corrected value\"");
+                    return;
+                }
+                rec = getRecordByName(publisherLat);
+                if (rec.isEmpty()) {
+                    return;
+                }
+            }
+
+            data.setPublisherOther(rec.get().getNameVariants());
+            String url = rec.get().getAuthorityUri();
+            String value = rec.get().getValueUri();
+
+            if (StringUtils.isNotBlank(url) && StringUtils.isNotBlank(value) && url.contains("viaf")) {
+                String viafUrl = url + value + "/marc21.xml";
+                data.setPublisherViafUrl(viafUrl);
+                requestViafNames(viafUrl);
+            }
+        } catch (APIException e) {
+            log.warn("Unable to find referenced vocabulary record \"{}\"", vocabRecordUrl);
+        }
+    }
+
+    /**
+     * Replace the publisher of the process with the normalized form from VIAF and add the other writing forms. Waits until the record is available
+     * or the timeout is reached, in this case the values from the vocabulary are kept. Called by the threads collecting the metadata, so that the
+     * waits for different publishers overlap.
+     *
+     * @param data the process metadata
+     */
+    public void applyViafNames(ProcessMetadata data) {
+        if (data.getPublisherViafUrl() == null) {
+            return;
+        }
+        Optional<PublisherNames> names = getViafNames(data.getPublisherViafUrl());
+        if (names.isPresent()) {
+            if (names.get().getNormalizedName() != null) {
+                data.setPublisherLat(names.get().getNormalizedName());
+            }
+            if (names.get().getOtherNames() != null) {
+                data.setPublisherOther(names.get().getOtherNames());
+            }
+        }
+    }
+
+    /**
+     * Stop all running requests, write the cache statistics into the log file and save the persistent store
+     */
+    public void close() {
+        viafExecutor.shutdownNow();
+        logStatistics();
+        if (authorityStore != null) {
+            authorityStore.save();
+        }
+    }
+
+    private void logStatistics() {
+        log.info("Publisher cache statistics: vocabulary records by url {} hits / {} misses, by name {} hits / {} misses, VIAF {} hits / {} misses",
+                recordsByUrl.getHits(), recordsByUrl.getMisses(), recordsByName.getHits(), recordsByName.getMisses(), viafNames.getHits(),
+                viafNames.getMisses());
+        if (authorityStore != null) {
+            log.info("Authority store statistics: {} of {} VIAF requests answered from the store", storeHits, viafNames.getMisses());
+        }
+    }
+
+    private Optional<PublisherRecord> getRecordByUrl(String vocabRecordUrl) {
+        Optional<PublisherRecord> rec = recordsByUrl.get(vocabRecordUrl);
+        if (rec == null) {
+            VocabularyRecordAPI api = VocabularyAPIManager.getInstance().vocabularyRecords();
+            try {
+                rec = Optional.of(new PublisherRecord(api.get(vocabRecordUrl)));
+            } catch (APIException e) {
+                rec = Optional.empty();
+            }
+            recordsByUrl.put(vocabRecordUrl, rec);
+        }
+        return rec;
+    }
+
+    private Optional<PublisherRecord> getRecordByName(String publisherName) throws APIException {
+        Optional<PublisherRecord> rec = recordsByName.get(publisherName);
+        if (rec == null) {
+            List<ExtendedVocabularyRecord> hits = VocabularyAPIManager.getInstance()
+                    .vocabularyRecords()
+                    .list(publishersVocabularyId)
+                    .search(correctedValueDefinitionId + ":" + publisherName)
+                    .all()
+                    .request()
+                    .getContent();
+
+            if (hits.size() == 1) {
+                rec = Optional.of(new PublisherRecord(hits.get(0)));
+            } else {
+                log.error("Search result for publisher \"{}\" not existing or not unique, skipping", publisherName);
+                rec = Optional.empty();
+            }
+            recordsByName.put(publisherName, rec);
+        }
+        return rec;
+    }
+
+    /**
+     * Get the id of the field "Corrected value" of the publishers vocabulary. The vocabulary is only requested once per export.
+     *
+     * @return the id or null, if the field does not exist
+     */
+    private synchronized Long getCorrectedValueDefinitionId() throws APIException {
+        if (!definitionLoaded) {
+            ExtendedVocabulary publishersVocabulary = VocabularyAPIManager.getInstance().vocabularies().findByName("Publishers");
+            VocabularySchema schema = VocabularyAPIManager.getInstance().vocabularySchemas().get(publishersVocabulary.getSchemaId());
+            publishersVocabularyId = publishersVocabulary.getId();
+            correctedValueDefinitionId = schema.getDefinitions()
+                    .stream()
+                    .filter(d -> CORRECTED_VALUE.equals(d.getName()))
+                    .map(FieldDefinition::getId)
+                    .findFirst()
+                    .orElse(null);
+            definitionLoaded = true;
+        }
+        return correctedValueDefinitionId;
+    }
+
+    /**
+     * Get the names for a VIAF url. Waits until the request is answered or the timeout is reached. The timeout starts when the request is
+     * started, not while it waits for a free thread.
+     *
+     * @param url the url of the VIAF marc record
+     * @return the names or an empty value, if the request failed or took too long
+     */
+    Optional<PublisherNames> getViafNames(String url) {
+        ViafRequest request = requestViafNames(url);
+        while (true) {
+            long startedAt = request.startedAt;
+            // a waiting request is given up, if the running requests do not finish either
+            long deadline = (startedAt > 0 ? startedAt : lastViafProgress.get()) + viafTimeout;
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+                if (startedAt == 0 && request.startedAt > 0) {
+                    // started in the meantime, wait for its own timeout
+                    continue;
+                }
+                log.debug("VIAF record {} not available in time", url);
+                return request.result.getNow(Optional.empty());
+            }
+            try {
+                return request.result.get(wait, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // check again, the request may have been started in the meantime
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return Optional.empty();
+            } catch (ExecutionException e) {
+                return Optional.empty();
+            }
+        }
+    }
+
+    /**
+     * Get the names for a VIAF url from the persistent store or start a request in the background. Each url is requested only once.
+     *
+     * @param url the url of the VIAF marc record
+     * @return the request, its result is empty if the request failed
+     */
+    private ViafRequest requestViafNames(String url) {
+        return viafNames.computeIfAbsent(url, u -> {
+            ViafRequest request = new ViafRequest();
+            PublisherNames stored = authorityStore == null ? null : authorityStore.get(u);
+            if (stored != null) {
+                storeHits.incrementAndGet();
+                request.startedAt = System.currentTimeMillis();
+                request.result.complete(Optional.of(stored));
+                return request;
+            }
+            viafExecutor.execute(() -> {
+                request.startedAt = System.currentTimeMillis();
+                lastViafProgress.set(request.startedAt);
+                try {
+                    PublisherNames names = viafLoader.apply(u);
+                    if (authorityStore != null && names != null) {
+                        // a late answer is still useful for the next export
+                        authorityStore.put(u, names);
+                    }
+                    request.result.complete(Optional.ofNullable(names));
+                } catch (RuntimeException e) {
+                    log.error("Error requesting VIAF record {}", u, e);
+                    request.result.complete(Optional.empty());
+                } finally {
+                    lastViafProgress.set(System.currentTimeMillis());
+                }
+            });
+            return request;
+        });
+    }
+
+    /**
+     * Request the VIAF cluster record and the preferred authority record linked in it
+     *
+     * @param url the url of the VIAF marc record
+     * @return the names found in the authority record or null
+     */
+    static PublisherNames loadViafNames(String url) {
+        MarcRecord recordToImport = null;
+        try {
+            recordToImport = NormDataImporter.getSingleMarcRecord(url);
+        } catch (Exception e) {
+            log.error(e);
+        }
+        if (recordToImport == null) {
+            return null;
+        }
+        List<String> databases = new ArrayList<>();
+        databases.add("j9u"); // NLI
+        databases.add("lc"); // LOC
+        databases.add("bav"); // Vatican
+        databases.add("gnd"); // GND
+        databases.add("isni"); // ISNI
+        DatabaseUrl currentUrl = null;
+        for (String database : databases) {
+            if (currentUrl == null) {
+                for (DatabaseUrl dbUrl : recordToImport.getAuthorityDatabaseUrls()) {
+                    if (dbUrl.getDatabaseCode().equalsIgnoreCase(database)) {
+                        currentUrl = dbUrl;
+                    }
+                }
+            }
+        }
+        if (currentUrl == null && !recordToImport.getAuthorityDatabaseUrls().isEmpty()) {
+            currentUrl = recordToImport.getAuthorityDatabaseUrls().get(0);
+        }
+        if (currentUrl == null) {
+            return null;
+        }
+        recordToImport = NormDataImporter.getSingleMarcRecord(currentUrl.getMarcRecordUrl());
+        if (recordToImport == null) {
+            return null;
+        }
+        String normalizedName = null;
+        String otherNames = null;
+        List<String> normalizedVariant = recordToImport.getSubFieldValues("100", null, null, "a", "b", "c");
+        List<String> otherVariants = recordToImport.getSubFieldValues("400", null, null, "a", "b", "c");
+        if (normalizedVariant != null && !normalizedVariant.isEmpty()) {
+            normalizedName = normalizedVariant.get(0);
+        }
+        if (otherVariants != null && !otherVariants.isEmpty()) {
+            otherNames = StringUtils.defaultIfEmpty(String.join("; ", otherVariants), null);
+        }
+        return new PublisherNames(normalizedName, otherNames);
+    }
+
+    /**
+     * A request for the names of a VIAF url
+     */
+    private static class ViafRequest {
+        // time when a thread started the request, 0 while it waits in the queue
+        private volatile long startedAt = 0;
+        private final CompletableFuture<Optional<PublisherNames>> result = new CompletableFuture<>();
+    }
+
+    /**
+     * The fields of a publishers vocabulary record used for the export
+     */
+    @Getter
+    private static class PublisherRecord {
+        private String correctedValue;
+        private String nameVariants;
+        private String authorityUri;
+        private String valueUri;
+
+        PublisherRecord(ExtendedVocabularyRecord rec) {
+            correctedValue = rec.getFieldValueForDefinitionName(CORRECTED_VALUE).orElse(null);
+            nameVariants = rec.getFieldValueForDefinitionName("Name variants").orElse("");
+            authorityUri = rec.getFieldValueForDefinitionName("Authority URI").orElse("");
+            valueUri = rec.getFieldValueForDefinitionName("Value URI").orElse("");
+        }
+    }
+
+    /**
+     * Normalized and other name forms of a publisher from an authority record
+     */
+    @Getter
+    @AllArgsConstructor
+    public static class PublisherNames {
+        // the preferred name or null
+        private String normalizedName;
+        // other name forms separated by "; " or null
+        private String otherNames;
+    }
+}
@@ -0,0 +1,45 @@
+package de.intranda.goobi.plugins;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Writes the image rows of the export into a metadata file. All writers of an export receive the same rows in the same order.
+ */
+public interface RowWriter extends Closeable {
+
+    /**
+     * Write the header row
+     *
+     * @param headers the column headers
+     * @throws IOException
+     */
+    void writeHeader(List<String> headers) throws IOException;
+
+    /**
+     * Called before the rows of a process are written
+     *
+     * @param rows the number of rows of the process
+     * @throws IOException
+     */
+    default void startProcess(int rows) throws IOException {
+        // nothing to prepare
+    }
+
+    /**
+     * Write a row. The array is reused for the next row, the writer must not keep it.
+     *
+     * @param values the cell values, one for each column
+     * @throws IOException
+     */
+    void writeRow(String[] values) throws IOException;
+
+    /**
+     * Finish the file
+     *
+     * @throws IOException
+     */
+    @Override
+    void close() throws IOException;
+}
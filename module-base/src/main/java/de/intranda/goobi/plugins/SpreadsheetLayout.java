@@ -0,0 +1,489 @@
+package de.intranda.goobi.plugins;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.apache.commons.lang3.StringUtils;
+
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * The columns of the spreadsheet and where their values come from. The layout is compiled once per export: each metadata type, property and
+ * process field that is used in a column gets a slot in the values of {@link ProcessMetadata}, the metadata of a process are then assigned to their
+ * slots with a single lookup per metadata.
+ */
+@Log4j2
+public class SpreadsheetLayout {
+
+    /**
+     * Where the value of a column comes from
+     */
+    public enum SourceType {
+        // metadata of the top logical element, several types can be separated by |
+        METADATA,
+        // process property
+        PROPERTY,
+        // field of the process or its project, see ProcessField
+        PROCESS,
+        // fixed text
+        CONSTANT,
+        // value created for each image or after the metadata was collected, see DerivedValue
+        DERIVED
+    }
+
+    /**
+     * How several metadata of the same type are combined
+     */
+    public enum Mode {
+        FIRST,
+        LAST,
+        JOIN
+    }
+
+    public enum ProcessField {
+        ID,
+        TITLE,
+        RIGHTSOWNER,
+        RIGHTSOWNERSITE,
+        RIGHTSSPONSOR
+    }
+
+    public enum DerivedValue {
+        // process title and image name
+        FILEPATH,
+        // number of the image within the process
+        IMAGENUMBER,
+        // Y for the representative image, N for all other images
+        REPRESENTATIVE,
+        // the first publisher, replaced by the normalized name from the vocabulary or VIAF
+        PUBLISHER,
+        // other names of the publisher from the vocabulary or VIAF
+        PUBLISHEROTHER
+    }
+
+    // metadata type used for the publisher columns
+    public static final String PUBLISHER_METADATA = "Publisher";
+    private static final String JOIN_SEPARATOR = "; ";
+
+    @Getter
+    private final List<Column> columns;
+    // number of values collected per process
+    @Getter
+    private final int slotCount;
+    // names of the properties used in the columns, the index is the position in ExportProcess
+    @Getter
+    private final List<String> propertyNames;
+    // sources filled from the metadata of the process, by metadata type
+    private final Map<String, List<ColumnSource>> metadataSources;
+    private final List<ColumnSource> propertySources;
+    private final List<ColumnSource> processSources;
+
+    private SpreadsheetLayout(List<Column> columns) {
+        this.columns = Collections.unmodifiableList(columns);
+        Map<String, List<ColumnSource>> metadata = new HashMap<>();
+        List<String> properties = new ArrayList<>();
+        List<ColumnSource> propertyList = new ArrayList<>();
+        List<ColumnSource> processList = new ArrayList<>();
+        boolean publisher = false;
+        int slots = 0;
+        for (Column column : columns) {
+            for (ColumnSource source : column.getSources()) {
+                switch (source.getType()) {
+                    case METADATA:
+                        source.slot = slots++;
+                        for (String type : source.getValue().split("\\|")) {
+                            metadata.computeIfAbsent(type.trim(), k -> new ArrayList<>()).add(source);
+                        }
+                        break;
+                    case PROPERTY:
+                        source.slot = slots++;
+                        if (!properties.contains(source.getValue())) {
+                            properties.add(source.getValue());
+                        }
+                        source.propertyIndex = properties.indexOf(source.getValue());
+                        propertyList.add(source);
+                        break;
+                    case PROCESS:
+                        source.slot = slots++;
+                        processList.add(source);
+                        break;
+                    case DERIVED:
+                        if (!publisher
+                                && (source.getDerivedValue() == DerivedValue.PUBLISHER || source.getDerivedValue() == DerivedValue.PUBLISHEROTHER)) {
+                            // the publisher metadata is passed to the publisher resolver instead of being stored in a slot
+                            metadata.computeIfAbsent(PUBLISHER_METADATA, k -> new ArrayList<>()).add(source);
+                            publisher = true;
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+        this.slotCount = slots;
+        this.metadataSources = metadata;
+        this.propertyNames = Collections.unmodifiableList(properties);
+        this.propertySources = propertyList;
+        this.processSources = processList;
+    }
+
+    /**
+     * Read the layout from the configuration
+     *
+     * @param config the configuration of the plugin
+     * @return the configured layout or the default layout, if no columns are configured
+     */
+    public static SpreadsheetLayout fromConfig(HierarchicalConfiguration config) {
+        List<HierarchicalConfiguration> columnConfigs = config.configurationsAt("/columns/column");
+        if (columnConfigs.isEmpty()) {
+            return defaultLayout();
+        }
+        List<Column> columns = new ArrayList<>();
+        for (HierarchicalConfiguration columnConfig : columnConfigs) {
+            Column column = new Column(columnConfig.getString("@header", ""));
+            column.addSource(columnConfig.getString("@source"), columnConfig.getString("@value"), columnConfig.getString("@mode"));
+            for (HierarchicalConfiguration fallback : columnConfig.configurationsAt("fallback")) {
+                column.addSource(fallback.getString("@source"), fallback.getString("@value"), fallback.getString("@mode"));
+            }
+            columns.add(column);
+        }
+        return new SpreadsheetLayout(columns);
+    }
+
+    /**
+     * The columns of the spreadsheet as expected by TECA
+     *
+     * @return the default layout
+     */
+    public static SpreadsheetLayout defaultLayout() {
+        List<Column> columns = new ArrayList<>();
+        // Generated by Goobi from the process title/image filename
+        // Example: RM0166F05-0000001/ RM0166F05-0000001_001.jpg
+        columns.add(new Column("File path").addSource("derived", "filePath", null));
+        // Generated by Goobi from the image sequence numbering at the end of the image filename
+        // Example: 1
+        columns.add(new Column("Shots sequence").addSource("derived", "imageNumber", null));
+        // Y/N for the image that should be used as the thumbnail, as selected in the workflow by the cataloguer
+        // Example: N
+        columns.add(new Column("Prime Image Flag").addSource("derived", "representative", null));
+        // Generated by Goobi from the process title
+        // Example: RM0166F05-0000001
+        columns.add(new Column("Order").addSource("process", "title", null));
+        // Should be the number in the original library. will be loaded based on the excel provided by the institution after inserting the barcodes
+        // Example: CB_FI_015
+        columns.add(new Column("Identification").addSource("process", "title", null));
+        // To be taken from VIAF, Exact Query using the Israel data set on VIAF only the search term is the content of field G below which has been
+        // extracted from the NLI ALMA bibliographic record. The version to be used is Either: Italian, Vatican or LOC if Italian or vatican name
+        // forms are not present
+        // Example: Aaron Berechiah ben Moses, of Modena, 1549-1639
+        columns.add(new Column("Author lat").addSource("metadata", "AuthorPreferred", null));
+        // Taken automatically by Goobi from the 100 field in the NLI Alma bibliographic record with the prefix $$HEB (to denote the Hebrew Name)
+        // Example: מודנה, אהרן ברכיה בן משה
+        columns.add(new Column("Author in Hebrew").addSource("metadata", "AuthorPreferredHeb", null));
+        // To be taken from VIAF, all other name forms to be copied into this field separated by a semicolon+space "; "
+        // Example: Aaron Berechiah ben Moses von Modena -1639; Aaron Berechja di Modena
+        columns.add(new Column("Other Name Forms").addSource("metadata", "AuthorPreferredOther", null));
+        // To be taken from the WorldCat transliterated MARC record (field 245) based on the OCLC number entered by the cataloguer. If no OCLC
+        // number then this will be manually transliterated by the cataloguer
+        // Example: Maʻavar Yaboḳ
+        columns.add(new Column("Litle lat").addSource("metadata", "OtherTitle", null));
+        // Taken automatically by Goobi from the 245 field in the NLI Alma bibliographic record
+        columns.add(new Column("Title heb").addSource("metadata", "TitleDocMain", null));
+        // In most cases this is inserted by the cataloguer in Goobi Workflow after they have found the book on the ALMA system
+        // Example: 990010919220205000
+        columns.add(new Column("NLI number").addSource("property", "NLI_Number", null));
+        // This is inserted by the cataloguer in Goobi workflow if a suitable transliterated record can be found on WorldCat
+        // Example: 47085556
+        columns.add(new Column("OCLC number").addSource("metadata", "OclcID", null));
+        // This is the imprint field which will be taken from the OCLC record under field 260 (for the majority of the time) or 264 if there is
+        // no information in the 260 field
+        // Example: Manṭovah :  Be-vet Yehudah Shemuʼel mi-Prushah u-veno,   [386] 1626.
+        columns.add(new Column("Notes_01").addSource("metadata", "Notes01", null));
+        // To be taken from the NLI ALMA bibliographic record from field 008
+        // Example: 1626
+        columns.add(new Column("Normalised Year").addSource("metadata", "PublicationRun|PublicationYear", null));
+        // To be taken from VIAF, Exact Query using the Israel data set on VIAF only the search term is the content of field 751 (with a sub
+        // field "e" which means publishing place). The version to be used is Either: Italian, Vatican or LOC if Italian or vatican name forms
+        // are not present
+        // Example: Mantova
+        columns.add(new Column("Normalised City").addSource("metadata", "PlaceOfPublicationNormalized", null)
+                .addSource("metadata", "PlaceOfPublication", null));
+        // To be taken from VIAF, all other name forms to be copied into this field separated by a semicolon+space "; "
+        // Example: Mantua (Italy); Mantoue (Italie); מנטובה (איטליה)
+        columns.add(new Column("Reference forms of city.").addSource("metadata", "PlaceOfPublicationOther", null));
+        // To be taken from the vocabulary manager in Goobi, the publishers will be manually selected by the cataloguers
+        // Example: Perugia, Yehudah Shemuʼel ben Yehoshuʻa
+        columns.add(new Column("Normalised Publisher").addSource("derived", "publisher", null));
+        columns.add(new Column("Other name forms for the Publisher").addSource("derived", "publisherOther", null));
+        // This is an area for the cataloguer to record any notes as needed in Goobi workflow
+        // Example: Missing pages.
+        columns.add(new Column("Notes_02").addSource("metadata", "Notes02", null));
+        // This is the link to the NLI ALMA catalogue record for the book
+        columns.add(new Column("Link 1 NLI catalog").addSource("metadata", "NLICatalog", null));
+        // Standard wording, always the same as in the cell on the right
+        columns.add(new Column("Etichetta 1").addSource("constant", "National Library of Israel record", null));
+        // This is the website of the holding institution, taken from the project (there will be 1 project per institution)
+        columns.add(new Column("Link 2 website of keeping institution").addSource("process", "rightsOwnerSite", null));
+        // This is the name of the holding institution, taken from the project
+        columns.add(new Column("Etichetta 2 keeping institution").addSource("process", "rightsOwner", null));
+        columns.add(new Column("Fondo").addSource("process", "rightsSponsor", null));
+        // Imported into Goobi as part of the excel upload of the inventory spreadsheet, "Y" or "N"
+        columns.add(new Column("Provenance").addSource("property", "Provenance", null));
+        columns.add(new Column("Marginalia").addSource("property", "Marginalia", null));
+        columns.add(new Column("Censorship").addSource("property", "Censorship", null));
+        // All additional author names to be copied into this field separated by a semicolon+space "; "
+        columns.add(new Column("Additional authors in Latin").addSource("metadata", "AdditionalAuthor", "join"));
+        columns.add(new Column("Additional authors in Hebrew").addSource("metadata", "AdditionalAuthorHeb", "join"));
+        columns.add(new Column("Additional authors references").addSource("metadata", "AdditionalAuthorOther", "join"));
+        // This is to be taken from the excel upload of the inventory spreadsheet
+        // Example: 1
+        columns.add(new Column("Number of copies").addSource("property", "Number of Copies", null));
+        // the shelfmark of the source library, the process title if it is missing
+        columns.add(new Column("Segnatura").addSource("metadata", "shelfmarksource", null).addSource("process", "title", null));
+        return new SpreadsheetLayout(columns);
+    }
+
+    /**
+     * Get a description of the layout. If it changes, the values collected by an earlier export cannot be used.
+     *
+     * @return the description
+     */
+    public String getSignature() {
+        StringBuilder signature = new StringBuilder();
+        for (Column column : columns) {
+            signature.append(column.getHeader());
+            for (ColumnSource source : column.getSources()) {
+                signature.append(',').append(source.getType()).append(':').append(source.getValue()).append(':').append(source.getMode());
+            }
+            signature.append(';');
+        }
+        return signature.toString();
+    }
+
+    /**
+     * Get the column sources which use a metadata type. The publisher is returned as derived source.
+     *
+     * @param metadataType the name of the metadata type
+     * @return the sources or null, if the metadata is not exported
+     */
+    public List<ColumnSource> getMetadataSources(String metadataType) {
+        return metadataSources.get(metadataType);
+    }
+
+    /**
+     * Get the metadata types which are used in the columns
+     *
+     * @return the names of the metadata types
+     */
+    public List<String> getMetadataTypes() {
+        return new ArrayList<>(metadataSources.keySet());
+    }
+
+    /**
+     * Fill the values of the properties and the process fields
+     *
+     * @param values the values of the process
+     * @param exportProcess the process, with the properties of this layout
+     */
+    public void collectProcessValues(String[] values, ExportProcess exportProcess) {
+        for (ColumnSource source : propertySources) {
+            values[source.slot] = StringUtils.defaultString(exportProcess.getProperty(source.propertyIndex));
+        }
+        for (ColumnSource source : processSources) {
+            switch (source.getProcessField()) {
+                case ID:
+                    values[source.slot] = String.valueOf(exportProcess.getId());
+                    break;
+                case TITLE:
+                    values[source.slot] = exportProcess.getTitle();
+                    break;
+                case RIGHTSOWNER:
+                    values[source.slot] = exportProcess.getRightsOwner();
+                    break;
+                case RIGHTSOWNERSITE:
+                    values[source.slot] = exportProcess.getRightsOwnerSite();
+                    break;
+                case RIGHTSSPONSOR:
+                    values[source.slot] = exportProcess.getRightsSponsor();
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Get the content of a cell
+     *
+     * @param column the column
+     * @param data the collected metadata of the process
+     * @param imageName name of the exported image
+     * @param imageNumber number of the image within the process, starting with 1
+     * @return the value of the first source of the column which is not empty
+     */
+    public String getCellValue(Column column, ProcessMetadata data, String imageName, int imageNumber) {
+        for (ColumnSource source : column.getSources()) {
+            String value;
+            switch (source.getType()) {
+                case CONSTANT:
+                    value = source.getValue();
+                    break;
+                case DERIVED:
+                    value = getDerivedValue(source.getDerivedValue(), data, imageName, imageNumber);
+                    break;
+                default:
+                    String[] values = data.getValues();
+                    value = values == null || source.slot >= values.length ? null : values[source.slot];
+                    break;
+            }
+            if (StringUtils.isNotBlank(value)) {
+                return value;
+            }
+        }
+        return "";
+    }
+
+    /**
+     * Get the cell values which are the same for all images of a process
+     *
+     * @param data the collected metadata of the process
+     * @return the values by column, null for the columns which depend on the image
+     */
+    public String[] getProcessRow(ProcessMetadata data) {
+        String[] row = new String[columns.size()];
+        for (int i = 0; i < row.length; i++) {
+            Column column = columns.get(i);
+            if (!column.isImageDependent()) {
+                row[i] = getCellValue(column, data, null, 0);
+            }
+        }
+        return row;
+    }
+
+    private static String getDerivedValue(DerivedValue derivedValue, ProcessMetadata data, String imageName, int imageNumber) {
+        switch (derivedValue) {
+            case FILEPATH:
+                return data.getProcessTitle() + "/" + imageName;
+            case IMAGENUMBER:
+                return String.valueOf(imageNumber);
+            case REPRESENTATIVE:
+                return String.valueOf(imageNumber).equals(data.getRepresentative()) ? "Y" : "N";
+            case PUBLISHER:
+                return data.getPublisherLat();
+            case PUBLISHEROTHER:
+                return data.getPublisherOther();
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * A column of the spreadsheet with its sources. The first source with a value is used.
+     */
+    public static class Column {
+
+        @Getter
+        private final String header;
+        @Getter
+        private final List<ColumnSource> sources = new ArrayList<>();
+        // true if the value can differ between the images of a process
+        @Getter
+        private boolean imageDependent = false;
+
+        public Column(String header) {
+            this.header = header;
+        }
+
+        /**
+         * Add a source to the column. Invalid sources are logged and ignored.
+         *
+         * @param type the source type
+         * @param value the metadata type, property name, process field, text or derived value, depending on the type
+         * @param mode first, last or join, only used for metadata
+         * @return the column
+         */
+        public Column addSource(String type, String value, String mode) {
+            try {
+                ColumnSource source = new ColumnSource(type, value, mode);
+                sources.add(source);
+                if (source.getDerivedValue() == DerivedValue.FILEPATH || source.getDerivedValue() == DerivedValue.IMAGENUMBER
+                        || source.getDerivedValue() == DerivedValue.REPRESENTATIVE) {
+                    imageDependent = true;
+                }
+            } catch (IllegalArgumentException e) {
+                log.error("Invalid source in column '{}': {}", header, e.getMessage());
+            }
+            return this;
+        }
+    }
+
+    /**
+     * A source of a column value
+     */
+    public static class ColumnSource {
+
+        @Getter
+        private final SourceType type;
+        @Getter
+        private final String value;
+        @Getter
+        private final Mode mode;
+        @Getter
+        private ProcessField processField;
+        @Getter
+        private DerivedValue derivedValue;
+        // position in the values of ProcessMetadata
+        private int slot = -1;
+        // position in the property values of ExportProcess
+        private int propertyIndex = -1;
+
+        ColumnSource(String type, String value, String mode) {
+            if (StringUtils.isBlank(type)) {
+                throw new IllegalArgumentException("missing source type");
+            }
+            this.type = SourceType.valueOf(type.trim().toUpperCase(Locale.ENGLISH));
+            this.value = type.equalsIgnoreCase("constant") ? StringUtils.defaultString(value) : StringUtils.trimToEmpty(value);
+            this.mode = StringUtils.isBlank(mode) ? Mode.LAST : Mode.valueOf(mode.trim().toUpperCase(Locale.ENGLISH));
+            if (this.type != SourceType.CONSTANT && this.value.isEmpty()) {
+                throw new IllegalArgumentException("missing value for source " + type);
+            }
+            if (this.type == SourceType.PROCESS) {
+                processField = ProcessField.valueOf(this.value.toUpperCase(Locale.ENGLISH));
+            } else if (this.type == SourceType.DERIVED) {
+                derivedValue = DerivedValue.valueOf(this.value.toUpperCase(Locale.ENGLISH));
+            }
+        }
+
+        /**
+         * Add the value of a metadata to the values of a process
+         *
+         * @param values the values of the process
+         * @param metadataValue the value of the metadata
+         */
+        public void collect(String[] values, String metadataValue) {
+            if (slot < 0 || StringUtils.isBlank(metadataValue)) {
+                return;
+            }
+            String current = values[slot];
+            switch (mode) {
+                case FIRST:
+                    if (current == null) {
+                        values[slot] = metadataValue;
+                    }
+                    break;
+                case JOIN:
+                    values[slot] = current == null ? metadataValue : current + JOIN_SEPARATOR + metadataValue;
+                    break;
+                default:
+                    values[slot] = metadataValue;
+                    break;
+            }
+        }
+    }
+}
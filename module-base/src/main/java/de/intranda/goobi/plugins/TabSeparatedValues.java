@@ -0,0 +1,62 @@
+package de.intranda.goobi.plugins;
+
+/**
+ * Escaping of the values in the tab separated files kept by the export, like the manifest and the authority store. Backslashes, tabs and line
+ * breaks are escaped, so that each entry stays on a single line.
+ */
+public final class TabSeparatedValues {
+
+    // written for a null value, a backslash in a value is always escaped
+    private static final String NULL = "\\N";
+
+    private TabSeparatedValues() {
+    }
+
+    /**
+     * Escape a value
+     *
+     * @param value the value or null
+     * @return the escaped value
+     */
+    public static String escape(String value) {
+        if (value == null) {
+            return NULL;
+        }
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    /**
+     * Restore an escaped value
+     *
+     * @param value the escaped value
+     * @return the value or null, if a null value was escaped
+     */
+    public static String unescape(String value) {
+        if (NULL.equals(value)) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                switch (next) {
+                    case 't':
+                        sb.append('\t');
+                        break;
+                    case 'n':
+                        sb.append('\n');
+                        break;
+                    case 'r':
+                        sb.append('\r');
+                        break;
+                    default:
+                        sb.append(next);
+                }
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
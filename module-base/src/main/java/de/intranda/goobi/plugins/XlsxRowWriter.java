@@ -0,0 +1,240 @@
+package de.intranda.goobi.plugins;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.streaming.GZIPSheetDataWriter;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.apache.poi.xssf.streaming.SheetDataWriter;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Writes the rows into Excel files. The rows are streamed into temporary files, an Excel file is created when it is complete. If a sheet reaches
+ * the maximum number of rows, the writer continues in a new sheet or a new file. The rows of a process are kept in the same sheet, if they fit
+ * into it. An index of the sheets is written, if the rows were split. The size of the temporary files is tracked and logged when the writer gets
+ * closed.
+ */
+@Log4j2
+public class XlsxRowWriter implements RowWriter {
+
+    // maximum number of rows of an Excel sheet, the header row is not included
+    public static final int MAX_ROWS = 1048575;
+    public static final String FILE_NAME = "metadata.xlsx";
+    public static final String INDEX_FILE_NAME = "metadata_index.csv";
+    private static final String SHEET_NAME = "images";
+
+    private final Path folder;
+    private final boolean sharedStrings;
+    private final int maxRows;
+    private final boolean splitFiles;
+    // number of rows kept in memory before they are flushed into the temporary file of the sheet
+    @Setter
+    private int rowWindow = 20;
+    // compress the temporary files of the sheets
+    @Setter
+    private boolean compressTempFiles = true;
+    // folder for the temporary files, null to use the default temporary folder of POI
+    @Setter
+    private Path tempFolder;
+
+    private String[] header;
+    private SXSSFWorkbook workbook;
+    private Path file;
+    private Sheet sheet;
+    private int fileCounter = 0;
+    private int sheetCounter = 0;
+    // rows of the current sheet without the header
+    private int sheetRows = 0;
+    // rows written into all sheets without the headers
+    private long totalRows = 0;
+    private final List<String> index = new ArrayList<>();
+    // temporary files of the current workbook
+    private final List<File> tempFiles = new ArrayList<>();
+    // largest size of the temporary files of a workbook
+    @Getter
+    private long peakTempSize = 0;
+
+    /**
+     *
+     * @param folder the folder to create the Excel files in
+     * @param sharedStrings true to store each distinct value once in the shared strings table, false to write the values inline
+     * @param maxRows maximum number of rows per sheet without the header
+     * @param splitFiles true to continue in a new file, false to continue in a new sheet of the same file if a sheet is full
+     */
+    public XlsxRowWriter(Path folder, boolean sharedStrings, int maxRows, boolean splitFiles) {
+        this.folder = folder;
+        this.sharedStrings = sharedStrings;
+        this.maxRows = Math.max(1, Math.min(maxRows, MAX_ROWS));
+        this.splitFiles = splitFiles;
+    }
+
+    /**
+     * Delete the Excel files and the index of an earlier export
+     *
+     * @param folder the export folder of the project
+     * @throws IOException
+     */
+    public static void deleteFiles(Path folder) throws IOException {
+        Files.deleteIfExists(folder.resolve(FILE_NAME));
+        Files.deleteIfExists(folder.resolve(INDEX_FILE_NAME));
+        if (!Files.isDirectory(folder)) {
+            return;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder, "metadata_*.xlsx")) {
+            for (Path part : stream) {
+                Files.delete(part);
+            }
+        }
+    }
+
+    @Override
+    public void writeHeader(List<String> headers) throws IOException {
+        header = headers.toArray(new String[headers.size()]);
+        deleteFiles(folder);
+        openFile();
+    }
+
+    @Override
+    public void startProcess(int rows) throws IOException {
+        // keep the rows of a process together, unless they do not fit into an empty sheet
+        if (sheetRows > 0 && sheetRows + rows > maxRows && rows <= maxRows) {
+            rollOver();
+        }
+    }
+
+    @Override
+    public void writeRow(String[] values) throws IOException {
+        if (sheetRows >= maxRows) {
+            rollOver();
+        }
+        fillRow(sheet.createRow(sheetRows + 1), values);
+        sheetRows++;
+        totalRows++;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (workbook == null) {
+            return;
+        }
+        finishSheet();
+        finishFile();
+        if (index.size() > 1) {
+            List<String> lines = new ArrayList<>();
+            lines.add("file,sheet,first_row,row_count");
+            lines.addAll(index);
+            Files.write(folder.resolve(INDEX_FILE_NAME), lines, StandardCharsets.UTF_8);
+        }
+        log.info("Wrote {} rows into {} sheets, the temporary files used up to {} bytes", totalRows, index.size(), peakTempSize);
+    }
+
+    private void rollOver() throws IOException {
+        finishSheet();
+        if (splitFiles) {
+            finishFile();
+            openFile();
+        } else {
+            openSheet();
+        }
+    }
+
+    private void openFile() {
+        fileCounter++;
+        file = folder.resolve(fileCounter == 1 ? FILE_NAME : "metadata_" + fileCounter + ".xlsx");
+        workbook = new TempFileWorkbook();
+        sheetCounter = 0;
+        openSheet();
+    }
+
+    private void openSheet() {
+        sheetCounter++;
+        sheet = workbook.createSheet(sheetCounter == 1 ? SHEET_NAME : SHEET_NAME + "_" + sheetCounter);
+        sheetRows = 0;
+        fillRow(sheet.createRow(0), header);
+    }
+
+    private static void fillRow(Row row, String[] values) {
+        for (int i = 0; i < values.length; i++) {
+            row.createCell(i).setCellValue(values[i]);
+        }
+    }
+
+    private void finishSheet() {
+        // first row is counted from 1 over all sheets, without the header rows
+        index.add(file.getFileName() + "," + sheet.getSheetName() + "," + (totalRows - sheetRows + 1) + "," + sheetRows);
+    }
+
+    private void finishFile() throws IOException {
+        log.info("Writing metadata file to {}", file);
+        try (OutputStream out = Files.newOutputStream(file)) {
+            workbook.write(out);
+            // the remaining rows were flushed into the temporary files while writing
+            long tempSize = 0;
+            for (File tempFile : tempFiles) {
+                tempSize += tempFile.length();
+            }
+            peakTempSize = Math.max(peakTempSize, tempSize);
+        } finally {
+            workbook.close();
+            workbook = null;
+            tempFiles.clear();
+        }
+    }
+
+    /**
+     * Creates the temporary files of the sheets in the configured folder and keeps track of them
+     */
+    private class TempFileWorkbook extends SXSSFWorkbook {
+
+        TempFileWorkbook() {
+            super(null, rowWindow, compressTempFiles, sharedStrings);
+        }
+
+        @Override
+        protected SheetDataWriter createSheetDataWriter() throws IOException {
+            if (compressTempFiles) {
+                return new GZIPSheetDataWriter(sharedStrings ? getXSSFWorkbook().getSharedStringSource() : null) {
+                    @Override
+                    public File createTempFile() throws IOException {
+                        return track(super::createTempFile, ".xml.gz");
+                    }
+                };
+            }
+            return new SheetDataWriter(sharedStrings ? getXSSFWorkbook().getSharedStringSource() : null) {
+                @Override
+                public File createTempFile() throws IOException {
+                    return track(super::createTempFile, ".xml");
+                }
+            };
+        }
+    }
+
+    private interface TempFileFactory {
+        File create() throws IOException;
+    }
+
+    private File track(TempFileFactory defaultFactory, String suffix) throws IOException {
+        File tempFile;
+        if (tempFolder != null) {
+            Files.createDirectories(tempFolder);
+            tempFile = Files.createTempFile(tempFolder, "poi-sxssf-sheet", suffix).toFile();
+            tempFile.deleteOnExit();
+        } else {
+            tempFile = defaultFactory.create();
+        }
+        tempFiles.add(tempFile);
+        return tempFile;
+    }
+}
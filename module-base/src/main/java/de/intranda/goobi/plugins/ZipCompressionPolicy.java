@@ -0,0 +1,54 @@
+package de.intranda.goobi.plugins;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Decides which files are added to the zip file without compression. Images and other media files are already compressed, deflating them costs
+ * a lot of time without reducing the size.
+ */
+public class ZipCompressionPolicy {
+
+    public static final List<String> DEFAULT_STORED_EXTENSIONS =
+            Arrays.asList("jpg", "jpeg", "jp2", "tif", "tiff", "png", "gif", "webp", "pdf", "zip", "mp3", "mp4");
+
+    private final Set<String> storedExtensions = new HashSet<>();
+
+    /**
+     *
+     * @param storedExtensions file extensions to store without compression, case insensitive
+     */
+    public ZipCompressionPolicy(Collection<String> storedExtensions) {
+        for (String extension : storedExtensions) {
+            if (StringUtils.isNotBlank(extension)) {
+                this.storedExtensions.add(StringUtils.removeStart(extension.trim(), ".").toLowerCase(Locale.ROOT));
+            }
+        }
+    }
+
+    /**
+     * Create a policy with the default list of media file extensions
+     *
+     * @return the policy
+     */
+    public static ZipCompressionPolicy defaultPolicy() {
+        return new ZipCompressionPolicy(DEFAULT_STORED_EXTENSIONS);
+    }
+
+    /**
+     * Check if the file shall be stored without compression
+     *
+     * @param filename name of the file
+     * @return true if the file gets stored, false if it gets deflated
+     */
+    public boolean isStored(String filename) {
+        String extension = StringUtils.substringAfterLast(filename, ".");
+        return StringUtils.isNotBlank(extension) && storedExtensions.contains(extension.toLowerCase(Locale.ROOT));
+    }
+}
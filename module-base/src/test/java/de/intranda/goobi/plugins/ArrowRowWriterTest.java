@@ -0,0 +1,147 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ArrowRowWriterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRecordBatches() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("metadata.arrow");
+        String[][] rows = {
+                { "RM0166F05-0000001/00000001.jpg", "שלחן ערוך : מטור ... / חברו ... מהר\"ר יוסף קארו", "Y" },
+                { "RM0166F05-0000001/00000002.jpg", null, "N" },
+                { "RM0166F05-0000001/00000003.jpg", "", "N" },
+                { "RM0166F05-0000002/00000001.jpg", "Amsterdam, Netherlands", "Y" },
+                { "RM0166F05-0000002/00000002.jpg", "Missing pages.\nTorn\tcover", "N" } };
+        // two rows per batch, the last batch is written when the file is closed
+        try (RowWriter writer = new ArrowRowWriter(file, 2)) {
+            writer.writeHeader(Arrays.asList("File path", "Title", "Prime Image Flag"));
+            for (String[] row : rows) {
+                writer.writeRow(row);
+            }
+        }
+
+        ByteBuffer content = ByteBuffer.wrap(Files.readAllBytes(file)).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals("ARROW1", readAscii(content, 0, 6));
+        assertEquals("ARROW1", readAscii(content, content.limit() - 6, 6));
+        int footerLength = content.getInt(content.limit() - 10);
+        ByteBuffer footer = slice(content, content.limit() - 10 - footerLength, footerLength);
+        int footerTable = root(footer);
+        assertEquals(4, footer.getShort(field(footer, footerTable, 0)));
+
+        int schema = reference(footer, field(footer, footerTable, 1));
+        int fields = reference(footer, field(footer, schema, 1));
+        List<String> headers = new ArrayList<>();
+        for (int i = 0; i < footer.getInt(fields); i++) {
+            int field = reference(footer, fields + 4 + i * 4);
+            headers.add(readString(footer, reference(footer, field(footer, field, 0))));
+            // nullable utf8
+            assertEquals(1, footer.get(field(footer, field, 1)));
+            assertEquals(5, footer.get(field(footer, field, 2)));
+        }
+        assertEquals(Arrays.asList("File path", "Title", "Prime Image Flag"), headers);
+
+        List<String[]> values = new ArrayList<>();
+        int blocks = reference(footer, field(footer, footerTable, 3));
+        assertEquals(3, footer.getInt(blocks));
+        for (int i = 0; i < footer.getInt(blocks); i++) {
+            int block = blocks + 4 + i * 24;
+            int offset = (int) footer.getLong(block);
+            int metadataLength = footer.getInt(block + 8);
+            long bodyLength = footer.getLong(block + 16);
+            assertEquals(0, offset % 8);
+            assertEquals(0xFFFFFFFF, content.getInt(offset));
+            ByteBuffer message = slice(content, offset + 8, content.getInt(offset + 4));
+            int messageTable = root(message);
+            // record batch
+            assertEquals(3, message.get(field(message, messageTable, 1)));
+            assertEquals(bodyLength, message.getLong(field(message, messageTable, 3)));
+            int batch = reference(message, field(message, messageTable, 2));
+            int length = (int) message.getLong(field(message, batch, 0));
+            int buffers = reference(message, field(message, batch, 2));
+            ByteBuffer body = slice(content, offset + metadataLength, (int) bodyLength);
+            for (int row = 0; row < length; row++) {
+                String[] rowValues = new String[headers.size()];
+                for (int column = 0; column < headers.size(); column++) {
+                    int validity = buffers + 4 + column * 48;
+                    int offsets = validity + 16;
+                    int data = offsets + 16;
+                    long validityLength = message.getLong(validity + 8);
+                    if (validityLength > 0 && (body.get((int) message.getLong(validity) + row / 8) & (1 << (row % 8))) == 0) {
+                        continue;
+                    }
+                    int start = body.getInt((int) message.getLong(offsets) + row * 4);
+                    int end = body.getInt((int) message.getLong(offsets) + row * 4 + 4);
+                    byte[] bytes = new byte[end - start];
+                    ByteBuffer dataBuffer = slice(body, (int) message.getLong(data) + start, end - start);
+                    dataBuffer.get(bytes);
+                    rowValues[column] = new String(bytes, StandardCharsets.UTF_8);
+                }
+                values.add(rowValues);
+            }
+        }
+        assertEquals(rows.length, values.size());
+        for (int i = 0; i < rows.length; i++) {
+            assertEquals(Arrays.asList(rows[i]), Arrays.asList(values.get(i)));
+        }
+        assertNull(values.get(1)[1]);
+        assertEquals("", values.get(2)[1]);
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int position, int length) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(position);
+        duplicate.limit(position + length);
+        return duplicate.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static String readAscii(ByteBuffer buffer, int position, int length) {
+        byte[] bytes = new byte[length];
+        slice(buffer, position, length).get(bytes);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    private static int root(ByteBuffer flatbuffer) {
+        return reference(flatbuffer, 0);
+    }
+
+    private static int reference(ByteBuffer flatbuffer, int position) {
+        return position + flatbuffer.getInt(position);
+    }
+
+    /**
+     * Get the position of a field of a table from its vtable
+     */
+    private static int field(ByteBuffer flatbuffer, int table, int index) {
+        int vtable = table - flatbuffer.getInt(table);
+        int entry = 4 + index * 2;
+        int offset = entry < flatbuffer.getShort(vtable) ? flatbuffer.getShort(vtable + entry) : 0;
+        if (offset == 0) {
+            throw new IllegalArgumentException("Missing field " + index);
+        }
+        return table + offset;
+    }
+
+    private static String readString(ByteBuffer flatbuffer, int position) {
+        byte[] bytes = new byte[flatbuffer.getInt(position)];
+        slice(flatbuffer, position + 4, bytes.length).get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,89 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.intranda.goobi.plugins.PublisherResolver.PublisherNames;
+
+public class AuthorityStoreTest {
+
+    private static final String URL = "https://viaf.org/viaf/123/marc21.xml";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("store.tsv");
+        AuthorityStore store = AuthorityStore.open(file, 30);
+        store.put(URL, new PublisherNames("Perugia, Yehudah", "name\twith tab; other"));
+        store.put("other", new PublisherNames(null, null));
+        store.save();
+        assertTrue(Files.exists(file));
+
+        AuthorityStore reloaded = AuthorityStore.open(file, 30);
+        assertEquals(2, reloaded.size());
+        assertEquals("Perugia, Yehudah", reloaded.get(URL).getNormalizedName());
+        assertEquals("name\twith tab; other", reloaded.get(URL).getOtherNames());
+        assertNull(reloaded.get("other").getNormalizedName());
+    }
+
+    @Test
+    public void testExportsRunningAtTheSameTime() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("store.tsv");
+        AuthorityStore first = AuthorityStore.open(file, 30);
+        AuthorityStore second = AuthorityStore.open(file, 30);
+        first.put(URL, new PublisherNames("first", null));
+        second.put("other", new PublisherNames("second", null));
+        first.save();
+        second.save();
+
+        AuthorityStore reloaded = AuthorityStore.open(file, 30);
+        assertEquals(2, reloaded.size());
+        assertEquals("first", reloaded.get(URL).getNormalizedName());
+        assertEquals("second", reloaded.get("other").getNormalizedName());
+        try (Stream<Path> files = Files.list(folder.getRoot().toPath())) {
+            assertEquals(1, files.count());
+        }
+    }
+
+    @Test
+    public void testExpiredEntries() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("store.tsv");
+        AuthorityStore store = new AuthorityStore(file, -1);
+        store.put(URL, new PublisherNames("name", null));
+        assertNull(store.get(URL));
+    }
+
+    @Test
+    public void testWarmExportWithoutRequests() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("store.tsv");
+        AtomicInteger requests = new AtomicInteger();
+
+        PublisherResolver firstRun = new PublisherResolver(10, AuthorityStore.open(file, 30), 1, 1000, url -> {
+            requests.incrementAndGet();
+            return new PublisherNames("name", "other names");
+        });
+        assertEquals("name", firstRun.getViafNames(URL).get().getNormalizedName());
+        firstRun.close();
+        assertEquals(1, requests.get());
+
+        PublisherResolver secondRun = new PublisherResolver(10, AuthorityStore.open(file, 30), 1, 1000, url -> {
+            requests.incrementAndGet();
+            return null;
+        });
+        assertEquals("other names", secondRun.getViafNames(URL).get().getOtherNames());
+        secondRun.close();
+        assertEquals(1, requests.get());
+    }
+}
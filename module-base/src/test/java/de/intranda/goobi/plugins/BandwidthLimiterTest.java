@@ -0,0 +1,49 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.LocalTime;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class BandwidthLimiterTest {
+
+    @Test
+    public void testReserve() {
+        BandwidthLimiter limiter = new BandwidthLimiter(1000, null, null);
+        long now = TimeUnit.SECONDS.toNanos(10);
+        assertEquals(0, limiter.reserve(500, now));
+        // the first 500 bytes take half a second
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(500), limiter.reserve(1000, now));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(1000), limiter.reserve(1000, now + TimeUnit.MILLISECONDS.toNanos(500)));
+        // unused time is not saved up
+        long later = now + TimeUnit.SECONDS.toNanos(60);
+        assertEquals(0, limiter.reserve(1000, later));
+        assertEquals(TimeUnit.SECONDS.toNanos(1), limiter.reserve(1000, later));
+    }
+
+    @Test
+    public void testTimeWindow() {
+        BandwidthLimiter allDay = BandwidthLimiter.create(1000, "");
+        assertTrue(allDay.isActive(LocalTime.of(3, 0)));
+
+        BandwidthLimiter workingHours = BandwidthLimiter.create(1000, "07:00-19:00");
+        assertTrue(workingHours.isActive(LocalTime.of(7, 0)));
+        assertTrue(workingHours.isActive(LocalTime.of(12, 30)));
+        assertFalse(workingHours.isActive(LocalTime.of(19, 0)));
+        assertFalse(workingHours.isActive(LocalTime.of(3, 0)));
+
+        BandwidthLimiter night = BandwidthLimiter.create(1000, "22:00 - 06:00");
+        assertTrue(night.isActive(LocalTime.of(23, 0)));
+        assertTrue(night.isActive(LocalTime.of(2, 0)));
+        assertFalse(night.isActive(LocalTime.of(12, 0)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidTimeWindow() {
+        BandwidthLimiter.create(1000, "07:00");
+    }
+}
@@ -0,0 +1,34 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class BoundedCacheTest {
+
+    @Test
+    public void testEviction() {
+        BoundedCache<String, String> cache = new BoundedCache<>(2);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        // access a, so b is the least recently used entry
+        assertEquals("1", cache.get("a"));
+        cache.put("c", "3");
+        assertEquals(2, cache.size());
+        assertNull(cache.get("b"));
+        assertEquals("1", cache.get("a"));
+        assertEquals("3", cache.get("c"));
+    }
+
+    @Test
+    public void testStatistics() {
+        BoundedCache<String, String> cache = new BoundedCache<>(10);
+        assertNull(cache.get("a"));
+        cache.put("a", "1");
+        cache.get("a");
+        cache.get("a");
+        assertEquals(2, cache.getHits().get());
+        assertEquals(1, cache.getMisses().get());
+    }
+}
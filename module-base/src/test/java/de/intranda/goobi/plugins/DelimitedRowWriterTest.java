@@ -0,0 +1,43 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DelimitedRowWriterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testCsv() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("metadata.csv");
+        try (RowWriter writer = DelimitedRowWriter.create(file, OutputFormat.CSV)) {
+            writer.writeHeader(Arrays.asList("File path", "Title"));
+            writer.writeRow(new String[] { "RM0166F05-0000001/00000001.jpg", "שלחן ערוך : מטור ... / חברו ... מהר\"ר יוסף קארו" });
+            writer.writeRow(new String[] { "Amsterdam, Netherlands", null });
+        }
+        String content = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        assertEquals("File path,Title\r\n"
+                + "RM0166F05-0000001/00000001.jpg,\"שלחן ערוך : מטור ... / חברו ... מהר\"\"ר יוסף קארו\"\r\n"
+                + "\"Amsterdam, Netherlands\",\r\n", content);
+    }
+
+    @Test
+    public void testTsv() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("metadata.tsv");
+        try (RowWriter writer = DelimitedRowWriter.create(file, OutputFormat.TSV)) {
+            writer.writeHeader(Arrays.asList("File path", "Notes"));
+            writer.writeRow(new String[] { "RM0166F05-0000001/00000001.jpg", "Missing pages.\nTorn\tcover, \"old\"" });
+        }
+        String content = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        assertEquals("File path\tNotes\nRM0166F05-0000001/00000001.jpg\tMissing pages. Torn cover, \"old\"\n", content);
+    }
+}
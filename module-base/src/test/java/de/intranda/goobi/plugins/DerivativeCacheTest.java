@@ -0,0 +1,175 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.powermock.api.easymock.PowerMock;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import de.sub.goobi.config.ConfigurationHelper;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ ConfigurationHelper.class })
+@PowerMockIgnore({ "javax.management.*" })
+public class DerivativeCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path cacheFolder;
+    private Path image;
+    private AtomicInteger conversions = new AtomicInteger();
+    private Callable<byte[]> converter = () -> {
+        conversions.incrementAndGet();
+        return new byte[1000];
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        PowerMock.mockStatic(ConfigurationHelper.class);
+        ConfigurationHelper configurationHelper = EasyMock.createMock(ConfigurationHelper.class);
+        EasyMock.expect(ConfigurationHelper.getInstance()).andReturn(configurationHelper).anyTimes();
+        EasyMock.expect(configurationHelper.useS3()).andReturn(false).anyTimes();
+        EasyMock.replay(configurationHelper);
+        PowerMock.replay(ConfigurationHelper.class);
+
+        cacheFolder = folder.getRoot().toPath().resolve(".derivative_cache");
+        image = folder.newFile("00000001.tif").toPath();
+        Files.write(image, "image".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testReuseDerivative() throws Exception {
+        DerivativeCache cache = DerivativeCache.open(cacheFolder, 1024 * 1024, "dpi=150");
+        assertArrayEquals(new byte[1000], getContent(cache, image));
+        assertArrayEquals(new byte[1000], getContent(cache, image));
+        assertEquals(1, conversions.get());
+        assertEquals(1, cache.getHits().get());
+
+        // the next export finds the derivative of the first one
+        DerivativeCache reopened = DerivativeCache.open(cacheFolder, 1024 * 1024, "dpi=150");
+        assertEquals(1, reopened.getCount());
+        getContent(reopened, image);
+        assertEquals(1, conversions.get());
+    }
+
+    @Test
+    public void testChangedImageOrParameters() throws Exception {
+        DerivativeCache cache = DerivativeCache.open(cacheFolder, 1024 * 1024, "dpi=150");
+        String key = cache.getKey(image, 5, 1700000000000L);
+        assertEquals(key, cache.getKey(image, 5, 1700000000000L));
+        assertNotEquals(key, new DerivativeCache(cacheFolder, 1024 * 1024, "dpi=300").getKey(image, 5, 1700000000000L));
+        assertNotEquals(key, cache.getKey(image, 5, 1700000060000L));
+        assertNotEquals(key, cache.getKey(image, 6, 1700000000000L));
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        DerivativeCache cache = DerivativeCache.open(cacheFolder, 2500, "dpi=150");
+        for (int i = 0; i < 4; i++) {
+            Path other = folder.newFile("0000001" + i + ".tif").toPath();
+            getContent(cache, other);
+        }
+        assertEquals(2, cache.getCount());
+        assertEquals(2000, cache.getSize());
+        try (Stream<Path> files = Files.list(cacheFolder)) {
+            assertEquals(2, files.count());
+        }
+    }
+
+    @Test
+    public void testOrderOfLastUse() throws Exception {
+        Path first = folder.newFile("00000011.tif").toPath();
+        Path second = folder.newFile("00000012.tif").toPath();
+        DerivativeCache cache = DerivativeCache.open(cacheFolder, 2500, "dpi=150");
+        cache.setLinkFiles(true);
+        getContent(cache, first);
+        getContent(cache, second);
+        Path target = folder.newFolder("export").toPath().resolve("00000011.jpg");
+        export(cache, first, target);
+        // the use of a cached derivative does not change the linked copy
+        FileTime exported = FileTime.fromMillis(1700000000000L);
+        Files.setLastModifiedTime(target, exported);
+        getContent(cache, first);
+        assertEquals(exported, Files.getLastModifiedTime(target));
+        cache.close();
+
+        // the next export removes the derivative which was not used for the longest time
+        DerivativeCache reopened = DerivativeCache.open(cacheFolder, 2500, "dpi=150");
+        getContent(reopened, image);
+        assertEquals(3, conversions.get());
+        getContent(reopened, first);
+        assertEquals(3, conversions.get());
+        getContent(reopened, second);
+        assertEquals(4, conversions.get());
+        reopened.close();
+    }
+
+    @Test
+    public void testExportsRunningAtTheSameTime() throws Exception {
+        Files.createDirectories(cacheFolder);
+        Path oldTempFile = Files.write(cacheFolder.resolve("old.jpg.tmp"), new byte[1]);
+        Files.setLastModifiedTime(oldTempFile, FileTime.fromMillis(System.currentTimeMillis() - 2 * 60 * 60 * 1000));
+        // written by another export at the moment
+        Path newTempFile = Files.write(cacheFolder.resolve("new.jpg.tmp"), new byte[1]);
+
+        DerivativeCache first = DerivativeCache.open(cacheFolder, 1500, "dpi=150");
+        assertFalse(Files.exists(oldTempFile));
+        assertTrue(Files.exists(newTempFile));
+        Files.delete(newTempFile);
+
+        DerivativeCache second = DerivativeCache.open(cacheFolder, 1500, "dpi=300");
+        getContent(first, image);
+        getContent(second, image);
+        // both exports count against the same size
+        assertEquals(1, first.getCount());
+        assertEquals(1000, second.getSize());
+        try (Stream<Path> files = Files.list(cacheFolder)) {
+            assertEquals(1, files.count());
+        }
+        first.close();
+        second.close();
+    }
+
+    @Test
+    public void testExport() throws Exception {
+        DerivativeCache cache = DerivativeCache.open(cacheFolder, 1024 * 1024, "dpi=150");
+        Path target = folder.newFolder("export").toPath().resolve("00000001.jpg");
+        export(cache, image, target);
+        assertTrue(Files.exists(target));
+        assertEquals(1000, Files.size(target));
+        // the cached file is still available after the export gets deleted
+        Files.delete(target);
+        assertFalse(Files.exists(target));
+        export(cache, image, target);
+        assertEquals(1, conversions.get());
+    }
+
+    private byte[] getContent(DerivativeCache cache, Path source) throws IOException {
+        return cache.getContent(source, Files.size(source), Files.getLastModifiedTime(source).toMillis(), converter);
+    }
+
+    private void export(DerivativeCache cache, Path source, Path target) throws IOException {
+        cache.export(source, Files.size(source), Files.getLastModifiedTime(source).toMillis(), converter, target);
+    }
+}
@@ -0,0 +1,117 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ExportJobTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testProgress() throws Exception {
+        Path zipFile = folder.getRoot().toPath().resolve("SampleProject.zip");
+        ExportJob job = new ExportJob("SampleProject", zipFile, j -> {
+            j.startPhase(ExportJob.Phase.COLLECT, 4);
+            j.addProgress(1);
+            // images streamed into the zip file while the metadata is collected
+            j.addZipBytes(100);
+            assertEquals(25, j.getPercent());
+            j.startPhase(ExportJob.Phase.ZIP, 0);
+            j.addProgress(1);
+            j.addZipBytes(50);
+            assertEquals(-1, j.getPercent());
+            assertEquals(1, j.getDone());
+            assertEquals(150, j.getZipBytes());
+            Files.write(zipFile, new byte[] { 1 });
+        });
+        assertEquals(ExportJob.Phase.QUEUED, job.getPhase());
+        job.run();
+        assertEquals(ExportJob.Phase.FINISHED, job.getPhase());
+        assertFalse(job.isRunning());
+        assertNull(job.getErrorMessage());
+        assertTrue(job.isZipAvailable());
+    }
+
+    @Test
+    public void testFailure() {
+        ExportJob job = new ExportJob("SampleProject", folder.getRoot().toPath().resolve("SampleProject.zip"), j -> {
+            throw new IOException("disk full");
+        });
+        job.run();
+        assertEquals(ExportJob.Phase.FAILED, job.getPhase());
+        assertEquals("disk full", job.getErrorMessage());
+        assertFalse(job.isZipAvailable());
+    }
+
+    @Test
+    public void testErrorWithOldZipFile() throws Exception {
+        Path zipFile = folder.getRoot().toPath().resolve("SampleProject.zip");
+        // left from the last export
+        Files.write(zipFile, new byte[] { 1 });
+        ExportJob job = new ExportJob("SampleProject", zipFile, j -> j.fail("Error exporting project"));
+        job.run();
+        assertEquals(ExportJob.Phase.FAILED, job.getPhase());
+        assertFalse(job.isZipAvailable());
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        ExportJobManager manager = new ExportJobManager();
+        CountDownLatch started = new CountDownLatch(1);
+        ExportJob job = new ExportJob("SampleProject", folder.getRoot().toPath().resolve("SampleProject.zip"), j -> {
+            j.startPhase(ExportJob.Phase.COLLECT, 10);
+            started.countDown();
+            Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+        });
+        assertSame(job, manager.submit(job));
+        assertSame(job, manager.getJob("SampleProject"));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        assertTrue(manager.cancel("SampleProject"));
+        for (int i = 0; i < 100 && job.isRunning(); i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(ExportJob.Phase.CANCELLED, job.getPhase());
+        assertNull(job.getErrorMessage());
+        assertFalse(manager.cancel("SampleProject"));
+    }
+
+    @Test
+    public void testOneJobPerProject() throws Exception {
+        ExportJobManager manager = new ExportJobManager();
+        manager.setMaxJobs(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Path zipFile = folder.getRoot().toPath().resolve("SampleProject.zip");
+        ExportJob first = new ExportJob("SampleProject", zipFile, j -> release.await());
+        assertSame(first, manager.submit(first));
+        // a second export of the same project attaches to the running one
+        ExportJob second = new ExportJob("SampleProject", zipFile, j -> release.await());
+        assertSame(first, manager.submit(second));
+        // the other project waits, until the first export is finished
+        ExportJob other = new ExportJob("OtherProject", folder.getRoot().toPath().resolve("OtherProject.zip"), j -> {
+        });
+        assertSame(other, manager.submit(other));
+        Thread.sleep(200);
+        assertEquals(ExportJob.Phase.QUEUED, other.getPhase());
+        release.countDown();
+        for (int i = 0; i < 100 && (first.isRunning() || other.isRunning()); i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(ExportJob.Phase.FINISHED, first.getPhase());
+        assertEquals(ExportJob.Phase.FINISHED, other.getPhase());
+        assertEquals(ExportJob.Phase.QUEUED, second.getPhase());
+    }
+}
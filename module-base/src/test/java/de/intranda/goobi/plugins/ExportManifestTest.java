@@ -0,0 +1,85 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ExportManifestTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        Path file = folder.getRoot().toPath().resolve(".project.manifest");
+        ExportManifest manifest = new ExportManifest("settings");
+        ProcessMetadata data = new ProcessMetadata();
+        data.setProcessId(1);
+        data.setProcessTitle("RM0166F05-0000001");
+        data.setFingerprint("abc");
+        data.setFilenames(Arrays.asList("00000001.tif", "00000002.tif"));
+        data.setPublisherMetadata("Publisher");
+        data.setPublisherLat("Normalized publisher");
+        data.setValues(new String[] { "Title\twith tab", null, "", "Line 1\nLine 2\\" });
+        manifest.put(data);
+        // process without images
+        ProcessMetadata empty = new ProcessMetadata();
+        empty.setProcessId(3);
+        empty.setProcessTitle("RM0166F05-0000003");
+        empty.setFingerprint("ghi");
+        empty.setFilenames(Arrays.asList());
+        manifest.put(empty);
+        manifest.save(file);
+
+        ExportManifest loaded = ExportManifest.load(file, "settings");
+        assertNotNull(loaded);
+        assertEquals(2, loaded.size());
+        ProcessMetadata unchanged = loaded.getUnchanged(1, "abc");
+        assertNotNull(unchanged);
+        assertEquals("Publisher", unchanged.getPublisherMetadata());
+        // the enrichment is repeated by each export
+        assertEquals("", unchanged.getPublisherLat());
+        assertEquals(Arrays.asList("00000001.tif", "00000002.tif"), unchanged.getFilenames());
+        assertArrayEquals(new String[] { "Title\twith tab", null, "", "Line 1\nLine 2\\" }, unchanged.getValues());
+        assertNull(unchanged.getPublisherAuthority());
+        ProcessMetadata withoutImages = loaded.getUnchanged(3, "ghi");
+        assertTrue(withoutImages.getFilenames().isEmpty());
+        assertNull(withoutImages.getValues());
+        // changed process
+        assertNull(loaded.getUnchanged(1, "def"));
+        // new process
+        assertNull(loaded.getUnchanged(2, "abc"));
+    }
+
+    @Test
+    public void testChangedSettings() throws Exception {
+        Path file = folder.getRoot().toPath().resolve(".project.manifest");
+        new ExportManifest("settings").save(file);
+        assertNull(ExportManifest.load(file, "other settings"));
+    }
+
+    @Test
+    public void testMissingOrBrokenManifest() throws Exception {
+        Path file = folder.getRoot().toPath().resolve(".project.manifest");
+        assertNull(ExportManifest.load(file, "settings"));
+        Files.write(file, "broken".getBytes(StandardCharsets.UTF_8));
+        assertNull(ExportManifest.load(file, "settings"));
+        // a truncated entry
+        new ExportManifest("settings").save(file);
+        Files.write(file, "1\tRM0166F05-0000001\tabc\t\t\t\\N\t5\t00000001.tif\n".getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.APPEND);
+        assertNull(ExportManifest.load(file, "settings"));
+    }
+}
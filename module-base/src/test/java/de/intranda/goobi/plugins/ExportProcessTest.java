@@ -0,0 +1,24 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class ExportProcessTest {
+
+    @Test
+    public void testProperties() {
+        ExportProcess process = new ExportProcess(Arrays.asList("Censorship", "Marginalia", "NLI_Number"));
+        process.setProperty("Censorship", "N");
+        process.setProperty("NLI_Number", "990012587030205171");
+        process.setProperty("Book is important", "yes");
+
+        assertEquals("N", process.getProperty(0));
+        assertEquals("990012587030205171", process.getProperty(2));
+        assertNull(process.getProperty(1));
+        assertEquals(3, process.getPropertyValues().length);
+    }
+}
@@ -0,0 +1,48 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.apache.commons.configuration.XMLConfiguration;
+import org.apache.commons.configuration.tree.xpath.XPathExpressionEngine;
+import org.junit.Test;
+
+public class ExportSettingsTest {
+
+    @Test
+    public void testDefaults() {
+        ExportSettings settings = new ExportSettings(null, "SampleProject", false, null);
+        assertEquals("SampleProject", settings.getProjectName());
+        assertNull(settings.getExportFolder());
+        assertNull(settings.getFinishStepName());
+        assertEquals("media", settings.getImageFolder());
+        assertTrue(settings.isAllowZipDownload());
+        assertEquals(Collections.singletonList(OutputFormat.XLSX), settings.getOutputFormats());
+        assertEquals(ExportJobManager.DEFAULT_MAX_JOBS, settings.getMaxConcurrentExports());
+        assertFalse(settings.isLinkImages());
+        assertFalse(settings.isSharedStrings());
+    }
+
+    @Test
+    public void testProjectConfiguration() throws Exception {
+        XMLConfiguration xmlConfig = new XMLConfiguration("plugin_intranda_workflow_projectexport.xml");
+        xmlConfig.setExpressionEngine(new XPathExpressionEngine());
+        HierarchicalConfiguration config = xmlConfig.configurationAt("//config[./project = 'SampleProject']");
+
+        ExportSettings settings = new ExportSettings(config, "SampleProject", true, null);
+        assertEquals("closed step", settings.getFinishStepName());
+        assertEquals("test step to close", settings.getCloseStepName());
+        assertEquals("/opt/digiverso/viewer/hotfolder", settings.getExportFolder());
+        assertFalse(settings.isAllowZipDownload());
+        assertTrue(settings.isIncludeAllFinishedProcesses());
+
+        // a folder selected before is kept
+        settings = new ExportSettings(config, "SampleProject", false, "/tmp/export");
+        assertEquals("/tmp/export", settings.getExportFolder());
+    }
+}
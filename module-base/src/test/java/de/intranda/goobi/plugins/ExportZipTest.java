@@ -0,0 +1,114 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipFile;
+
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.powermock.api.easymock.PowerMock;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import de.sub.goobi.config.ConfigurationHelper;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ ConfigurationHelper.class })
+@PowerMockIgnore({ "javax.management.*" })
+public class ExportZipTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() {
+        PowerMock.mockStatic(ConfigurationHelper.class);
+        ConfigurationHelper configurationHelper = EasyMock.createMock(ConfigurationHelper.class);
+        EasyMock.expect(ConfigurationHelper.getInstance()).andReturn(configurationHelper).anyTimes();
+        EasyMock.expect(configurationHelper.useS3()).andReturn(false).anyTimes();
+        EasyMock.replay(configurationHelper);
+        PowerMock.replay(ConfigurationHelper.class);
+    }
+
+    @Test
+    public void testCopiedImages() throws Exception {
+        Path projectFolder = folder.newFolder("SampleProject").toPath();
+        Path processFolder = Files.createDirectories(projectFolder.resolve("RM0166F05-0000001"));
+        Files.write(processFolder.resolve("00000001.jpg"), new byte[] { 1, 2, 3 });
+        Files.write(processFolder.resolve("00000002.jpg"), new byte[] { 4, 5, 6 });
+        // a process without images has no folder
+        ProcessMetadata empty = createProcess("RM0166F05-0000002");
+        empty.setFilenames(Collections.emptyList());
+
+        Path zipFile = folder.getRoot().toPath().resolve("SampleProject.zip");
+        AtomicLong bytes = new AtomicLong();
+        try (ExportZip zip = new ExportZip(zipFile, projectFolder, false, new ImageListing(), ZipCompressionPolicy.defaultPolicy(), 2, null,
+                bytes::addAndGet, 1, null)) {
+            zip.add(createProcess("RM0166F05-0000001"));
+            zip.add(empty);
+            // the metadata file is written after the images were added
+            Files.write(projectFolder.resolve("metadata.xlsx"), "rows".getBytes(StandardCharsets.UTF_8));
+            zip.finish();
+        }
+
+        assertTrue(Files.exists(zipFile));
+        assertFalse(Files.exists(zipFile.resolveSibling("SampleProject.zip.part")));
+        assertTrue(bytes.get() > 0);
+        try (ZipFile zip = new ZipFile(zipFile.toFile())) {
+            assertEquals(3, zip.size());
+            assertNotNull(zip.getEntry("RM0166F05-0000001/00000001.jpg"));
+            assertNotNull(zip.getEntry("RM0166F05-0000001/00000002.jpg"));
+            assertNotNull(zip.getEntry("metadata.xlsx"));
+        }
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        Path projectFolder = folder.newFolder("SampleProject").toPath();
+        Path zipFile = folder.getRoot().toPath().resolve("SampleProject.zip");
+        Files.write(zipFile, new byte[] { 1 });
+        try (ExportZip zip = new ExportZip(zipFile, projectFolder, false, new ImageListing(), ZipCompressionPolicy.defaultPolicy(), 2, null, null,
+                1, null)) {
+            zip.add(createProcess("RM0166F05-0000001"));
+        }
+        // the zip file of the last export is kept
+        assertTrue(Files.exists(zipFile));
+        assertEquals(1, Files.size(zipFile));
+        assertFalse(Files.exists(zipFile.resolveSibling("SampleProject.zip.part")));
+    }
+
+    @Test
+    public void testCancelWhileInterrupted() throws Exception {
+        Path projectFolder = folder.newFolder("SampleProject").toPath();
+        Path zipFile = folder.getRoot().toPath().resolve("SampleProject.zip");
+        ExportZip zip =
+                new ExportZip(zipFile, projectFolder, false, new ImageListing(), ZipCompressionPolicy.defaultPolicy(), 2, null, null, 1, null);
+        zip.add(createProcess("RM0166F05-0000001"));
+        // the zip thread is stopped anyway, the interrupt is kept
+        Thread.currentThread().interrupt();
+        zip.close();
+        assertTrue(Thread.interrupted());
+        assertFalse(Files.exists(zipFile.resolveSibling("SampleProject.zip.part")));
+    }
+
+    private static ProcessMetadata createProcess(String title) {
+        ProcessMetadata process = new ProcessMetadata();
+        process.setProcessTitle(title);
+        process.setFilenames(Arrays.asList("00000001.tif", "00000002.tif"));
+        return process;
+    }
+}
@@ -0,0 +1,45 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class FileDownloadTest {
+
+    @Test
+    public void testParseRange() {
+        assertArrayEquals(new long[] { 0, 99 }, FileDownload.parseRange("bytes=0-99", 1000));
+        assertArrayEquals(new long[] { 500, 999 }, FileDownload.parseRange("bytes=500-", 1000));
+        assertArrayEquals(new long[] { 900, 999 }, FileDownload.parseRange("bytes=-100", 1000));
+        assertArrayEquals(new long[] { 0, 999 }, FileDownload.parseRange("bytes=-2000", 1000));
+        // the end is limited to the size of the file
+        assertArrayEquals(new long[] { 990, 999 }, FileDownload.parseRange("bytes=990-2000", 1000));
+    }
+
+    @Test
+    public void testUnsupportedRange() {
+        assertNull(FileDownload.parseRange("items=0-99", 1000));
+        assertNull(FileDownload.parseRange("bytes=0-99,200-299", 1000));
+        assertNull(FileDownload.parseRange("bytes=99-0", 1000));
+        assertNull(FileDownload.parseRange("bytes=a-b", 1000));
+        assertSame(FileDownload.UNSATISFIABLE, FileDownload.parseRange("bytes=1000-", 1000));
+        assertSame(FileDownload.UNSATISFIABLE, FileDownload.parseRange("bytes=-0", 1000));
+    }
+
+    @Test
+    public void testIfRange() {
+        long lastModified = 1700000000123L;
+        String etag = FileDownload.getETag(1000, lastModified);
+        assertTrue(FileDownload.isRangeValid(null, etag, lastModified));
+        assertTrue(FileDownload.isRangeValid(etag, etag, lastModified));
+        assertFalse(FileDownload.isRangeValid("\"other\"", etag, lastModified));
+        assertFalse(FileDownload.isRangeValid("W/" + etag, etag, lastModified));
+        assertTrue(FileDownload.isRangeValid("Tue, 14 Nov 2023 22:13:20 GMT", etag, lastModified));
+        assertFalse(FileDownload.isRangeValid("Tue, 14 Nov 2023 22:13:21 GMT", etag, lastModified));
+        assertFalse(FileDownload.isRangeValid("yesterday", etag, lastModified));
+    }
+}
@@ -0,0 +1,140 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.powermock.api.easymock.PowerMock;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import de.intranda.goobi.plugins.ImageListing.FolderListing;
+import de.sub.goobi.config.ConfigurationHelper;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ ConfigurationHelper.class })
+@PowerMockIgnore({ "javax.management.*", "javax.imageio.*" })
+public class ImageConverterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() {
+        PowerMock.mockStatic(ConfigurationHelper.class);
+        ConfigurationHelper configurationHelper = EasyMock.createMock(ConfigurationHelper.class);
+        EasyMock.expect(ConfigurationHelper.getInstance()).andReturn(configurationHelper).anyTimes();
+        EasyMock.expect(configurationHelper.useS3()).andReturn(false).anyTimes();
+        EasyMock.replay(configurationHelper);
+        PowerMock.replay(ConfigurationHelper.class);
+    }
+
+    @Test
+    public void testTargetName() {
+        assertEquals("RM0166F05-0000001_001.jpg", ImageConverter.getTargetName("RM0166F05-0000001_001.tif"));
+        assertEquals("image.jpg", ImageConverter.getTargetName("image"));
+    }
+
+    @Test
+    public void testTargetNamesOfAFolder() {
+        try (ImageConverter converter = new ImageConverter(150, 1024 * 1024, 0.3f, 0.9f, 6, 1)) {
+            assertEquals(Arrays.asList("00000001.jpg", "00000002.jpg", "document.pdf"),
+                    converter.getTargetNames(Arrays.asList("00000001.tif", "00000002.png", "document.pdf")));
+            // converted images which would overwrite another file keep their extension
+            assertEquals(Arrays.asList("00000001.jpg", "00000001.tif.jpg", "00000002.png.jpg", "00000002.tif.jpg"),
+                    converter.getTargetNames(Arrays.asList("00000001.jpg", "00000001.tif", "00000002.png", "00000002.tif")));
+        }
+    }
+
+    @Test
+    public void testCanConvert() {
+        try (ImageConverter converter = new ImageConverter(150, 1024 * 1024, 0.3f, 0.9f, 6, 1)) {
+            assertTrue(converter.canConvert("image.PNG"));
+            assertTrue(converter.canConvert("image.jpg"));
+            assertFalse(converter.canConvert("document.pdf"));
+            assertFalse(converter.canConvert("noextension"));
+        }
+    }
+
+    @Test
+    public void testMaximumFileSize() throws Exception {
+        Path image = createImage("noise.png", 1200, 900);
+        long maxFileSize = 100 * 1024;
+        try (ImageConverter converter = new ImageConverter(150, maxFileSize, 0.3f, 0.9f, 6, 1)) {
+            byte[] derivative = converter.convert(image);
+            assertTrue(derivative.length <= maxFileSize);
+            BufferedImage result = ImageIO.read(new ByteArrayInputStream(derivative));
+            assertNotNull(result);
+        }
+    }
+
+    @Test
+    public void testConvertFiles() throws Exception {
+        Path source = folder.newFolder("media").toPath();
+        Path target = folder.newFolder("export").toPath();
+        createImage("media/00000001.png", 200, 100);
+        createImage("media/00000002.png", 200, 100);
+        createImage("media/00000002.tif", 200, 100);
+        Files.write(source.resolve("document.pdf"), "%PDF".getBytes(StandardCharsets.UTF_8));
+        try (ImageConverter converter = new ImageConverter(150, 1024 * 1024, 0.3f, 0.9f, 6, 2)) {
+            converter.convertFiles(FolderListing.read(source), target);
+        }
+        assertTrue(Files.exists(target.resolve("00000001.jpg")));
+        assertTrue(Files.exists(target.resolve("00000002.png.jpg")));
+        assertTrue(Files.exists(target.resolve("00000002.tif.jpg")));
+        assertFalse(Files.exists(target.resolve("00000002.jpg")));
+        assertTrue(Files.exists(target.resolve("document.pdf")));
+        BufferedImage result = ImageIO.read(target.resolve("00000001.jpg").toFile());
+        assertEquals(200, result.getWidth());
+        assertEquals(100, result.getHeight());
+    }
+
+    @Test
+    public void testConvertFilesWithCache() throws Exception {
+        Path source = folder.newFolder("media").toPath();
+        createImage("media/00000001.png", 200, 100);
+        Path firstExport = folder.newFolder("first").toPath();
+        Path secondExport = folder.newFolder("second").toPath();
+        try (ImageConverter converter = new ImageConverter(150, 1024 * 1024, 0.3f, 0.9f, 6, 2)) {
+            Path cacheFolder = folder.getRoot().toPath().resolve(".derivative_cache");
+            converter.setCache(DerivativeCache.open(cacheFolder, 1024 * 1024, converter.getParameters()));
+            converter.convertFiles(FolderListing.read(source), firstExport);
+            converter.convertFiles(FolderListing.read(source), secondExport);
+            assertEquals(1, converter.getCache().getMisses().get());
+            assertEquals(1, converter.getCache().getHits().get());
+        }
+        assertTrue(Files.exists(secondExport.resolve("00000001.jpg")));
+        assertEquals(Files.size(firstExport.resolve("00000001.jpg")), Files.size(secondExport.resolve("00000001.jpg")));
+    }
+
+    private Path createImage(String name, int width, int height) throws Exception {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(1);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, random.nextInt(0xFFFFFF));
+            }
+        }
+        Path file = folder.getRoot().toPath().resolve(name);
+        ImageIO.write(image, "png", file.toFile());
+        return file;
+    }
+}
@@ -0,0 +1,74 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.powermock.api.easymock.PowerMock;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import de.sub.goobi.config.ConfigurationHelper;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ ConfigurationHelper.class })
+@PowerMockIgnore({ "javax.management.*" })
+public class ImageCopierTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path source;
+    private Path target;
+
+    @Before
+    public void setUp() throws Exception {
+        PowerMock.mockStatic(ConfigurationHelper.class);
+        ConfigurationHelper configurationHelper = EasyMock.createMock(ConfigurationHelper.class);
+        EasyMock.expect(ConfigurationHelper.getInstance()).andReturn(configurationHelper).anyTimes();
+        EasyMock.expect(configurationHelper.useS3()).andReturn(false).anyTimes();
+        EasyMock.replay(configurationHelper);
+        PowerMock.replay(ConfigurationHelper.class);
+
+        source = folder.newFolder("media").toPath();
+        target = folder.newFolder("export").toPath();
+        for (int i = 1; i <= 5; i++) {
+            Files.write(source.resolve("0000000" + i + ".tif"), new byte[i * 1000]);
+        }
+    }
+
+    @Test
+    public void testHardLinks() throws Exception {
+        try (ImageCopier copier = new ImageCopier(2, null, true)) {
+            copier.copyFiles(new ImageListing().get(source).getFiles(), target);
+            // the temporary folder is on a single file system
+            assertTrue(copier.isLinkFiles());
+        }
+        Path copy = target.resolve("00000003.tif");
+        assertEquals(3000, Files.size(copy));
+        assertTrue(Files.isSameFile(source.resolve("00000003.tif"), copy));
+    }
+
+    @Test
+    public void testLimitedCopy() throws Exception {
+        try (ImageCopier copier = new ImageCopier(3, new BandwidthLimiter(100 * 1024 * 1024, null, null), false)) {
+            copier.copyFiles(new ImageListing().get(source).getFiles(), target);
+        }
+        for (int i = 1; i <= 5; i++) {
+            Path copy = target.resolve("0000000" + i + ".tif");
+            assertFalse(Files.isSameFile(source.resolve(copy.getFileName()), copy));
+            assertArrayEquals(Files.readAllBytes(source.resolve(copy.getFileName())), Files.readAllBytes(copy));
+        }
+    }
+}
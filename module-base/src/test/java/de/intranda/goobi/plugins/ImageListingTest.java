@@ -0,0 +1,88 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.powermock.api.easymock.PowerMock;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import de.intranda.goobi.plugins.ImageListing.FolderListing;
+import de.sub.goobi.config.ConfigurationHelper;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ ConfigurationHelper.class })
+@PowerMockIgnore({ "javax.management.*" })
+public class ImageListingTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path media;
+
+    @Before
+    public void setUp() throws Exception {
+        PowerMock.mockStatic(ConfigurationHelper.class);
+        ConfigurationHelper configurationHelper = EasyMock.createMock(ConfigurationHelper.class);
+        EasyMock.expect(ConfigurationHelper.getInstance()).andReturn(configurationHelper).anyTimes();
+        EasyMock.expect(configurationHelper.useS3()).andReturn(false).anyTimes();
+        EasyMock.replay(configurationHelper);
+        PowerMock.replay(ConfigurationHelper.class);
+
+        media = folder.newFolder("media").toPath();
+        Files.write(media.resolve("00000002.tif"), new byte[20]);
+        Files.write(media.resolve("00000001.tif"), new byte[10]);
+        Files.setLastModifiedTime(media.resolve("00000001.tif"), FileTime.fromMillis(1700000000000L));
+    }
+
+    @Test
+    public void testListing() throws Exception {
+        ImageListing listing = new ImageListing();
+        FolderListing files = listing.get(media);
+        assertEquals(Arrays.asList("00000001.tif", "00000002.tif"), files.getFileNames());
+        assertEquals(10, files.getSize(0));
+        assertEquals(20, files.getSize(1));
+        assertEquals(1700000000000L, files.getLastModified(0));
+
+        // the folder is not listed again
+        Files.write(media.resolve("00000003.tif"), new byte[30]);
+        assertSame(files, listing.get(media));
+        listing.remove(media);
+        FolderListing updated = listing.get(media);
+        assertNotSame(files, updated);
+        assertEquals(3, updated.getFiles().size());
+    }
+
+    @Test
+    public void testAttributesFromListing() throws Exception {
+        Files.createDirectory(media.resolve("thumbnails"));
+        Files.write(media.resolve(".hidden"), new byte[5]);
+        FolderListing files = new ImageListing().get(media);
+        assertEquals(Arrays.asList("00000001.tif", "00000002.tif"), files.getFileNames());
+
+        // the attributes were read together with the folder
+        Files.write(media.resolve("00000001.tif"), new byte[15]);
+        Files.setLastModifiedTime(media.resolve("00000001.tif"), FileTime.fromMillis(1710000000000L));
+        assertEquals(10, files.getSize(0));
+        assertEquals(1700000000000L, files.getLastModified(0));
+    }
+
+    @Test
+    public void testMissingFolder() throws Exception {
+        assertTrue(new ImageListing().get(folder.getRoot().toPath().resolve("master")).isEmpty());
+    }
+}
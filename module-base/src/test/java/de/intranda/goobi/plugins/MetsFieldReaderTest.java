@@ -0,0 +1,169 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.powermock.api.easymock.PowerMock;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import de.intranda.goobi.plugins.MetsFieldReader.MetsField;
+import de.intranda.goobi.plugins.MetsFieldReader.MetsFields;
+import de.sub.goobi.config.ConfigurationHelper;
+import ugh.dl.DigitalDocument;
+import ugh.dl.DocStruct;
+import ugh.dl.Fileformat;
+import ugh.dl.Metadata;
+import ugh.dl.Prefs;
+import ugh.fileformats.mets.MetsMods;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ ConfigurationHelper.class })
+@PowerMockIgnore({ "javax.management.*", "javax.xml.*", "org.xml.*", "org.w3c.*", "com.sun.org.apache.*" })
+public class MetsFieldReaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final List<String> LOGICAL_TYPES = Arrays.asList("TitleDocMain", "shelfmarksource", "Publisher", "PublicationRun");
+    private static final List<String> PHYSICAL_TYPES = Collections.singletonList("_representative");
+
+    private MetsFieldReader reader = new MetsFieldReader(LOGICAL_TYPES, PHYSICAL_TYPES);
+
+    @Before
+    public void setUp() throws Exception {
+        PowerMock.mockStatic(ConfigurationHelper.class);
+        ConfigurationHelper configurationHelper = EasyMock.createMock(ConfigurationHelper.class);
+        EasyMock.expect(ConfigurationHelper.getInstance()).andReturn(configurationHelper).anyTimes();
+        EasyMock.expect(configurationHelper.useS3()).andReturn(false).anyTimes();
+        EasyMock.replay(configurationHelper);
+        PowerMock.replay(ConfigurationHelper.class);
+    }
+
+    @Test
+    public void testReadMetadata() throws Exception {
+        String resourcesFolder = "src/test/resources/"; // for junit tests in eclipse
+        if (!Files.exists(Paths.get(resourcesFolder))) {
+            resourcesFolder = "target/test-classes/"; // to run mvn test from cli or in jenkins
+        }
+        Path metsFile = Paths.get(resourcesFolder, "meta.xml");
+        MetsFields fields = reader.read(metsFile);
+        Map<String, String> logical = new HashMap<>();
+        for (MetsField field : fields.getLogical()) {
+            logical.put(field.getName(), field.getValue());
+        }
+        assertEquals(4, logical.size());
+        assertEquals("CB_FI_014", logical.get("shelfmarksource"));
+        assertEquals("Athias, Joseph,", logical.get("Publisher"));
+        assertEquals("1661-1666", logical.get("PublicationRun"));
+        assertTrue(logical.get("TitleDocMain").contains("מהר\"ר יוסף קארו"));
+
+        assertEquals(1, fields.getPhysical().size());
+        assertEquals("_representative", fields.getPhysical().get(0).getName());
+        assertEquals("1", fields.getPhysical().get(0).getValue());
+    }
+
+    @Test
+    public void testSkipPersonsAndGroups() throws Exception {
+        Path metsFile = folder.newFile("meta.xml").toPath();
+        StringBuilder xml = new StringBuilder();
+        xml.append("<mets:mets xmlns:mets=\"http://www.loc.gov/METS/\">");
+        xml.append("<mets:dmdSec ID=\"DMDLOG_0000\"><mets:mdWrap><mets:xmlData>");
+        xml.append("<goobi:goobi xmlns:goobi=\"http://meta.goobi.org/v1.5.1/\">");
+        xml.append("<goobi:metadata name=\"Publisher\" type=\"person\"><goobi:displayName>Person</goobi:displayName></goobi:metadata>");
+        xml.append("<goobi:metadata name=\"Group\" type=\"group\"><goobi:metadata name=\"Publisher\">Grouped</goobi:metadata></goobi:metadata>");
+        xml.append("<goobi:metadata name=\"Publisher\" valueURI=\"https://viaf.org/viaf/1\">Publisher</goobi:metadata>");
+        xml.append("</goobi:goobi></mets:xmlData></mets:mdWrap></mets:dmdSec>");
+        xml.append("<mets:structMap TYPE=\"LOGICAL\"><mets:div DMDID=\"DMDLOG_0000\" TYPE=\"Monograph\"/></mets:structMap></mets:mets>");
+        Files.write(metsFile, xml.toString().getBytes(StandardCharsets.UTF_8));
+
+        MetsFields fields = reader.read(metsFile);
+        assertEquals(1, fields.getLogical().size());
+        assertEquals("Publisher", fields.getLogical().get(0).getValue());
+        assertEquals("https://viaf.org/viaf/1", fields.getLogical().get(0).getAuthorityValue());
+        assertTrue(fields.getPhysical().isEmpty());
+    }
+
+    @Test
+    public void testMultiVolumeWork() throws Exception {
+        String resourcesFolder = "src/test/resources/"; // for junit tests in eclipse
+        if (!Files.exists(Paths.get(resourcesFolder))) {
+            resourcesFolder = "target/test-classes/"; // to run mvn test from cli or in jenkins
+        }
+        // the sections of the volume and the multivolume work are not numbered in the order of the structure
+        Path metsFile = Paths.get(resourcesFolder, "meta5.xml");
+        MetsFields fields = reader.read(metsFile);
+
+        Prefs prefs = new Prefs();
+        prefs.loadPrefs(resourcesFolder + "ruleset.xml");
+        Fileformat fileformat = new MetsMods(prefs);
+        fileformat.read(metsFile.toString());
+        DigitalDocument digDoc = fileformat.getDigitalDocument();
+
+        Map<String, String> logical = toMap(fields.getLogical());
+        assertEquals(toMap(digDoc.getLogicalDocStruct(), LOGICAL_TYPES), logical);
+        assertEquals("CB_FI_014", logical.get("shelfmarksource"));
+        assertEquals(toMap(digDoc.getPhysicalDocStruct(), PHYSICAL_TYPES), toMap(fields.getPhysical()));
+        assertEquals("2", fields.getPhysical().get(0).getValue());
+    }
+
+    @Test
+    public void testAnchorInSeparateFile() throws Exception {
+        Path metsFile = folder.newFile("meta.xml").toPath();
+        StringBuilder xml = new StringBuilder();
+        xml.append("<mets:mets xmlns:mets=\"http://www.loc.gov/METS/\" xmlns:xlink=\"http://www.w3.org/1999/xlink\">");
+        xml.append("<mets:dmdSec ID=\"DMDLOG_0001\"><mets:mdWrap><mets:xmlData>");
+        xml.append("<goobi:goobi xmlns:goobi=\"http://meta.goobi.org/v1.5.1/\">");
+        xml.append("<goobi:metadata name=\"TitleDocMain\">Volume</goobi:metadata>");
+        xml.append("</goobi:goobi></mets:xmlData></mets:mdWrap></mets:dmdSec>");
+        xml.append("<mets:structMap TYPE=\"LOGICAL\"><mets:div ID=\"LOG_0000\" TYPE=\"MultiVolumeWork\">");
+        xml.append("<mets:mptr LOCTYPE=\"URL\" xlink:href=\"meta_anchor.xml\"/>");
+        xml.append("<mets:div DMDID=\"DMDLOG_0001\" ID=\"LOG_0001\" TYPE=\"Volume\"/></mets:div></mets:structMap></mets:mets>");
+        Files.write(metsFile, xml.toString().getBytes(StandardCharsets.UTF_8));
+        // the metadata of the top element is not in the file, the ruleset based reader has to be used
+        assertNull(reader.read(metsFile));
+    }
+
+    @Test
+    public void testUnexpectedStructure() throws Exception {
+        Path metsFile = folder.newFile("meta.xml").toPath();
+        Files.write(metsFile, "<mets:mets xmlns:mets=\"http://www.loc.gov/METS/\"/>".getBytes(StandardCharsets.UTF_8));
+        assertNull(reader.read(metsFile));
+    }
+
+    private static Map<String, String> toMap(List<MetsField> fields) {
+        Map<String, String> values = new HashMap<>();
+        for (MetsField field : fields) {
+            values.put(field.getName(), field.getValue());
+        }
+        return values;
+    }
+
+    private static Map<String, String> toMap(DocStruct docStruct, List<String> types) {
+        Map<String, String> values = new HashMap<>();
+        for (Metadata md : docStruct.getAllMetadata()) {
+            if (types.contains(md.getType().getName())) {
+                values.put(md.getType().getName(), md.getValue());
+            }
+        }
+        return values;
+    }
+}
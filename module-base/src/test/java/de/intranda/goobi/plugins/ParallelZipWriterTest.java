@@ -0,0 +1,221 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Random;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.powermock.api.easymock.PowerMock;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import de.sub.goobi.config.ConfigurationHelper;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ ConfigurationHelper.class })
+@PowerMockIgnore({ "javax.management.*" })
+public class ParallelZipWriterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() {
+        PowerMock.mockStatic(ConfigurationHelper.class);
+        ConfigurationHelper configurationHelper = EasyMock.createMock(ConfigurationHelper.class);
+        EasyMock.expect(ConfigurationHelper.getInstance()).andReturn(configurationHelper).anyTimes();
+        EasyMock.expect(configurationHelper.useS3()).andReturn(false).anyTimes();
+        EasyMock.replay(configurationHelper);
+        PowerMock.replay(ConfigurationHelper.class);
+    }
+
+    @Test
+    public void testStoredAndDeflatedEntries() throws Exception {
+        byte[] image = new byte[100000];
+        new Random(1).nextBytes(image);
+        Path imageFile = folder.newFile("image.jpg").toPath();
+        Files.write(imageFile, image);
+        Path textFile = folder.newFile("metadata.xml").toPath();
+        Files.write(textFile, "<xml>some text</xml>".getBytes(StandardCharsets.UTF_8));
+
+        Path zipFile = folder.getRoot().toPath().resolve("export.zip");
+        try (ParallelZipWriter writer = new ParallelZipWriter(zipFile, ZipCompressionPolicy.defaultPolicy(), 2)) {
+            writer.addFile("RM0166F05-0000001/image.jpg", imageFile);
+            writer.addFile("metadata.xml", textFile);
+        }
+
+        try (ZipFile zip = new ZipFile(zipFile.toFile())) {
+            assertEquals(2, zip.size());
+            ZipEntry imageEntry = zip.getEntry("RM0166F05-0000001/image.jpg");
+            assertEquals(ZipEntry.STORED, imageEntry.getMethod());
+            try (InputStream in = zip.getInputStream(imageEntry)) {
+                assertArrayEquals(image, in.readAllBytes());
+            }
+            ZipEntry textEntry = zip.getEntry("metadata.xml");
+            assertEquals(ZipEntry.DEFLATED, textEntry.getMethod());
+            try (InputStream in = zip.getInputStream(textEntry)) {
+                assertEquals("<xml>some text</xml>", new String(in.readAllBytes(), StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    @Test
+    public void testLargeStoredEntry() throws Exception {
+        // larger than the files kept in memory, the checksum is calculated while the file is written
+        byte[] image = new byte[17 * 1024 * 1024];
+        new Random(3).nextBytes(image);
+        Path imageFile = folder.newFile("large.tif").toPath();
+        Files.write(imageFile, image);
+        Path textFile = folder.newFile("metadata.xml").toPath();
+        Files.write(textFile, "<xml>some text</xml>".getBytes(StandardCharsets.UTF_8));
+
+        Path zipFile = folder.getRoot().toPath().resolve("large.zip");
+        try (ParallelZipWriter writer = new ParallelZipWriter(zipFile, ZipCompressionPolicy.defaultPolicy(), 2)) {
+            writer.addFile("large.tif", imageFile);
+            writer.addFile("metadata.xml", textFile);
+        }
+
+        // the stream reads the checksum from the local header
+        try (ZipInputStream zip = new ZipInputStream(Files.newInputStream(zipFile))) {
+            ZipEntry imageEntry = zip.getNextEntry();
+            assertEquals("large.tif", imageEntry.getName());
+            assertEquals(ZipEntry.STORED, imageEntry.getMethod());
+            assertArrayEquals(image, zip.readAllBytes());
+            assertEquals("metadata.xml", zip.getNextEntry().getName());
+        }
+    }
+
+    @Test
+    public void testEntriesLargerThanTheMemoryLimit() throws Exception {
+        byte[] image = new byte[12 * 1024 * 1024];
+        new Random(4).nextBytes(image);
+        Path imageFile = folder.newFile("page.jpg").toPath();
+        Files.write(imageFile, image);
+
+        // more data than the entries kept in memory, the workers wait until the previous entries are written
+        Path zipFile = folder.getRoot().toPath().resolve("pages.zip");
+        try (ParallelZipWriter writer = new ParallelZipWriter(zipFile, ZipCompressionPolicy.defaultPolicy(), 4)) {
+            for (int i = 0; i < 8; i++) {
+                writer.addFile("pages/" + i + ".jpg", imageFile);
+                writer.addContent("derivatives/" + i + ".jpg", () -> image);
+            }
+        }
+
+        try (ZipFile zip = new ZipFile(zipFile.toFile())) {
+            assertEquals(16, zip.size());
+            for (ZipEntry entry : Collections.list(zip.entries())) {
+                try (InputStream in = zip.getInputStream(entry)) {
+                    assertArrayEquals(image, in.readAllBytes());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testTempFolder() throws Exception {
+        // compressed into a temporary file
+        byte[] text = new byte[20 * 1024 * 1024];
+        Path textFile = folder.newFile("fulltext.txt").toPath();
+        Files.write(textFile, text);
+
+        Path tempFolder = folder.getRoot().toPath().resolve("tmp/zip");
+        Path zipFile = folder.getRoot().toPath().resolve("fulltext.zip");
+        try (ParallelZipWriter writer = new ParallelZipWriter(zipFile, ZipCompressionPolicy.defaultPolicy(), 2)) {
+            writer.setTempFolder(tempFolder);
+            writer.addFile("fulltext.txt", textFile);
+        }
+
+        // the temporary file was created in the configured folder and removed after it was written
+        assertTrue(Files.isDirectory(tempFolder));
+        try (Stream<Path> files = Files.list(tempFolder)) {
+            assertEquals(0, files.count());
+        }
+        try (ZipFile zip = new ZipFile(zipFile.toFile())) {
+            try (InputStream in = zip.getInputStream(zip.getEntry("fulltext.txt"))) {
+                assertArrayEquals(text, in.readAllBytes());
+            }
+        }
+    }
+
+    @Test
+    public void testAbort() throws Exception {
+        // compressed into temporary files
+        Path textFile = folder.newFile("fulltext.txt").toPath();
+        Files.write(textFile, new byte[20 * 1024 * 1024]);
+
+        Path zipFile = folder.getRoot().toPath().resolve("pages.zip");
+        ParallelZipWriter writer = new ParallelZipWriter(zipFile, ZipCompressionPolicy.defaultPolicy(), 2);
+        for (int i = 0; i < 4; i++) {
+            writer.addFile("fulltext/" + i + ".txt", textFile);
+        }
+        writer.abort();
+        // closing an aborted writer does not write anything
+        writer.close();
+
+        // the pending entries and the central directory are not written
+        assertTrue(Files.size(zipFile) < 1024 * 1024);
+        try (ZipFile zip = new ZipFile(zipFile.toFile())) {
+            fail("The aborted zip file is complete");
+        } catch (ZipException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testGeneratedContent() throws Exception {
+        byte[] derivative = new byte[5000];
+        new Random(2).nextBytes(derivative);
+        Path zipFile = folder.getRoot().toPath().resolve("generated.zip");
+        try (ParallelZipWriter writer = new ParallelZipWriter(zipFile, ZipCompressionPolicy.defaultPolicy(), 2)) {
+            writer.addContent("RM0166F05-0000001/00000001.jpg", () -> derivative);
+            writer.addContent("notes.txt", () -> "some notes".getBytes(StandardCharsets.UTF_8));
+        }
+
+        try (ZipFile zip = new ZipFile(zipFile.toFile())) {
+            ZipEntry imageEntry = zip.getEntry("RM0166F05-0000001/00000001.jpg");
+            assertEquals(ZipEntry.STORED, imageEntry.getMethod());
+            try (InputStream in = zip.getInputStream(imageEntry)) {
+                assertArrayEquals(derivative, in.readAllBytes());
+            }
+            ZipEntry textEntry = zip.getEntry("notes.txt");
+            assertEquals(ZipEntry.DEFLATED, textEntry.getMethod());
+            try (InputStream in = zip.getInputStream(textEntry)) {
+                assertEquals("some notes", new String(in.readAllBytes(), StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    @Test
+    public void testZip64EntryCount() throws Exception {
+        Path textFile = folder.newFile("page.txt").toPath();
+        Files.write(textFile, "x".getBytes(StandardCharsets.UTF_8));
+        Path zipFile = folder.getRoot().toPath().resolve("many.zip");
+        try (ParallelZipWriter writer = new ParallelZipWriter(zipFile, ZipCompressionPolicy.defaultPolicy(), 4)) {
+            for (int i = 0; i < 70000; i++) {
+                writer.addFile("pages/" + i + ".txt", textFile);
+            }
+        }
+        try (ZipFile zip = new ZipFile(zipFile.toFile())) {
+            assertEquals(70000, zip.size());
+        }
+    }
+}
@@ -1,18 +1,21 @@
 package de.intranda.goobi.plugins;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.DirectoryStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipFile;
 
 import org.apache.commons.configuration.XMLConfiguration;
 import org.apache.commons.configuration.reloading.FileChangedReloadingStrategy;
@@ -25,7 +28,6 @@ import org.goobi.beans.Project;
 import org.goobi.beans.Step;
 import org.goobi.beans.User;
 import org.junit.Before;
-import org.junit.Ignore;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
@@ -38,6 +40,7 @@ import org.powermock.modules.junit4.PowerMockRunner;
 import de.sub.goobi.config.ConfigPlugins;
 import de.sub.goobi.config.ConfigurationHelper;
 import de.sub.goobi.helper.CloseStepHelper;
+import de.sub.goobi.helper.Helper;
 import de.sub.goobi.helper.VariableReplacer;
 import de.sub.goobi.helper.enums.PropertyType;
 import de.sub.goobi.helper.enums.StepStatus;
@@ -50,7 +53,7 @@ import ugh.fileformats.mets.MetsMods;
 
 @RunWith(PowerMockRunner.class)
 @PrepareForTest({ MetadatenHelper.class, VariableReplacer.class, ConfigPlugins.class, StepManager.class, ConfigurationHelper.class,
-        ProcessManager.class, CloseStepHelper.class })
+        ProcessManager.class, CloseStepHelper.class, Helper.class })
 @PowerMockIgnore({ "javax.management.*" })
 public class ProjectExportPluginTest {
 
@@ -58,7 +61,14 @@ public class ProjectExportPluginTest {
     public TemporaryFolder folder = new TemporaryFolder();
     private File processDirectory;
     private File metadataDirectory;
+    private File exportDirectory;
     private Process process;
+    // counted down when an export job loads the process
+    private CountDownLatch processLoaded = new CountDownLatch(1);
+    // if set, loading the process waits until the latch is released
+    private volatile CountDownLatch release;
+    // if set, loading the process fails
+    private volatile boolean loadingError = false;
 
     private String resourcesFolder;
 
@@ -72,6 +82,7 @@ public class ProjectExportPluginTest {
         }
 
         metadataDirectory = folder.newFolder("metadata");
+        exportDirectory = folder.newFolder("export");
 
         processDirectory = new File(metadataDirectory + File.separator + "1");
         processDirectory.mkdirs();
@@ -135,14 +146,45 @@ public class ProjectExportPluginTest {
         EasyMock.expect(MetadatenHelper.getMetaFileType(EasyMock.anyString())).andReturn("mets").anyTimes();
         EasyMock.expect(MetadatenHelper.getFileformatByName(EasyMock.anyString(), EasyMock.anyObject())).andReturn(ff).anyTimes();
 
+        // messages are not shown in the tests
+        PowerMock.mockStaticNice(Helper.class);
+        PowerMock.replay(Helper.class);
+
         PowerMock.mockStatic(StepManager.class);
         PowerMock.mockStatic(ProcessManager.class);
         PowerMock.replay(ConfigPlugins.class);
         PowerMock.replay(ConfigurationHelper.class);
         PowerMock.replay(MetadatenHelper.class);
         process = getProcess();
-        EasyMock.expect(ProcessManager.getProcessById(EasyMock.anyInt())).andReturn(process).anyTimes();
+        EasyMock.expect(ProcessManager.getProcessById(EasyMock.anyInt())).andAnswer(new IAnswer<Process>() {
+
+            @Override
+            public Process answer() throws Throwable {
+                processLoaded.countDown();
+                if (release != null) {
+                    release.await();
+                }
+                if (loadingError) {
+                    throw new IllegalStateException("The database is not available");
+                }
+                return process;
+            }
+        }).anyTimes();
         PowerMock.replay(ProcessManager.class);
+        EasyMock.expect(StepManager.getStepById(EasyMock.anyInt())).andAnswer(new IAnswer<Step>() {
+
+            @Override
+            public Step answer() throws Throwable {
+                Integer stepId = (Integer) EasyMock.getCurrentArguments()[0];
+                for (Step step : process.getSchritte()) {
+                    if (stepId.equals(step.getId())) {
+                        return step;
+                    }
+                }
+                return null;
+            }
+        }).anyTimes();
+        PowerMock.replay(StepManager.class);
 
     }
 
@@ -162,46 +204,24 @@ public class ProjectExportPluginTest {
     }
 
     @Test
-    @Ignore("This failing test was not executed before")
-    public void testPrepareExport() {
-        ProjectExportPlugin plugin = new ProjectExportPlugin();
-        plugin.setTestDatabase(true);
-        plugin.setExportFolder(metadataDirectory.getAbsolutePath());
-        List<Process> testProcesses = new ArrayList<>();
-        testProcesses.add(process);
-
-        Process p2 = createAdditionalTestProcess(2, "RM0166F05-0000001");
-        Process p3 = createAdditionalTestProcess(3, "RM0166F05-0000004");
-        Process p4 = createAdditionalTestProcess(4, "RM0166F05-0000019");
-
-        testProcesses.add(p2);
-        testProcesses.add(p3);
-        testProcesses.add(p4);
-
-        plugin.setTestList(testProcesses);
-
-        plugin.setProjectName("SampleProject");
-
+    public void testExportJob() throws Exception {
+        ProjectExportPlugin plugin = createPlugin();
         plugin.prepareExport();
-
-        Path excelFile = Paths.get(metadataDirectory.getAbsolutePath(), "SampleProject", "metadata.xlsx");
-        assertTrue(Files.exists(excelFile));
-
-        Path imageFolder = Paths.get(metadataDirectory.getAbsolutePath(), "SampleProject", "RM0166F05-0000001");
-        assertTrue(Files.exists(imageFolder));
-
-        List<String> fileNames = new ArrayList<>();
-        try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(imageFolder)) {
-            for (Path path : directoryStream) {
-                if (!path.getFileName().toString().startsWith(".")) {
-                    fileNames.add(path.getFileName().toString());
-                }
-            }
-        } catch (IOException ex) {
+        ExportJob job = waitForJob(plugin);
+        assertEquals(ExportJob.Phase.FINISHED, job.getPhase());
+        assertTrue(job.isZipAvailable());
+
+        Path zipFile = exportDirectory.toPath().resolve("SampleProject.zip");
+        assertEquals(zipFile, job.getZipFile());
+        List<String> entryNames = new ArrayList<>();
+        try (ZipFile zip = new ZipFile(zipFile.toFile())) {
+            zip.stream().forEach(entry -> entryNames.add(entry.getName()));
         }
-        Collections.sort(fileNames);
-        assertEquals("RM0166F05-0000001_001.jpg", fileNames.get(0));
-        assertEquals("RM0166F05-0000001_016.jpg", fileNames.get(15));
+        assertEquals(17, entryNames.size());
+        assertTrue(entryNames.contains("metadata.xlsx"));
+        assertTrue(entryNames.contains("RM0166F01-0000001/RM0166F05-0000001_001.jpg"));
+        assertTrue(entryNames.contains("RM0166F01-0000001/RM0166F05-0000001_016.jpg"));
+        assertFalse(Files.exists(zipFile.resolveSibling("SampleProject.zip.part")));
 
         for (Step step : process.getSchritte()) {
             if ("test step to close".equals(step.getTitel())) {
@@ -212,35 +232,67 @@ public class ProjectExportPluginTest {
         }
     }
 
-    private Process createAdditionalTestProcess(int id, String title) {
-        Process p = new Process();
-        p.setId(id);
-        p.setTitel(title);
-        p.setProjekt(process.getProjekt());
-        List<Step> steps = createSteps(p);
+    @Test
+    public void testCancelledExportJob() throws Exception {
+        Path zipFile = createOldZipFile();
+        release = new CountDownLatch(1);
+        ProjectExportPlugin plugin = createPlugin();
+        plugin.prepareExport();
+        // cancel the job while it loads the process
+        assertTrue(processLoaded.await(10, TimeUnit.SECONDS));
+        plugin.cancelExport();
+        ExportJob job = waitForJob(plugin);
+        assertEquals(ExportJob.Phase.CANCELLED, job.getPhase());
+        assertFalse(job.isZipAvailable());
+
+        // the zip file of the last export is kept and the step stays open
+        assertEquals("old export", new String(Files.readAllBytes(zipFile), StandardCharsets.UTF_8));
+        assertFalse(Files.exists(zipFile.resolveSibling("SampleProject.zip.part")));
+        assertEquals(StepStatus.OPEN, process.getSchritte().get(1).getBearbeitungsstatusEnum());
+    }
 
-        p.setSchritte(steps);
-        try {
-            File processDirectory = new File(metadataDirectory + File.separator + id);
-            processDirectory.mkdirs();
-            Path metaSource = Paths.get(resourcesFolder + "meta" + id + ".xml");
-            Path metaTarget = Paths.get(processDirectory.getAbsolutePath(), "meta.xml");
-            Files.copy(metaSource, metaTarget);
-            createProcessDirectory(processDirectory);
-        } catch (IOException e) {
-        }
-        List<GoobiProperty> properties = createProperties();
-        if (id == 2) {
-            properties.add(createProperty("NLI_Number", "990010890590205171"));
-        } else if (id == 3) {
-            properties.add(createProperty("NLI_Number", "990012426600205171"));
-        } else if (id == 4) {
-            properties.add(createProperty("NLI_Number", "990018871250205171"));
+    @Test
+    public void testFailedExportJob() throws Exception {
+        Path zipFile = createOldZipFile();
+        loadingError = true;
+        ProjectExportPlugin plugin = createPlugin();
+        plugin.prepareExport();
+        ExportJob job = waitForJob(plugin);
+        assertEquals(ExportJob.Phase.FAILED, job.getPhase());
+        assertNotNull(job.getErrorMessage());
+        assertFalse(job.isZipAvailable());
+
+        // the zip file of the last export is not replaced by an incomplete one and the step stays open
+        assertEquals("old export", new String(Files.readAllBytes(zipFile), StandardCharsets.UTF_8));
+        assertFalse(Files.exists(zipFile.resolveSibling("SampleProject.zip.part")));
+        assertEquals(StepStatus.OPEN, process.getSchritte().get(1).getBearbeitungsstatusEnum());
+    }
 
-        }
+    private ProjectExportPlugin createPlugin() {
+        ProjectExportPlugin plugin = new ProjectExportPlugin();
+        plugin.setTestDatabase(true);
+        plugin.setExportFolder(exportDirectory.getAbsolutePath());
+        List<Process> testProcesses = new ArrayList<>();
+        testProcesses.add(process);
+        plugin.setTestList(testProcesses);
+        plugin.setProjectName("SampleProject");
+        return plugin;
+    }
 
-        p.setEigenschaften(properties);
-        return p;
+    private Path createOldZipFile() throws IOException {
+        Path zipFile = exportDirectory.toPath().resolve("SampleProject.zip");
+        Files.write(zipFile, "old export".getBytes(StandardCharsets.UTF_8));
+        return zipFile;
+    }
+
+    private ExportJob waitForJob(ProjectExportPlugin plugin) throws InterruptedException {
+        ExportJob job = plugin.getJob();
+        assertNotNull(job);
+        for (int i = 0; i < 600 && job.isRunning(); i++) {
+            Thread.sleep(100);
+        }
+        assertFalse(job.isRunning());
+        return job;
     }
 
     public Process getProcess() {
@@ -291,6 +343,7 @@ public class ProjectExportPluginTest {
     private List<Step> createSteps(Process process) {
         List<Step> steps = new ArrayList<>();
         Step s1 = new Step();
+        s1.setId(1);
         s1.setReihenfolge(1);
         s1.setProzess(process);
         s1.setTitel("closed step");
@@ -302,6 +355,7 @@ public class ProjectExportPluginTest {
         steps.add(s1);
 
         Step s2 = new Step();
+        s2.setId(2);
         s2.setReihenfolge(2);
         s2.setProzess(process);
         s2.setTitel("test step to close");
@@ -309,6 +363,7 @@ public class ProjectExportPluginTest {
         steps.add(s2);
 
         Step s3 = new Step();
+        s3.setId(3);
         s3.setReihenfolge(3);
         s3.setProzess(process);
         s3.setTitel("locked step that should open");
@@ -0,0 +1,137 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import de.intranda.goobi.plugins.PublisherResolver.PublisherNames;
+
+public class PublisherResolverTest {
+
+    @Test
+    public void testFallbackOnTimeout() {
+        PublisherResolver resolver = new PublisherResolver(10, null, 1, 100, url -> {
+            try {
+                Thread.sleep(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new PublisherNames("too late", null);
+        });
+        ProcessMetadata data = new ProcessMetadata();
+        data.setPublisherLat("publisher from vocabulary");
+        data.setPublisherOther("variants from vocabulary");
+        data.setPublisherViafUrl("https://viaf.org/viaf/1/marc21.xml");
+        resolver.applyViafNames(data);
+        resolver.close();
+        assertEquals("publisher from vocabulary", data.getPublisherLat());
+        assertEquals("variants from vocabulary", data.getPublisherOther());
+    }
+
+    @Test
+    public void testRequestsDoNotBlockTheShutdown() {
+        List<Boolean> daemon = new ArrayList<>();
+        PublisherResolver resolver = new PublisherResolver(10, null, 1, 1000, url -> {
+            daemon.add(Thread.currentThread().isDaemon());
+            return new PublisherNames("normalized", null);
+        });
+        ProcessMetadata data = new ProcessMetadata();
+        data.setPublisherViafUrl("https://viaf.org/viaf/1/marc21.xml");
+        resolver.applyViafNames(data);
+        resolver.close();
+        assertEquals("normalized", data.getPublisherLat());
+        assertEquals(Collections.singletonList(true), daemon);
+    }
+
+    @Test
+    public void testEachUrlRequestedOnce() {
+        AtomicInteger requests = new AtomicInteger();
+        PublisherResolver resolver = new PublisherResolver(10, null, 4, 1000, url -> {
+            requests.incrementAndGet();
+            return new PublisherNames("normalized", "other");
+        });
+        for (int i = 0; i < 10; i++) {
+            ProcessMetadata data = new ProcessMetadata();
+            data.setPublisherViafUrl("https://viaf.org/viaf/" + (i % 2) + "/marc21.xml");
+            resolver.applyViafNames(data);
+            assertEquals("normalized", data.getPublisherLat());
+        }
+        resolver.close();
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    public void testTimeoutStartsWithTheRequest() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        // each request takes longer than half of the timeout, the last ones wait longer than the timeout for the single thread
+        PublisherResolver resolver = new PublisherResolver(10, null, 1, 1000, url -> {
+            requests.incrementAndGet();
+            try {
+                Thread.sleep(600);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new PublisherNames(url, null);
+        });
+        ExecutorService processes = Executors.newFixedThreadPool(4);
+        List<Future<Optional<PublisherNames>>> results = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            String url = "https://viaf.org/viaf/" + i + "/marc21.xml";
+            results.add(processes.submit(() -> resolver.getViafNames(url)));
+        }
+        for (int i = 0; i < 4; i++) {
+            assertEquals("https://viaf.org/viaf/" + i + "/marc21.xml", results.get(i).get(10, TimeUnit.SECONDS).get().getNormalizedName());
+        }
+        processes.shutdown();
+        resolver.close();
+        assertEquals(4, requests.get());
+    }
+
+    @Test
+    public void testLateAnswerIsUsed() throws Exception {
+        CountDownLatch answer = new CountDownLatch(1);
+        AtomicInteger requests = new AtomicInteger();
+        PublisherResolver resolver = new PublisherResolver(10, null, 1, 100, url -> {
+            requests.incrementAndGet();
+            try {
+                answer.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new PublisherNames("late", null);
+        });
+        String url = "https://viaf.org/viaf/1/marc21.xml";
+        assertFalse(resolver.getViafNames(url).isPresent());
+        answer.countDown();
+        // the next process with the same publisher gets the answer of the first request
+        Optional<PublisherNames> names = Optional.empty();
+        for (int i = 0; i < 100 && names.isEmpty(); i++) {
+            Thread.sleep(50);
+            names = resolver.getViafNames(url);
+        }
+        assertEquals("late", names.get().getNormalizedName());
+        resolver.close();
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void testFailedRequest() {
+        PublisherResolver resolver = new PublisherResolver(10, null, 1, 1000, url -> {
+            throw new IllegalStateException("connection refused");
+        });
+        assertFalse(resolver.getViafNames("https://viaf.org/viaf/1/marc21.xml").isPresent());
+        resolver.close();
+    }
+}
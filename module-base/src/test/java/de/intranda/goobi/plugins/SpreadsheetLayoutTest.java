@@ -0,0 +1,122 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.configuration.XMLConfiguration;
+import org.apache.commons.configuration.tree.xpath.XPathExpressionEngine;
+import org.junit.Test;
+
+import de.intranda.goobi.plugins.SpreadsheetLayout.Column;
+import de.intranda.goobi.plugins.SpreadsheetLayout.ColumnSource;
+
+public class SpreadsheetLayoutTest {
+
+    @Test
+    public void testDefaultLayout() {
+        SpreadsheetLayout layout = SpreadsheetLayout.defaultLayout();
+        assertEquals(32, layout.getColumns().size());
+        assertEquals("File path", layout.getColumns().get(0).getHeader());
+        assertEquals("Segnatura", layout.getColumns().get(31).getHeader());
+        assertEquals(Arrays.asList("NLI_Number", "Provenance", "Marginalia", "Censorship", "Number of Copies"), layout.getPropertyNames());
+        // the publisher metadata is read for the publisher columns
+        assertTrue(layout.getMetadataTypes().contains("Publisher"));
+        assertEquals(1, layout.getMetadataSources(SpreadsheetLayout.PUBLISHER_METADATA).size());
+        assertNull(layout.getMetadataSources("CatalogIDDigital"));
+    }
+
+    @Test
+    public void testCellValues() {
+        SpreadsheetLayout layout = SpreadsheetLayout.defaultLayout();
+        ExportProcess exportProcess = new ExportProcess(layout.getPropertyNames());
+        exportProcess.setTitle("RM0166F05-0000001");
+        exportProcess.setProperty("Censorship", "N");
+        exportProcess.setRightsOwner("Owner");
+
+        ProcessMetadata data = new ProcessMetadata();
+        data.setProcessTitle("RM0166F05-0000001");
+        data.setRepresentative("2");
+        data.setPublisherLat("Publisher");
+        String[] values = new String[layout.getSlotCount()];
+        layout.collectProcessValues(values, exportProcess);
+        collect(layout, values, "PlaceOfPublication", "Amsterdam");
+        collect(layout, values, "AdditionalAuthor", "first");
+        collect(layout, values, "AdditionalAuthor", "second");
+        collect(layout, values, "PublicationYear", "1661");
+        collect(layout, values, "shelfmarksource", "");
+        data.setValues(values);
+
+        List<Column> columns = layout.getColumns();
+        assertEquals("RM0166F05-0000001/00000002.jpg", layout.getCellValue(columns.get(0), data, "00000002.jpg", 2));
+        assertEquals("2", layout.getCellValue(columns.get(1), data, "00000002.jpg", 2));
+        assertEquals("Y", layout.getCellValue(columns.get(2), data, "00000002.jpg", 2));
+        assertEquals("N", layout.getCellValue(columns.get(2), data, "00000001.jpg", 1));
+        assertEquals("1661", layout.getCellValue(columns.get(13), data, "00000001.jpg", 1));
+        // fallback to the place of publication
+        assertEquals("Amsterdam", layout.getCellValue(columns.get(14), data, "00000001.jpg", 1));
+        assertEquals("Publisher", layout.getCellValue(columns.get(16), data, "00000001.jpg", 1));
+        assertEquals("National Library of Israel record", layout.getCellValue(columns.get(20), data, "00000001.jpg", 1));
+        assertEquals("Owner", layout.getCellValue(columns.get(22), data, "00000001.jpg", 1));
+        assertEquals("N", layout.getCellValue(columns.get(26), data, "00000001.jpg", 1));
+        assertEquals("first; second", layout.getCellValue(columns.get(27), data, "00000001.jpg", 1));
+        assertEquals("", layout.getCellValue(columns.get(30), data, "00000001.jpg", 1));
+        // fallback to the process title, if the shelfmark is blank
+        assertEquals("RM0166F05-0000001", layout.getCellValue(columns.get(31), data, "00000001.jpg", 1));
+    }
+
+    @Test
+    public void testProcessRow() {
+        SpreadsheetLayout layout = SpreadsheetLayout.defaultLayout();
+        ExportProcess exportProcess = new ExportProcess(layout.getPropertyNames());
+        exportProcess.setTitle("RM0166F05-0000001");
+        ProcessMetadata data = new ProcessMetadata();
+        data.setProcessTitle("RM0166F05-0000001");
+        String[] values = new String[layout.getSlotCount()];
+        layout.collectProcessValues(values, exportProcess);
+        data.setValues(values);
+        String[] row = layout.getProcessRow(data);
+        assertEquals(32, row.length);
+        // file path, image number and representative flag depend on the image
+        assertNull(row[0]);
+        assertNull(row[1]);
+        assertNull(row[2]);
+        assertEquals("National Library of Israel record", row[20]);
+        assertEquals("RM0166F05-0000001", row[31]);
+    }
+
+    @Test
+    public void testConfiguredLayout() throws Exception {
+        XMLConfiguration config = new XMLConfiguration();
+        config.setExpressionEngine(new XPathExpressionEngine());
+        config.load(new StringReader("<config><columns>"
+                + "<column header=\"Title\" source=\"metadata\" value=\"TitleDocMain\" mode=\"first\"/>"
+                + "<column header=\"Year\" source=\"metadata\" value=\"PublicationYear\"><fallback source=\"constant\" value=\"unknown\"/></column>"
+                + "<column header=\"Invalid\" source=\"unknown\" value=\"x\"/>"
+                + "</columns></config>"));
+        SpreadsheetLayout layout = SpreadsheetLayout.fromConfig(config);
+        assertEquals(3, layout.getColumns().size());
+        assertTrue(layout.getColumns().get(2).getSources().isEmpty());
+        assertNull(layout.getMetadataSources(SpreadsheetLayout.PUBLISHER_METADATA));
+        assertTrue(layout.getPropertyNames().isEmpty());
+
+        ProcessMetadata data = new ProcessMetadata();
+        String[] values = new String[layout.getSlotCount()];
+        collect(layout, values, "TitleDocMain", "first title");
+        collect(layout, values, "TitleDocMain", "second title");
+        data.setValues(values);
+        assertEquals("first title", layout.getCellValue(layout.getColumns().get(0), data, "00000001.jpg", 1));
+        assertEquals("unknown", layout.getCellValue(layout.getColumns().get(1), data, "00000001.jpg", 1));
+        assertEquals("", layout.getCellValue(layout.getColumns().get(2), data, "00000001.jpg", 1));
+    }
+
+    private static void collect(SpreadsheetLayout layout, String[] values, String type, String value) {
+        for (ColumnSource source : layout.getMetadataSources(type)) {
+            source.collect(values, value);
+        }
+    }
+}
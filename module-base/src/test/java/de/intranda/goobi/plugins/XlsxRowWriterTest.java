@@ -0,0 +1,112 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class XlsxRowWriterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSingleFile() throws Exception {
+        Path destination = folder.getRoot().toPath();
+        // file of an earlier export with more rows
+        Files.write(destination.resolve("metadata_2.xlsx"), new byte[0]);
+        try (RowWriter writer = new XlsxRowWriter(destination, true, 10, true)) {
+            writer.writeHeader(Arrays.asList("File path", "Title"));
+            writeProcess(writer, "RM0166F05-0000001", 3);
+        }
+        assertTrue(Files.exists(destination.resolve(XlsxRowWriter.FILE_NAME)));
+        assertFalse(Files.exists(destination.resolve("metadata_2.xlsx")));
+        assertFalse(Files.exists(destination.resolve(XlsxRowWriter.INDEX_FILE_NAME)));
+        assertEquals(3, countRows(destination.resolve(XlsxRowWriter.FILE_NAME), 0));
+    }
+
+    @Test
+    public void testSplitIntoFiles() throws Exception {
+        Path destination = folder.getRoot().toPath();
+        try (RowWriter writer = new XlsxRowWriter(destination, true, 4, true)) {
+            writer.writeHeader(Arrays.asList("File path", "Title"));
+            writeProcess(writer, "RM0166F05-0000001", 3);
+            // does not fit into the first file anymore
+            writeProcess(writer, "RM0166F05-0000002", 2);
+            // larger than a sheet, gets split
+            writeProcess(writer, "RM0166F05-0000003", 5);
+        }
+        assertEquals(3, countRows(destination.resolve("metadata.xlsx"), 0));
+        assertEquals(4, countRows(destination.resolve("metadata_2.xlsx"), 0));
+        assertEquals(3, countRows(destination.resolve("metadata_3.xlsx"), 0));
+        List<String> index = Files.readAllLines(destination.resolve(XlsxRowWriter.INDEX_FILE_NAME), StandardCharsets.UTF_8);
+        assertEquals(Arrays.asList("file,sheet,first_row,row_count", "metadata.xlsx,images,1,3", "metadata_2.xlsx,images,4,4",
+                "metadata_3.xlsx,images,8,3"), index);
+    }
+
+    @Test
+    public void testSplitIntoSheets() throws Exception {
+        Path destination = folder.getRoot().toPath();
+        try (RowWriter writer = new XlsxRowWriter(destination, false, 4, false)) {
+            writer.writeHeader(Arrays.asList("File path", "Title"));
+            writeProcess(writer, "RM0166F05-0000001", 3);
+            writeProcess(writer, "RM0166F05-0000002", 2);
+        }
+        assertFalse(Files.exists(destination.resolve("metadata_2.xlsx")));
+        assertEquals(3, countRows(destination.resolve("metadata.xlsx"), 0));
+        assertEquals(2, countRows(destination.resolve("metadata.xlsx"), 1));
+        List<String> index = Files.readAllLines(destination.resolve(XlsxRowWriter.INDEX_FILE_NAME), StandardCharsets.UTF_8);
+        assertEquals("metadata.xlsx,images_2,4,2", index.get(2));
+    }
+
+    @Test
+    public void testTempFolder() throws Exception {
+        Path destination = folder.newFolder("export").toPath();
+        Path tempFolder = folder.getRoot().toPath().resolve("temp");
+        for (boolean compress : new boolean[] { true, false }) {
+            XlsxRowWriter writer = new XlsxRowWriter(destination, true, 10, true);
+            writer.setRowWindow(1);
+            writer.setCompressTempFiles(compress);
+            writer.setTempFolder(tempFolder);
+            try {
+                writer.writeHeader(Arrays.asList("File path", "Title"));
+                writeProcess(writer, "RM0166F05-0000001", 5);
+            } finally {
+                writer.close();
+            }
+            assertTrue(Files.isDirectory(tempFolder));
+            assertTrue(writer.getPeakTempSize() > 0);
+            assertEquals(5, countRows(destination.resolve(XlsxRowWriter.FILE_NAME), 0));
+        }
+    }
+
+    private static void writeProcess(RowWriter writer, String title, int images) throws Exception {
+        writer.startProcess(images);
+        for (int i = 1; i <= images; i++) {
+            writer.writeRow(new String[] { title + "/" + i + ".jpg", title });
+        }
+    }
+
+    /**
+     * Count the rows of a sheet without the header
+     */
+    private static int countRows(Path file, int sheetIndex) throws Exception {
+        try (InputStream in = Files.newInputStream(file); XSSFWorkbook workbook = new XSSFWorkbook(in)) {
+            Sheet sheet = workbook.getSheetAt(sheetIndex);
+            assertEquals("File path", sheet.getRow(0).getCell(0).getStringCellValue());
+            return sheet.getLastRowNum();
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class ZipCompressionPolicyTest {
+
+    @Test
+    public void testDefaultPolicy() {
+        ZipCompressionPolicy policy = ZipCompressionPolicy.defaultPolicy();
+        assertTrue(policy.isStored("RM0166F05-0000001/RM0166F05-0000001_001.jpg"));
+        assertTrue(policy.isStored("image.TIF"));
+        assertFalse(policy.isStored("metadata.xlsx"));
+        assertFalse(policy.isStored("ocr.txt"));
+        assertFalse(policy.isStored("README"));
+    }
+
+    @Test
+    public void testConfiguredExtensions() {
+        ZipCompressionPolicy policy = new ZipCompressionPolicy(Arrays.asList(".JPG", " png ", ""));
+        assertTrue(policy.isStored("image.jpg"));
+        assertTrue(policy.isStored("image.png"));
+        assertFalse(policy.isStored("image.tif"));
+    }
+}